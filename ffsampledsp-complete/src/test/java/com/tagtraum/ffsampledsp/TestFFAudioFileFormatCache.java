@@ -0,0 +1,154 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ */
+package com.tagtraum.ffsampledsp;
+
+import org.junit.Test;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * TestFFAudioFileFormatCache.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class TestFFAudioFileFormatCache {
+
+    private static final AudioFileFormat[] FORMATS = {
+        new AudioFileFormat(AudioFileFormat.Type.WAVE, new AudioFormat(44100f, 16, 2, true, false), 1000)
+    };
+
+    @Test
+    public void testHitAndMiss() throws IOException {
+        final FFAudioFileFormatCache cache = new FFAudioFileFormatCache(10, 0);
+        final URL url = new URL("http://www.tagtraum.com/test.wav");
+        assertNull(cache.get(url));
+        cache.put(url, FORMATS);
+        assertSame(FORMATS, cache.get(url));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testInvalidationOnFileChange() throws IOException {
+        final File file = File.createTempFile("testInvalidationOnFileChange", ".wav");
+        try {
+            final FFAudioFileFormatCache cache = new FFAudioFileFormatCache(10, 0);
+            final URL url = FFAudioFileReader.fileToURL(file);
+            cache.put(url, FORMATS);
+            assertSame(FORMATS, cache.get(url));
+
+            try (final FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write(new byte[100]);
+            }
+            assertNull(cache.get(url));
+            assertEquals(1, cache.getInvalidationCount());
+            assertEquals(0, cache.size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFileModifiedWhileProbing() throws IOException {
+        final File file = File.createTempFile("testFileModifiedWhileProbing", ".wav");
+        try {
+            final FFAudioFileFormatCache cache = new FFAudioFileFormatCache(10, 0);
+            final URL url = FFAudioFileReader.fileToURL(file);
+            // state before probing
+            final long length = file.length();
+            final long lastModified = file.lastModified();
+
+            // file is rewritten while it is being probed
+            try (final FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write(new byte[100]);
+            }
+            cache.put(url, FORMATS, length, lastModified);
+            assertNull(cache.get(url));
+            assertEquals(1, cache.getInvalidationCount());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testExpiration() throws IOException, InterruptedException {
+        final FFAudioFileFormatCache cache = new FFAudioFileFormatCache(10, 0);
+        cache.setTimeToLive(10, TimeUnit.MILLISECONDS);
+        assertEquals(10, cache.getTimeToLive(TimeUnit.MILLISECONDS));
+        final URL url = new URL("http://www.tagtraum.com/test.wav");
+        cache.put(url, FORMATS);
+        Thread.sleep(50);
+        assertNull(cache.get(url));
+        assertEquals(1, cache.getExpirationCount());
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        final FFAudioFileFormatCache cache = new FFAudioFileFormatCache(3, 0);
+        final URL[] urls = new URL[5];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = new URL("http://www.tagtraum.com/test" + i + ".wav");
+        }
+        cache.put(urls[0], FORMATS);
+        cache.put(urls[1], FORMATS);
+        cache.put(urls[2], FORMATS);
+        // give urls[0] a second chance
+        assertNotNull(cache.get(urls[0]));
+        cache.put(urls[3], FORMATS);
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNotNull(cache.get(urls[0]));
+        assertNull(cache.get(urls[1]));
+
+        for (int i = 0; i < 100; i++) {
+            cache.put(urls[i % urls.length], FORMATS);
+        }
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testDisabled() throws IOException {
+        final FFAudioFileFormatCache cache = new FFAudioFileFormatCache(0, 0);
+        final URL url = new URL("http://www.tagtraum.com/test.wav");
+        cache.put(url, FORMATS);
+        assertNull(cache.get(url));
+        assertEquals(0, cache.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeMaxEntries() {
+        new FFAudioFileFormatCache(-1, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeTimeToLive() {
+        new FFAudioFileFormatCache(10, -1);
+    }
+}
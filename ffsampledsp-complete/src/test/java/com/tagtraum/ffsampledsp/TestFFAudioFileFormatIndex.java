@@ -0,0 +1,172 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ */
+package com.tagtraum.ffsampledsp;
+
+import org.junit.Test;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static javax.sound.sampled.AudioSystem.NOT_SPECIFIED;
+import static org.junit.Assert.*;
+
+/**
+ * TestFFAudioFileFormatIndex.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class TestFFAudioFileFormatIndex {
+
+    @Test
+    public void testSaveAndOpen() throws IOException, UnsupportedAudioFileException {
+        final File file = File.createTempFile("testSaveAndOpen", ".flac");
+        final Path indexFile = Files.createTempFile("testSaveAndOpen", ".index");
+        Files.delete(indexFile);
+        try {
+            try (final FileOutputStream out = new FileOutputStream(file)) {
+                out.write(new byte[1000]);
+            }
+            final int flac = FFAudioFormat.FFEncoding.Codec.FLAC.getEncoding().getCodecId();
+            final FFAudioFileFormat format = new FFAudioFileFormat(FFAudioFileReader.fileToURL(file).toString(), flac,
+                44100f, 16, 2, NOT_SPECIFIED, NOT_SPECIFIED, 133632, false, 3030204L, 0, null, false);
+
+            final FFAudioFileFormatIndex index = FFAudioFileFormatIndex.open(indexFile);
+            assertNull(index.get(file));
+            index.put(file, new AudioFileFormat[]{format});
+            assertEquals(1, index.size());
+            index.save();
+
+            final FFAudioFileFormatIndex reopened = FFAudioFileFormatIndex.open(indexFile);
+            assertEquals(1, reopened.size());
+            final AudioFileFormat[] formats = reopened.get(file);
+            assertNotNull(formats);
+            assertEquals(1, formats.length);
+            assertEquals(format.getType(), formats[0].getType());
+            assertEquals(format.getByteLength(), formats[0].getByteLength());
+            assertEquals(format.getFrameLength(), formats[0].getFrameLength());
+            assertEquals(format.properties(), formats[0].properties());
+            final AudioFormat audioFormat = formats[0].getFormat();
+            assertEquals(format.getFormat().getEncoding(), audioFormat.getEncoding());
+            assertEquals(format.getFormat().toString(), audioFormat.toString());
+            assertEquals(format.getFormat().properties(), audioFormat.properties());
+            assertEquals(1, reopened.getHitCount());
+        } finally {
+            file.delete();
+            Files.deleteIfExists(indexFile);
+        }
+    }
+
+    @Test
+    public void testChangedFile() throws IOException, UnsupportedAudioFileException {
+        final File file = File.createTempFile("testChangedFile", ".wav");
+        final Path indexFile = Files.createTempFile("testChangedFile", ".index");
+        Files.delete(indexFile);
+        try {
+            final int pcm = FFAudioFormat.FFEncoding.Codec.PCM_S16LE.getEncoding().getCodecId();
+            final FFAudioFileFormat format = new FFAudioFileFormat(FFAudioFileReader.fileToURL(file).toString(), pcm,
+                44100f, 16, 2, 4, 44100f, 1000, false, 0, 1411200, false, false);
+            final FFAudioFileFormatIndex index = FFAudioFileFormatIndex.open(indexFile);
+            index.put(file, new AudioFileFormat[]{format});
+            assertNotNull(index.get(file));
+
+            try (final FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write(new byte[100]);
+            }
+            assertNull(index.get(file));
+            assertEquals(0, index.size());
+        } finally {
+            file.delete();
+            Files.deleteIfExists(indexFile);
+        }
+    }
+
+    @Test
+    public void testFileModifiedWhileProbing() throws IOException, UnsupportedAudioFileException {
+        final File file = File.createTempFile("testFileModifiedWhileProbing", ".wav");
+        final Path indexFile = Files.createTempFile("testFileModifiedWhileProbing", ".index");
+        Files.delete(indexFile);
+        try {
+            final int pcm = FFAudioFormat.FFEncoding.Codec.PCM_S16LE.getEncoding().getCodecId();
+            final FFAudioFileFormat format = new FFAudioFileFormat(FFAudioFileReader.fileToURL(file).toString(), pcm,
+                44100f, 16, 2, 4, 44100f, 1000, false, 0, 1411200, false, false);
+            final FFAudioFileFormatIndex index = FFAudioFileFormatIndex.open(indexFile);
+            // state before probing
+            final long length = file.length();
+            final long lastModified = file.lastModified();
+
+            // file is rewritten while it is being probed
+            try (final FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write(new byte[100]);
+            }
+            index.put(file, new AudioFileFormat[]{format}, length, lastModified);
+            assertNull(index.get(file));
+        } finally {
+            file.delete();
+            Files.deleteIfExists(indexFile);
+        }
+    }
+
+    @Test
+    public void testCorruptIndex() throws IOException {
+        final Path indexFile = Files.createTempFile("testCorruptIndex", ".index");
+        try {
+            Files.write(indexFile, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+            final FFAudioFileFormatIndex index = FFAudioFileFormatIndex.open(indexFile);
+            assertEquals(0, index.size());
+        } finally {
+            Files.deleteIfExists(indexFile);
+        }
+    }
+
+    @Test
+    public void testReaderUsesIndex() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.flac";
+        final File file = File.createTempFile("testReaderUsesIndex", filename);
+        final Path indexFile = Files.createTempFile("testReaderUsesIndex", ".index");
+        Files.delete(indexFile);
+        TestFFURLInputStream.extractFile(filename, file);
+        final FFAudioFileFormatIndex previous = FFAudioFileReader.getIndex();
+        try {
+            final FFAudioFileFormatIndex index = FFAudioFileFormatIndex.open(indexFile);
+            FFAudioFileReader.setIndex(index);
+            final AudioFileFormat probed = new FFAudioFileReader().getAudioFileFormat(file);
+            assertEquals(1, index.size());
+            assertEquals(1, index.getMissCount());
+            index.save();
+
+            FFAudioFileReader.setIndex(FFAudioFileFormatIndex.open(indexFile));
+            final AudioFileFormat indexed = new FFAudioFileReader().getAudioFileFormat(file);
+            assertEquals(1, FFAudioFileReader.getIndex().getHitCount());
+            assertEquals(probed.getFrameLength(), indexed.getFrameLength());
+            assertEquals(probed.getFormat().toString(), indexed.getFormat().toString());
+        } finally {
+            FFAudioFileReader.setIndex(previous);
+            file.delete();
+            Files.deleteIfExists(indexFile);
+        }
+    }
+}
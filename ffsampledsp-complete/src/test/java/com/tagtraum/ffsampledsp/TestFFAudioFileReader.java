@@ -26,11 +26,21 @@ import org.junit.Test;
 
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static javax.sound.sampled.AudioSystem.NOT_SPECIFIED;
 import static org.junit.Assert.*;
@@ -42,6 +52,698 @@ import static org.junit.Assert.*;
  */
 public class TestFFAudioFileReader {
 
+    @Test
+    public void testDecoderThreads() {
+        final FFAudioFileReader reader = new FFAudioFileReader();
+        assertEquals(1, reader.getDecoderThreads());
+        reader.setDecoderThreads(0);
+        assertEquals(0, reader.getDecoderThreads());
+        reader.setDecoderThreads(8);
+        assertEquals(8, reader.getDecoderThreads());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeDecoderThreads() {
+        new FFAudioFileReader().setDecoderThreads(-1);
+    }
+
+    @Test
+    public void testProbeDoesNotRequireGlobalLock() throws Exception {
+        final String filename = "test.flac";
+        final File file = File.createTempFile("testProbeDoesNotRequireGlobalLock", filename);
+        extractFile(filename, file);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        FFGlobalLock.LOCK.lock();
+        try {
+            final Future<AudioFileFormat> future = executor.submit(new Callable<AudioFileFormat>() {
+                @Override
+                public AudioFileFormat call() throws Exception {
+                    return new FFAudioFileReader().getAudioFileFormat(file);
+                }
+            });
+            // would time out, if probing waited for the global lock
+            final AudioFileFormat fileFormat = future.get(30, TimeUnit.SECONDS);
+            assertEquals("flac", fileFormat.getType().getExtension());
+            assertEquals(133632, fileFormat.getFrameLength());
+        } finally {
+            FFGlobalLock.LOCK.unlock();
+            executor.shutdownNow();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testStalledInputStreamDoesNotBlockOtherOpens() throws Exception {
+        final String filename = "test.wav";
+        final File file = File.createTempFile("testStalledInputStreamDoesNotBlockOtherOpens", filename);
+        extractFile(filename, file);
+
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean lockHeldWhileReading = new AtomicBoolean();
+        final InputStream stalled = new FilterInputStream(new FileInputStream(file)) {
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                if (FFGlobalLock.LOCK.isHeldByCurrentThread()) lockHeldWhileReading.set(true);
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return super.read(b, off, len);
+            }
+        };
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<AudioFileFormat> stalledOpen = executor.submit(new Callable<AudioFileFormat>() {
+                @Override
+                public AudioFileFormat call() throws Exception {
+                    try (final AudioInputStream in = new FFAudioFileReader().getAudioInputStream(stalled)) {
+                        return new AudioFileFormat(AudioFileFormat.Type.WAVE, in.getFormat(), (int) in.getFrameLength());
+                    }
+                }
+            });
+            assertTrue(reading.await(30, TimeUnit.SECONDS));
+
+            // would time out, if the stalled open held the global lock
+            final Future<AudioFileFormat> otherOpen = executor.submit(new Callable<AudioFileFormat>() {
+                @Override
+                public AudioFileFormat call() throws Exception {
+                    try (final AudioInputStream in = new FFAudioFileReader().getAudioInputStream(file.toURI().toURL())) {
+                        return new AudioFileFormat(AudioFileFormat.Type.WAVE, in.getFormat(), (int) in.getFrameLength());
+                    }
+                }
+            });
+            final AudioFileFormat other = otherOpen.get(30, TimeUnit.SECONDS);
+            assertEquals(133632, other.getFrameLength());
+
+            release.countDown();
+            final AudioFileFormat stalledFormat = stalledOpen.get(30, TimeUnit.SECONDS);
+            assertTrue(other.getFormat().matches(stalledFormat.getFormat()));
+            assertFalse("Global lock must not be held while reading from the stream", lockHeldWhileReading.get());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+            stalled.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testConcurrentProbes() throws Exception {
+        final String[] filenames = {"test.flac", "test.wav", "test.mp3", "test.ogg", "test.aiff"};
+        final File[] files = new File[filenames.length];
+        final AudioFileFormat[] expected = new AudioFileFormat[filenames.length];
+        for (int i = 0; i < filenames.length; i++) {
+            files[i] = File.createTempFile("testConcurrentProbes", filenames[i]);
+            extractFile(filenames[i], files[i]);
+            expected[i] = probeStream(files[i]);
+        }
+
+        final int threads = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            final List<Future<AudioFileFormat[]>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(new Callable<AudioFileFormat[]>() {
+                    @Override
+                    public AudioFileFormat[] call() throws Exception {
+                        start.await();
+                        final AudioFileFormat[] formats = new AudioFileFormat[files.length];
+                        for (int i = 0; i < files.length; i++) {
+                            formats[i] = probeStream(files[i]);
+                        }
+                        return formats;
+                    }
+                }));
+            }
+            start.countDown();
+            for (final Future<AudioFileFormat[]> future : futures) {
+                final AudioFileFormat[] formats = future.get(60, TimeUnit.SECONDS);
+                for (int i = 0; i < formats.length; i++) {
+                    assertEquals(filenames[i], expected[i].getFrameLength(), formats[i].getFrameLength());
+                    assertEquals(filenames[i], expected[i].getFormat().toString(), formats[i].getFormat().toString());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testHeaderOnlyProbe() throws IOException, UnsupportedAudioFileException {
+        final FFAudioFileReader reader = new FFAudioFileReader();
+        assertFalse(reader.isHeaderOnlyProbe());
+        reader.setHeaderOnlyProbe(true);
+        assertTrue(reader.isHeaderOnlyProbe());
+
+        for (final String filename : new String[]{"test.wav", "test.aiff", "test.flac", "test24bit.flac", "test.m4a", "test.mp3", "test.ogg"}) {
+            // two copies, so that the second probe isn't answered by the cache
+            final File full = File.createTempFile("testHeaderOnlyProbeFull", filename);
+            final File headerOnly = File.createTempFile("testHeaderOnlyProbe", filename);
+            extractFile(filename, full);
+            extractFile(filename, headerOnly);
+            try {
+                final AudioFileFormat expected = new FFAudioFileReader().getAudioFileFormat(full);
+                final AudioFileFormat actual = reader.getAudioFileFormat(headerOnly);
+                assertEquals(filename, expected.getType(), actual.getType());
+                assertEquals(filename, expected.getByteLength(), actual.getByteLength());
+                assertEquals(filename, expected.getFrameLength(), actual.getFrameLength());
+                assertEquals(filename, expected.getProperty("duration"), actual.getProperty("duration"));
+                assertEquals(filename, expected.getFormat().toString(), actual.getFormat().toString());
+                assertEquals(filename, expected.getFormat().properties(), actual.getFormat().properties());
+            } finally {
+                full.delete();
+                headerOnly.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testProbeOptions() {
+        final FFAudioFileReader reader = new FFAudioFileReader();
+        assertEquals(0, reader.getProbeSize());
+        assertEquals(0, reader.getAnalyzeDuration(TimeUnit.MICROSECONDS));
+        assertNull(reader.getFormatHint());
+        assertFalse(reader.isFormatHintFromExtension());
+
+        reader.setProbeSize(4096);
+        reader.setAnalyzeDuration(500, TimeUnit.MILLISECONDS);
+        reader.setFormatHint("wav");
+        reader.setFormatHintFromExtension(true);
+        assertEquals(4096, reader.getProbeSize());
+        assertEquals(500000, reader.getAnalyzeDuration(TimeUnit.MICROSECONDS));
+        assertEquals("wav", reader.getFormatHint());
+        assertTrue(reader.isFormatHintFromExtension());
+
+        for (final int probeSize : new int[]{-1, 1, 31}) {
+            try {
+                reader.setProbeSize(probeSize);
+                fail("Expected IllegalArgumentException for " + probeSize);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            reader.setAnalyzeDuration(-1, TimeUnit.SECONDS);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFormatFromExtension() {
+        assertEquals("mp3", FFAudioFileReader.formatFromExtension("file:/music/song.MP3"));
+        assertEquals("mov", FFAudioFileReader.formatFromExtension("http://host/song.m4a?token=1.2"));
+        assertEquals("wav", FFAudioFileReader.formatFromExtension("/tmp/a.b/test.wav"));
+        assertNull(FFAudioFileReader.formatFromExtension("/tmp/a.b/test"));
+        assertNull(FFAudioFileReader.formatFromExtension("/tmp/test.xyz"));
+        assertNull(FFAudioFileReader.formatFromExtension(null));
+    }
+
+    @Test
+    public void testProbeWithFormatHint() throws IOException, UnsupportedAudioFileException {
+        final File file = File.createTempFile("testProbeWithFormatHint", ".wav");
+        extractFile("test.wav", file);
+        try {
+            final FFAudioFileReader reader = new FFAudioFileReader();
+            reader.setFormatHint("wav");
+            reader.setProbeSize(4096);
+            reader.setAnalyzeDuration(100, TimeUnit.MILLISECONDS);
+            final AudioFileFormat fileFormat = reader.getAudioFileFormat(file);
+            assertEquals("wav", fileFormat.getType().getExtension());
+            assertEquals(133632, fileFormat.getFrameLength());
+            try (final AudioInputStream in = reader.getAudioInputStream(file)) {
+                assertTrue(in.read(new byte[4096]) > 0);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testProbeOptionsBypassCache() throws IOException, UnsupportedAudioFileException {
+        final File file = File.createTempFile("testProbeOptionsBypassCache", ".wav");
+        extractFile("test.wav", file);
+        try {
+            final URL url = FFAudioFileReader.fileToURL(file);
+            final FFAudioFileFormatCache cache = FFAudioFileReader.getCache();
+
+            final FFAudioFileReader hinted = new FFAudioFileReader();
+            hinted.setFormatHint("wav");
+            hinted.setProbeSize(4096);
+            hinted.setAnalyzeDuration(100, TimeUnit.MILLISECONDS);
+            assertEquals(133632, hinted.getAudioFileFormat(file).getFrameLength());
+            try (final AudioInputStream in = hinted.getAudioInputStream(file)) {
+                assertTrue(in.read(new byte[4096]) > 0);
+            }
+            assertNull(cache.get(url));
+
+            assertEquals(133632, new FFAudioFileReader().getAudioFileFormat(file).getFrameLength());
+            assertNotNull(cache.get(url));
+
+            // results for default options must not answer probes with other options
+            final FFAudioFileReader headerOnly = new FFAudioFileReader();
+            headerOnly.setHeaderOnlyProbe(true);
+            final long hits = cache.getHitCount();
+            assertEquals(133632, headerOnly.getAudioFileFormat(file).getFrameLength());
+            assertEquals(hits, cache.getHitCount());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testProbeMisnamedFileWithExtensionHint() throws IOException, UnsupportedAudioFileException {
+        // wav content with mp3 extension
+        final File file = File.createTempFile("testProbeMisnamedFileWithExtensionHint", ".mp3");
+        extractFile("test.wav", file);
+        try {
+            final FFAudioFileReader reader = new FFAudioFileReader();
+            reader.setFormatHintFromExtension(true);
+            final AudioFileFormat fileFormat = reader.getAudioFileFormat(file);
+            assertEquals(AudioFormat.Encoding.PCM_SIGNED, fileFormat.getFormat().getEncoding());
+            assertEquals(133632, fileFormat.getFrameLength());
+            try (final AudioInputStream in = reader.getAudioInputStream(file)) {
+                assertTrue(in.read(new byte[4096]) > 0);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testProbeStreamWithSmallProbeSize() throws IOException, UnsupportedAudioFileException {
+        final FFAudioFileReader reader = new FFAudioFileReader();
+        reader.setProbeSize(2048);
+        try (final InputStream in = new BufferedInputStream(getClass().getResourceAsStream("test.wav"))) {
+            final AudioFileFormat fileFormat = reader.getAudioFileFormat(in);
+            assertEquals(AudioFormat.Encoding.PCM_SIGNED, fileFormat.getFormat().getEncoding());
+            assertEquals(44100f, fileFormat.getFormat().getSampleRate(), 0.001f);
+        }
+    }
+
+    @Test
+    public void testGetAudioInputStreamWithReadAhead() throws IOException, UnsupportedAudioFileException {
+        final FFAudioFileReader reader = new FFAudioFileReader();
+        reader.setReadAhead(16 * 1024, 4 * 1024, 12 * 1024);
+        assertEquals(16 * 1024, reader.getReadAheadCapacity());
+        assertEquals(4 * 1024, reader.getReadAheadLowWatermark());
+        assertEquals(12 * 1024, reader.getReadAheadHighWatermark());
+        try (final InputStream in = getClass().getResourceAsStream("test.wav");
+             final AudioInputStream audioInputStream = reader.getAudioInputStream(in)) {
+            assertEquals(AudioFormat.Encoding.PCM_SIGNED, audioInputStream.getFormat().getEncoding());
+            final byte[] buf = new byte[4096];
+            long bytesRead = 0;
+            int justRead;
+            while ((justRead = audioInputStream.read(buf)) != -1) {
+                bytesRead += justRead;
+            }
+            assertEquals(133632 * audioInputStream.getFormat().getFrameSize(), bytesRead);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetReadAheadWithBadWatermarks() {
+        new FFAudioFileReader().setReadAhead(1024, 512, 256);
+    }
+
+    @Test
+    public void testUnsupportedFileIsCached() throws IOException, UnsupportedAudioFileException {
+        final File file = File.createTempFile("testUnsupportedFileIsCached", ".pdf");
+        final byte[] garbage = new byte[16 * 1024];
+        new Random(17).nextBytes(garbage);
+        try (final OutputStream out = new FileOutputStream(file)) {
+            out.write(garbage);
+        }
+        try {
+            final FFAudioFileFormatCache unsupportedCache = FFAudioFileReader.getUnsupportedCache();
+            final long hits = unsupportedCache.getHitCount();
+            for (int i = 0; i < 3; i++) {
+                try {
+                    new FFAudioFileReader().getAudioFileFormat(file);
+                    fail("Expected UnsupportedAudioFileException");
+                } catch (UnsupportedAudioFileException e) {
+                    // expected
+                }
+            }
+            assertEquals(2, unsupportedCache.getHitCount() - hits);
+
+            // replacing the content invalidates the entry
+            extractFile("test.wav", file);
+            final AudioFileFormat fileFormat = new FFAudioFileReader().getAudioFileFormat(file);
+            assertEquals(133632, fileFormat.getFrameLength());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testShortAnalyzeDurationDoesNotPoisonUnsupportedCache() throws IOException, UnsupportedAudioFileException {
+        final File file = File.createTempFile("testShortAnalyzeDurationDoesNotPoisonUnsupportedCache", ".mp3");
+        extractFile("test.mp3", file);
+        try {
+            final FFAudioFileReader shortAnalysis = new FFAudioFileReader();
+            shortAnalysis.setAnalyzeDuration(1, TimeUnit.MICROSECONDS);
+            try {
+                shortAnalysis.getAudioFileFormat(file);
+            } catch (UnsupportedAudioFileException e) {
+                // may happen, if the stream info remains incomplete
+            }
+            assertNull(FFAudioFileReader.getUnsupportedCache().get(FFAudioFileReader.fileToURL(file)));
+
+            final AudioFileFormat fileFormat = new FFAudioFileReader().getAudioFileFormat(file);
+            assertEquals("mp3", fileFormat.getType().getExtension());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testGetAudioInputStreamDescribesUncachedFile() throws IOException, UnsupportedAudioFileException {
+        for (final String filename : new String[]{"test.wav", "test.flac", "test.mp3", "test.ogg", "test.m4a"}) {
+            // two copies, so that the stream's file isn't in the cache yet
+            final File probed = File.createTempFile("testGetAudioInputStreamDescribesUncachedFileProbed", filename);
+            final File opened = File.createTempFile("testGetAudioInputStreamDescribesUncachedFile", filename);
+            extractFile(filename, probed);
+            extractFile(filename, opened);
+            try {
+                final AudioFileFormat expected = new FFAudioFileReader().getAudioFileFormat(probed);
+                final URL url = FFAudioFileReader.fileToURL(opened);
+                assertNull(FFAudioFileReader.getCache().get(url));
+                try (final AudioInputStream in = new FFAudioFileReader().getAudioInputStream(opened)) {
+                    assertEquals(filename, expected.getFormat().toString(), in.getFormat().toString());
+                    assertEquals(filename, expected.getFrameLength(), in.getFrameLength());
+                    assertTrue(filename, in.read(new byte[4096]) > 0);
+                }
+                final AudioFileFormat[] cached = FFAudioFileReader.getCache().get(url);
+                assertNotNull(filename, cached);
+                assertEquals(filename, expected.getType(), cached[0].getType());
+                assertEquals(filename, expected.getByteLength(), cached[0].getByteLength());
+                assertEquals(filename, expected.getProperty("duration"), cached[0].getProperty("duration"));
+            } finally {
+                probed.delete();
+                opened.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testGetAudioInputStreamProbesUncachedURLOutsideGlobalLock() throws Exception {
+        Assume.assumeTrue(File.separator.equals("/"));
+        final String filename = "test.wav";
+        final File file = File.createTempFile("testGetAudioInputStreamProbesUncachedURLOutsideGlobalLock", filename);
+        extractFile(filename, file);
+        // opening a named pipe blocks until someone writes to it, i.e. the probe stalls
+        final File fifo = File.createTempFile("testGetAudioInputStreamProbesUncachedURLOutsideGlobalLockFifo", filename);
+        fifo.delete();
+        boolean created;
+        try {
+            created = new ProcessBuilder("mkfifo", fifo.getAbsolutePath()).start().waitFor() == 0;
+        } catch (IOException e) {
+            created = false;
+        }
+        Assume.assumeTrue(created);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<AudioFormat> stalledOpen = executor.submit(new Callable<AudioFormat>() {
+                @Override
+                public AudioFormat call() throws Exception {
+                    try (final AudioInputStream in = new FFAudioFileReader().getAudioInputStream(FFAudioFileReader.fileToURL(fifo))) {
+                        return in.getFormat();
+                    }
+                }
+            });
+            // make sure the first open has started
+            Thread.sleep(500);
+
+            // would time out, if the stalled open held the global lock
+            final Future<AudioFormat> otherOpen = executor.submit(new Callable<AudioFormat>() {
+                @Override
+                public AudioFormat call() throws Exception {
+                    try (final AudioInputStream in = new FFAudioFileReader().getAudioInputStream(file)) {
+                        assertTrue(in.read(new byte[4096]) > 0);
+                        return in.getFormat();
+                    }
+                }
+            });
+            final AudioFormat expected = otherOpen.get(30, TimeUnit.SECONDS);
+            assertFalse(stalledOpen.isDone());
+
+            try (final OutputStream out = new FileOutputStream(fifo)) {
+                Files.copy(file.toPath(), out);
+            } catch (IOException e) {
+                // the reader may close the pipe before it has read everything
+            }
+            assertTrue(expected.matches(stalledOpen.get(30, TimeUnit.SECONDS)));
+        } finally {
+            executor.shutdownNow();
+            file.delete();
+            fifo.delete();
+        }
+    }
+
+    @Test
+    public void testGetAudioInputStreamFromNonMarkableStream() throws IOException, UnsupportedAudioFileException {
+        final AudioFileFormat expected;
+        try (final InputStream in = new BufferedInputStream(getClass().getResourceAsStream("test.mp3"))) {
+            expected = new FFAudioFileReader().getAudioFileFormat(in);
+        }
+        try (final InputStream in = new FilterInputStream(getClass().getResourceAsStream("test.mp3")) {
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+            };
+             final AudioInputStream audioInputStream = new FFAudioFileReader().getAudioInputStream(in)) {
+            assertEquals(expected.getFormat().toString(), audioInputStream.getFormat().toString());
+            assertEquals(expected.getFrameLength(), audioInputStream.getFrameLength());
+            int total = 0;
+            int justRead;
+            final byte[] buf = new byte[1024 * 64];
+            while ((justRead = audioInputStream.read(buf)) != -1) {
+                total += justRead;
+            }
+            assertTrue(total > 0);
+        }
+    }
+
+    @Test
+    public void testGetAudioInputStreamResetsUnsupportedStream() throws IOException {
+        final byte[] garbage = new byte[16 * 1024];
+        new Random(17).nextBytes(garbage);
+        final InputStream in = new BufferedInputStream(new ByteArrayInputStream(garbage));
+        try {
+            new FFAudioFileReader().getAudioInputStream(in);
+            fail("Expected UnsupportedAudioFileException");
+        } catch (UnsupportedAudioFileException e) {
+            // expected
+        }
+        final byte[] first = new byte[garbage.length];
+        new DataInputStream(in).readFully(first);
+        assertArrayEquals(garbage, first);
+    }
+
+    @Test
+    public void testGetAudioInputStreamFromSeekableChannel() throws IOException, UnsupportedAudioFileException {
+        final File file = File.createTempFile("testGetAudioInputStreamFromSeekableChannel", ".flac");
+        extractFile("test.flac", file);
+        try (final FFAudioInputStream in = (FFAudioInputStream) new FFAudioFileReader().getAudioInputStream(FileChannel.open(file.toPath()), 0)) {
+            assertTrue(in.isSeekable());
+            assertEquals(133632, in.getFrameLength());
+            assertTrue(in.read(new byte[4096]) > 0);
+            in.seek(2, TimeUnit.SECONDS);
+            assertTrue(in.read(new byte[4096]) > 0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMemoryMapped() throws IOException, UnsupportedAudioFileException {
+        final FFAudioFileReader reader = new FFAudioFileReader();
+        assertFalse(reader.isMemoryMapped());
+        reader.setMemoryMapped(true);
+        assertTrue(reader.isMemoryMapped());
+
+        final File file = File.createTempFile("testMemoryMapped", ".flac");
+        extractFile("test.flac", file);
+        try (final FFAudioInputStream in = (FFAudioInputStream) reader.getAudioInputStream(file)) {
+            assertTrue(in.isSeekable());
+            assertEquals(133632, in.getFrameLength());
+            assertNotNull(FFAudioFileReader.getCache().get(FFAudioFileReader.fileToURL(file)));
+            assertTrue(in.read(new byte[4096]) > 0);
+            in.seek(2, TimeUnit.SECONDS);
+            assertTrue(in.read(new byte[4096]) > 0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testGetAudioInputStreamFromMemory() throws IOException, UnsupportedAudioFileException {
+        final File file = File.createTempFile("testGetAudioInputStreamFromMemory", ".flac");
+        extractFile("test.flac", file);
+        try {
+            final byte[] data = Files.readAllBytes(file.toPath());
+            final FFAudioFileReader reader = new FFAudioFileReader();
+            final AudioFileFormat expected = reader.getAudioFileFormat(file);
+            final AudioFileFormat[] fileFormats = reader.getAudioFileFormats(ByteBuffer.wrap(data));
+            assertEquals(1, fileFormats.length);
+            assertEquals(expected.getFormat().toString(), fileFormats[0].getFormat().toString());
+            assertEquals(expected.getFrameLength(), fileFormats[0].getFrameLength());
+
+            try (final FFAudioInputStream in = (FFAudioInputStream) reader.getAudioInputStream(data)) {
+                assertTrue(in.isSeekable());
+                assertEquals(expected.getFrameLength(), in.getFrameLength());
+                assertTrue(in.read(new byte[4096]) > 0);
+                in.seek(2, TimeUnit.SECONDS);
+                assertTrue(in.read(new byte[4096]) > 0);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testProbeMemoryDoesNotRequireGlobalLock() throws Exception {
+        final File file = File.createTempFile("testProbeMemoryDoesNotRequireGlobalLock", ".flac");
+        extractFile("test.flac", file);
+        final byte[] data = Files.readAllBytes(file.toPath());
+        final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        final ByteBuffer[] buffers = {ByteBuffer.wrap(data), direct, ByteBuffer.wrap(data).asReadOnlyBuffer()};
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        FFGlobalLock.LOCK.lock();
+        try {
+            for (final boolean headerOnly : new boolean[]{false, true}) {
+                for (final ByteBuffer buffer : buffers) {
+                    final Future<AudioFileFormat[]> future = executor.submit(new Callable<AudioFileFormat[]>() {
+                        @Override
+                        public AudioFileFormat[] call() throws Exception {
+                            final FFAudioFileReader reader = new FFAudioFileReader();
+                            reader.setHeaderOnlyProbe(headerOnly);
+                            return reader.getAudioFileFormats(buffer.duplicate());
+                        }
+                    });
+                    // would time out, if probing waited for the global lock
+                    final AudioFileFormat[] fileFormats = future.get(30, TimeUnit.SECONDS);
+                    assertEquals(1, fileFormats.length);
+                    assertEquals(133632, fileFormats[0].getFrameLength());
+                }
+            }
+        } finally {
+            FFGlobalLock.LOCK.unlock();
+            executor.shutdownNow();
+            file.delete();
+        }
+    }
+
+    @Test(expected = UnsupportedAudioFileException.class)
+    public void testGetAudioInputStreamFromMemoryUnsupported() throws IOException, UnsupportedAudioFileException {
+        final byte[] garbage = new byte[16 * 1024];
+        new Random(17).nextBytes(garbage);
+        new FFAudioFileReader().getAudioInputStream(ByteBuffer.wrap(garbage));
+    }
+
+    @Test
+    public void testBatchProbe() throws Exception {
+        final String[] filenames = {"test.flac", "test.wav", "test.mp3", "test.ogg", "test.aiff"};
+        final List<Path> paths = new ArrayList<>();
+        for (final String filename : filenames) {
+            final File file = File.createTempFile("testBatchProbe", filename);
+            extractFile(filename, file);
+            paths.add(file.toPath());
+        }
+        final File missing = File.createTempFile("testBatchProbe", "missing.wav");
+        missing.delete();
+        paths.add(2, missing.toPath());
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final FFBatchProbeResult batch = new FFAudioFileReader().getAudioFileFormats(paths, executor, 2);
+            System.out.println(batch);
+            assertEquals(paths.size(), batch.getResults().size());
+            assertEquals(filenames.length, batch.getSuccessCount());
+            assertEquals(1, batch.getFailureCount());
+            assertTrue(batch.getFilesPerSecond() > 0);
+            for (int i = 0; i < paths.size(); i++) {
+                final FFProbeResult result = batch.getResults().get(i);
+                assertEquals(paths.get(i), result.getPath());
+                if (i == 2) {
+                    assertFalse(result.isSuccess());
+                    assertNull(result.getAudioFileFormats());
+                    assertTrue(result.getException() instanceof FileNotFoundException);
+                } else {
+                    assertTrue(result.toString(), result.isSuccess());
+                    assertEquals(44100f, result.getAudioFileFormats()[0].getFormat().getSampleRate(), 0.0001f);
+                    // must have been put into the cache
+                    assertSame(result.getAudioFileFormats(), new FFAudioFileReader().getAudioFileFormats(paths.get(i).toFile()));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            for (final Path path : paths) {
+                path.toFile().delete();
+            }
+        }
+    }
+
+    @Test
+    public void testBatchProbeRecordsErrors() throws Exception {
+        final Path path = new File("testBatchProbeRecordsErrors.wav").toPath();
+        final FFBatchProbeResult batch = new FFAudioFileReader() {
+            @Override
+            public AudioFileFormat[] getAudioFileFormats(final File file) {
+                throw new StackOverflowError("testBatchProbeRecordsErrors");
+            }
+        }.getAudioFileFormats(Collections.singletonList(path), new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                command.run();
+            }
+        }, 1);
+        assertEquals(1, batch.getFailureCount());
+        final FFProbeResult result = batch.getResults().get(0);
+        assertEquals(path, result.getPath());
+        assertFalse(result.isSuccess());
+        assertTrue(result.getException() instanceof StackOverflowError);
+    }
+
+    @Test
+    public void testBatchProbeOnCallingThread() throws Exception {
+        final String filename = "test.wav";
+        final File file = File.createTempFile("testBatchProbeOnCallingThread", filename);
+        extractFile(filename, file);
+        try {
+            final FFBatchProbeResult batch = new FFAudioFileReader().getAudioFileFormats(Collections.singletonList(file.toPath()), new Executor() {
+                @Override
+                public void execute(final Runnable command) {
+                    command.run();
+                }
+            }, 1);
+            assertEquals(1, batch.getSuccessCount());
+            assertEquals(133632, batch.getResults().get(0).getAudioFileFormats()[0].getFrameLength());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBatchProbeIllegalParallelism() throws InterruptedException {
+        new FFAudioFileReader().getAudioFileFormats(Collections.<Path>emptyList(), Executors.newSingleThreadExecutor(), 0);
+    }
+
     @Test
     public void testGetAudioFileFormatFileAIFF() throws IOException, UnsupportedAudioFileException {
         // first copy the file from resources to actual location in temp
@@ -398,6 +1100,13 @@ public class TestFFAudioFileReader {
         assertEquals("file:/someDir/;:&=+@[]?/name.txt", url.toString());
     }
 
+    private static AudioFileFormat probeStream(final File file) throws IOException, UnsupportedAudioFileException {
+        // probing a stream bypasses the URL cache
+        try (final InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return new FFAudioFileReader().getAudioFileFormat(in);
+        }
+    }
+
     private void extractFile(final String filename, final File file) throws IOException {
         try (final InputStream in = getClass().getResourceAsStream(filename);
              OutputStream out = new FileOutputStream(file)) {
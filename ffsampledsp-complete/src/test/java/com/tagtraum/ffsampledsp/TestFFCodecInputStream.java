@@ -24,8 +24,10 @@ import org.junit.Test;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.*;
+import java.nio.ByteOrder;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
@@ -952,6 +954,124 @@ public class TestFFCodecInputStream {
         pcmStream.seek(500, TimeUnit.SECONDS);
     }
 
+    @Test
+    public void testConvertPlanarDecoderOutput() throws IOException, UnsupportedAudioFileException {
+        // Vorbis, MP3 and AAC decoders deliver planar float samples
+        assertConvertsLikeDecoder("testConvertPlanarDecoderOutput", "test.ogg", FFAudioFormat.FFEncoding.PCM_FLOAT, 32);
+        assertConvertsLikeDecoder("testConvertPlanarDecoderOutput", "test.mp3", FFAudioFormat.FFEncoding.PCM_FLOAT, 32);
+        assertConvertsLikeDecoder("testConvertPlanarDecoderOutput", "test_cbr.m4a", FFAudioFormat.FFEncoding.PCM_FLOAT, 32);
+        // the Apple Lossless decoder delivers planar 16 bit samples
+        assertConvertsLikeDecoder("testConvertPlanarDecoderOutput", "test.m4a", FFAudioFormat.FFEncoding.PCM_SIGNED, 16);
+    }
+
+    @Test
+    public void testConvertPackedDecoderOutput() throws IOException, UnsupportedAudioFileException {
+        // PCM and FLAC decoders deliver packed samples
+        assertConvertsToWholeFrames("testConvertPackedDecoderOutput", "test.wav", true);
+        assertConvertsToWholeFrames("testConvertPackedDecoderOutput", "test.flac", true);
+        assertConvertsToWholeFrames("testConvertPackedDecoderOutput", "test24bit.flac", true);
+    }
+
+    @Test
+    public void testConvertToSourceFormat() throws IOException, UnsupportedAudioFileException {
+        // 16 bit stereo WAV is decoded without resampling (passthrough)
+        final String filename = "test.wav";
+        final File file = File.createTempFile("testConvertToSourceFormat", filename);
+        extractFile(filename, file);
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try {
+            int justRead;
+            final byte[] buf = new byte[1024];
+            try (final FFURLInputStream in = new FFURLInputStream(file.toURI().toURL())) {
+                while ((justRead = in.read(buf)) != -1) {
+                    expected.write(buf, 0, justRead);
+                }
+            }
+            try (final AudioInputStream sourceStream = new FFAudioFileReader().getAudioInputStream(file)) {
+                final AudioFormat sourceFormat = sourceStream.getFormat();
+                final AudioFormat targetFormat = new AudioFormat(FFAudioFormat.FFEncoding.PCM_SIGNED, sourceFormat.getSampleRate(), 16,
+                    sourceFormat.getChannels(), 2 * sourceFormat.getChannels(), sourceFormat.getSampleRate(), sourceFormat.isBigEndian());
+                try (final FFCodecInputStream pcmStream = new FFCodecInputStream(targetFormat, (FFAudioInputStream) sourceStream)) {
+                    while ((justRead = pcmStream.read(buf)) != -1) {
+                        actual.write(buf, 0, justRead);
+                    }
+                }
+            }
+        } finally {
+            file.delete();
+        }
+        assertEquals(133632 * 4, expected.size());
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+
+    /**
+     * Converts to the packed variant of the decoder's own sample format, which must yield exactly
+     * the bytes {@link FFURLInputStream} delivers for the same file, i.e. correctly interleaved channels.
+     */
+    private void assertConvertsLikeDecoder(final String prefix, final String filename,
+                                           final AudioFormat.Encoding encoding, final int sampleSizeInBits) throws IOException, UnsupportedAudioFileException {
+        final File file = File.createTempFile(prefix, filename);
+        extractFile(filename, file);
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try {
+            int justRead;
+            final byte[] buf = new byte[1024];
+            try (final FFURLInputStream in = new FFURLInputStream(file.toURI().toURL())) {
+                while ((justRead = in.read(buf)) != -1) {
+                    expected.write(buf, 0, justRead);
+                }
+            }
+            try (final AudioInputStream sourceStream = new FFAudioFileReader().getAudioInputStream(file)) {
+                final AudioFormat sourceFormat = sourceStream.getFormat();
+                final int frameSize = sampleSizeInBits / 8 * sourceFormat.getChannels();
+                final AudioFormat targetFormat = new AudioFormat(encoding, sourceFormat.getSampleRate(), sampleSizeInBits,
+                    sourceFormat.getChannels(), frameSize, sourceFormat.getSampleRate(), ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN);
+                try (final FFCodecInputStream pcmStream = new FFCodecInputStream(targetFormat, (FFAudioInputStream) sourceStream)) {
+                    while ((justRead = pcmStream.read(buf)) != -1) {
+                        actual.write(buf, 0, justRead);
+                    }
+                }
+            }
+        } finally {
+            file.delete();
+        }
+        System.out.println(filename + ": Read " + actual.size() + " bytes.");
+        assertTrue(filename, expected.size() > 0);
+        assertArrayEquals(filename, expected.toByteArray(), actual.toByteArray());
+    }
+
+    private void assertConvertsToWholeFrames(final String prefix, final String filename, final boolean exactLength) throws IOException, UnsupportedAudioFileException {
+        final File file = File.createTempFile(prefix, filename);
+        extractFile(filename, file);
+        long bytesRead = 0;
+        final long frameLength;
+        final AudioFormat targetFormat;
+        try (final AudioInputStream sourceStream = new FFAudioFileReader().getAudioInputStream(file)) {
+            final AudioFormat sourceFormat = sourceStream.getFormat();
+            frameLength = sourceStream.getFrameLength();
+            targetFormat = new AudioFormat(FFAudioFormat.FFEncoding.PCM_SIGNED, sourceFormat.getSampleRate(), 16,
+                sourceFormat.getChannels(), 2 * sourceFormat.getChannels(), sourceFormat.getSampleRate(), false);
+            try (final FFCodecInputStream pcmStream = new FFCodecInputStream(targetFormat, (FFAudioInputStream) sourceStream)) {
+                int justRead;
+                final byte[] buf = new byte[1024];
+                while ((justRead = pcmStream.read(buf)) != -1) {
+                    assertTrue(justRead > 0);
+                    bytesRead += justRead;
+                }
+            }
+        } finally {
+            file.delete();
+        }
+        System.out.println(filename + ": Read " + bytesRead + " bytes.");
+        assertTrue(bytesRead > 0);
+        assertEquals(0, bytesRead % targetFormat.getFrameSize());
+        if (exactLength && frameLength != AudioSystem.NOT_SPECIFIED) {
+            assertEquals(frameLength * targetFormat.getFrameSize(), bytesRead);
+        }
+    }
+
     private void extractFile(final String filename, final File file) throws IOException {
         try (final InputStream in = getClass().getResourceAsStream(filename);
              final OutputStream out = new FileOutputStream(file)) {
@@ -0,0 +1,80 @@
+/*
+ * =================================================
+ * Copyright 2026 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.ffsampledsp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * TestFFDirectBufferPool.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class TestFFDirectBufferPool {
+
+    @Test
+    public void testAcquireRoundsUpToSizeClass() {
+        final FFDirectBufferPool pool = new FFDirectBufferPool(1024 * 1024, 4, 64 * 1024);
+        final ByteBuffer buffer = pool.acquire(5000);
+        assertTrue(buffer.isDirect());
+        assertEquals(8192, buffer.capacity());
+        assertEquals(0, buffer.position());
+        assertEquals(8192, buffer.limit());
+    }
+
+    @Test
+    public void testReleasedBufferIsReused() {
+        final FFDirectBufferPool pool = new FFDirectBufferPool(1024 * 1024, 4, 64 * 1024);
+        final ByteBuffer buffer = pool.acquire(32 * 1024);
+        buffer.putInt(5);
+        pool.release(buffer);
+        assertEquals(32 * 1024, pool.getIdleBytes());
+
+        final ByteBuffer reused = pool.acquire(20 * 1024);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(0, pool.getIdleBytes());
+    }
+
+    @Test
+    public void testLargeBuffersAreNotPooled() {
+        final FFDirectBufferPool pool = new FFDirectBufferPool(1024 * 1024, 4, 64 * 1024);
+        final ByteBuffer buffer = pool.acquire(100 * 1000);
+        assertEquals(100 * 1000, buffer.capacity());
+        pool.release(buffer);
+        assertEquals(0, pool.getIdleBytes());
+    }
+
+    @Test
+    public void testMaxBuffersPerClass() {
+        final FFDirectBufferPool pool = new FFDirectBufferPool(1024 * 1024, 2, 64 * 1024);
+        pool.release(pool.acquire(4096));
+        pool.release(ByteBuffer.allocateDirect(4096));
+        pool.release(ByteBuffer.allocateDirect(4096));
+        assertEquals(2 * 4096, pool.getIdleBytes());
+    }
+
+    @Test
+    public void testMaxBytes() {
+        final FFDirectBufferPool pool = new FFDirectBufferPool(40 * 1024, 8, 64 * 1024);
+        pool.release(ByteBuffer.allocateDirect(32 * 1024));
+        pool.release(ByteBuffer.allocateDirect(32 * 1024));
+        pool.release(ByteBuffer.allocateDirect(8 * 1024));
+        assertEquals(40 * 1024, pool.getIdleBytes());
+    }
+
+    @Test
+    public void testHeapBuffersAreIgnored() {
+        final FFDirectBufferPool pool = new FFDirectBufferPool(1024 * 1024, 4, 64 * 1024);
+        pool.release(ByteBuffer.allocate(4096));
+        pool.release(null);
+        assertEquals(0, pool.getIdleBytes());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ */
+package com.tagtraum.ffsampledsp;
+
+import org.junit.Test;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * TestFFLockStatistics.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class TestFFLockStatistics {
+
+    @Test
+    public void testBucket() {
+        assertEquals(0, FFLockStatistics.bucket(0));
+        assertEquals(0, FFLockStatistics.bucket(999));
+        assertEquals(0, FFLockStatistics.bucket(1999));
+        assertEquals(1, FFLockStatistics.bucket(2000));
+        assertEquals(1, FFLockStatistics.bucket(3999));
+        assertEquals(2, FFLockStatistics.bucket(4000));
+        assertEquals(10, FFLockStatistics.bucket(1024 * 1000));
+        assertEquals(FFLockStatistics.BUCKETS - 1, FFLockStatistics.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testRecord() {
+        final FFLockStatistics statistics = new FFLockStatistics("test");
+        statistics.recordWait(500);
+        statistics.recordHold(5000);
+        statistics.recordWait(3000);
+        statistics.recordHold(1000);
+
+        assertEquals("test", statistics.getCallSite());
+        assertEquals(2, statistics.getAcquisitions());
+        assertEquals(3500, statistics.getTotalWaitNanos());
+        assertEquals(3000, statistics.getMaxWaitNanos());
+        assertEquals(6000, statistics.getTotalHoldNanos());
+        assertEquals(5000, statistics.getMaxHoldNanos());
+        assertEquals(1, statistics.getWaitHistogram()[0]);
+        assertEquals(1, statistics.getWaitHistogram()[1]);
+        assertEquals(1, statistics.getHoldHistogram()[0]);
+        assertEquals(1, statistics.getHoldHistogram()[2]);
+
+        statistics.reset();
+        assertEquals(0, statistics.getAcquisitions());
+        assertEquals(0, statistics.getTotalWaitNanos());
+        assertEquals(0, statistics.getMaxHoldNanos());
+        assertEquals(0, statistics.getHoldHistogram()[2]);
+    }
+
+    @Test
+    public void testForCallSite() {
+        final FFLockStatistics statistics = FFLockStatistics.forCallSite("TestFFLockStatistics.testForCallSite");
+        assertSame(statistics, FFLockStatistics.forCallSite("TestFFLockStatistics.testForCallSite"));
+        assertSame(statistics, FFLockStatistics.get("TestFFLockStatistics.testForCallSite"));
+        assertTrue(FFLockStatistics.getAll().contains(statistics));
+        assertNull(FFLockStatistics.get("does not exist"));
+    }
+
+    @Test
+    public void testOpenIsRecorded() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.flac";
+        final File file = File.createTempFile("testOpenIsRecorded", filename);
+        TestFFURLInputStream.extractFile(filename, file);
+        try {
+            final FFLockStatistics statistics = FFLockStatistics.forCallSite("FFURLInputStream.open");
+            final long acquisitions = statistics.getAcquisitions();
+            final long totalHoldNanos = statistics.getTotalHoldNanos();
+            new FFURLInputStream(file.toURI().toURL()).close();
+            assertEquals(acquisitions + 1, statistics.getAcquisitions());
+            assertTrue(statistics.getTotalHoldNanos() > totalHoldNanos);
+            System.out.println(statistics);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ */
+package com.tagtraum.ffsampledsp;
+
+import org.junit.Test;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static com.tagtraum.ffsampledsp.TestFFStreamInputStream.extractFile;
+import static org.junit.Assert.*;
+
+/**
+ * TestFFMemoryInputStream.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class TestFFMemoryInputStream {
+
+    @Test
+    public void testReadThroughMappedFiles() throws IOException, UnsupportedAudioFileException {
+        for (final String filename : new String[]{"test.mp3", "test.flac", "test.ogg", "test.m4a", "test.wav"}) {
+            final File file = File.createTempFile("testReadThroughMappedFiles", filename);
+            extractFile(filename, file);
+            try {
+                final int expected = readFully(new FFURLInputStream(FFAudioFileReader.fileToURL(file)));
+                final int actual = readFully(new FFMemoryInputStream(FFMemoryInputStream.map(file.toPath())));
+                assertEquals(filename, expected, actual);
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testSeek() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.wav";
+        final File file = File.createTempFile("testSeek", filename);
+        extractFile(filename, file);
+        try (final FFMemoryInputStream in = new FFMemoryInputStream(FFMemoryInputStream.map(file.toPath()))) {
+            assertTrue(in.isSeekable());
+            final byte[] first = new byte[4096];
+            new DataInputStream(in).readFully(first);
+            in.seek(1, TimeUnit.SECONDS);
+            assertTrue(in.read(new byte[4096]) > 0);
+            in.seek(0, TimeUnit.SECONDS);
+            final byte[] again = new byte[4096];
+            new DataInputStream(in).readFully(again);
+            assertArrayEquals(first, again);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testBufferPosition() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.mp3";
+        final File file = File.createTempFile("testBufferPosition", filename);
+        extractFile(filename, file);
+        try {
+            final ByteBuffer mapped = FFMemoryInputStream.map(file.toPath());
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(mapped.capacity() + 100);
+            buffer.position(100);
+            buffer.put(mapped);
+            buffer.position(100);
+            final int expected = readFully(new FFMemoryInputStream(FFMemoryInputStream.map(file.toPath())));
+            assertEquals(expected, readFully(new FFMemoryInputStream(buffer)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testHeapBuffers() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.ogg";
+        final File file = File.createTempFile("testHeapBuffers", filename);
+        extractFile(filename, file);
+        try {
+            final byte[] data = Files.readAllBytes(file.toPath());
+            final int expected = readFully(new FFMemoryInputStream(FFMemoryInputStream.map(file.toPath())));
+            assertEquals(expected, readFully(new FFMemoryInputStream(data)));
+
+            // array with offset
+            final byte[] padded = new byte[data.length + 200];
+            System.arraycopy(data, 0, padded, 100, data.length);
+            final ByteBuffer slice = ByteBuffer.wrap(padded, 50, data.length + 100);
+            slice.position(100);
+            slice.limit(100 + data.length);
+            assertEquals(expected, readFully(new FFMemoryInputStream(slice.slice())));
+
+            // read-only buffers have no accessible array
+            assertEquals(expected, readFully(new FFMemoryInputStream(ByteBuffer.wrap(data).asReadOnlyBuffer())));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSeekHeapBuffer() throws IOException, UnsupportedAudioFileException {
+        final byte[] data;
+        try (final InputStream in = getClass().getResourceAsStream("test.wav")) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[1024*64];
+            int justRead;
+            while ((justRead = in.read(buf)) != -1) {
+                out.write(buf, 0, justRead);
+            }
+            data = out.toByteArray();
+        }
+        try (final FFMemoryInputStream in = new FFMemoryInputStream(data)) {
+            final byte[] first = new byte[4096];
+            new DataInputStream(in).readFully(first);
+            in.seek(2, TimeUnit.SECONDS);
+            assertTrue(in.read(new byte[4096]) > 0);
+            in.seek(0, TimeUnit.SECONDS);
+            final byte[] again = new byte[4096];
+            new DataInputStream(in).readFully(again);
+            assertArrayEquals(first, again);
+        }
+    }
+
+    private static int readFully(final FFNativePeerInputStream in) throws IOException {
+        int bytesRead = 0;
+        try {
+            int justRead;
+            final byte[] buf = new byte[1024*8];
+            while ((justRead = in.read(buf)) != -1) {
+                assertTrue(justRead > 0);
+                bytesRead += justRead;
+            }
+        } finally {
+            in.close();
+        }
+        return bytesRead;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ */
+package com.tagtraum.ffsampledsp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * TestFFReadAheadChannel.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class TestFFReadAheadChannel {
+
+    @Test
+    public void testReadAll() throws IOException {
+        final byte[] data = new byte[100 * 1000];
+        new Random(5).nextBytes(data);
+        // small capacity, so that the ring buffer wraps around many times
+        try (final FFReadAheadChannel channel = new FFReadAheadChannel(new ByteArrayInputStream(data), 1000, 100, 900)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(data.length);
+            final ByteBuffer chunk = ByteBuffer.allocate(333);
+            int justRead;
+            while ((justRead = channel.read(chunk)) != -1) {
+                assertTrue(justRead > 0);
+                assertTrue(channel.available() <= channel.getHighWatermark());
+                chunk.flip();
+                buffer.put(chunk);
+                chunk.clear();
+            }
+            assertArrayEquals(data, buffer.array());
+            assertEquals(-1, channel.read(chunk));
+        }
+    }
+
+    @Test
+    public void testPausesAtHighWatermark() throws IOException, InterruptedException {
+        try (final FFReadAheadChannel channel = new FFReadAheadChannel(new ByteArrayInputStream(new byte[10000]), 1000, 200, 800)) {
+            waitForAvailable(channel, 800);
+            Thread.sleep(50);
+            assertEquals(800, channel.available());
+
+            // draining to just above the low watermark does not resume reading
+            channel.read(ByteBuffer.allocate(500));
+            Thread.sleep(50);
+            assertEquals(300, channel.available());
+
+            // draining to the low watermark does
+            channel.read(ByteBuffer.allocate(100));
+            waitForAvailable(channel, 800);
+        }
+    }
+
+    @Test
+    public void testErrorIsReportedAfterBufferedData() throws IOException {
+        final InputStream failing = new InputStream() {
+            private int count;
+
+            @Override
+            public int read() throws IOException {
+                if (count++ < 10) return count;
+                throw new IOException("Expected");
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                if (count < 10) return super.read(b, off, Math.min(len, 10 - count));
+                return read();
+            }
+        };
+        try (final FFReadAheadChannel channel = new FFReadAheadChannel(failing, 100, 10, 90)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(100);
+            while (buffer.position() < 10) {
+                channel.read(buffer);
+            }
+            try {
+                channel.read(buffer);
+                fail("Expected IOException");
+            } catch (IOException e) {
+                assertEquals("Expected", e.getCause().getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testCloseDoesNotCloseSource() throws IOException {
+        final boolean[] closed = new boolean[1];
+        final InputStream in = new ByteArrayInputStream(new byte[10]) {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+            }
+        };
+        final FFReadAheadChannel channel = new FFReadAheadChannel(in, 100, 10, 90);
+        channel.close();
+        assertFalse(channel.isOpen());
+        assertFalse(closed[0]);
+        try {
+            channel.read(ByteBuffer.allocate(10));
+            fail("Expected ClosedChannelException");
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRingIsReleasedAfterPendingRead() throws IOException, InterruptedException {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final InputStream blocking = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                reading.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return 1;
+            }
+        };
+        final FFReadAheadChannel channel = new FFReadAheadChannel(blocking, 100, 10, 90);
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+        channel.close();
+        // the background thread is still writing into the ring buffer
+        Thread.sleep(50);
+        assertFalse(channel.isRingReleased());
+
+        proceed.countDown();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!channel.isRingReleased()) {
+            if (System.currentTimeMillis() > deadline) fail("Timed out waiting for the ring buffer to be released: " + channel);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadWatermarks() {
+        new FFReadAheadChannel(new ByteArrayInputStream(new byte[0]), 100, 90, 90);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHighWatermarkAboveCapacity() {
+        new FFReadAheadChannel(new ByteArrayInputStream(new byte[0]), 100, 10, 101);
+    }
+
+    private static void waitForAvailable(final FFReadAheadChannel channel, final int bytes) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (channel.available() < bytes) {
+            if (System.currentTimeMillis() > deadline) fail("Timed out waiting for " + bytes + " bytes: " + channel);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -26,8 +26,12 @@ import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.*;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
 import java.util.Random;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.*;
 
@@ -67,6 +71,99 @@ public class TestFFStreamInputStream {
         assertTrue(bytesRead != 0);
     }
 
+    @Test
+    public void testReadThroughChannel() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.mp3";
+        final File file = File.createTempFile("testReadThroughChannel", filename);
+        extractFile(filename, file);
+        try {
+            final int expected = readFully(new FFStreamInputStream(new FileInputStream(file)));
+            for (final int readBufferSize : new int[] {4 * 1024, 32 * 1024, 256 * 1024}) {
+                final FFStreamInputStream in = new FFStreamInputStream(FileChannel.open(file.toPath()),
+                    0, 1, readBufferSize, null, 0, 0);
+                assertEquals("Read buffer size " + readBufferSize, expected, readFully(in));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testReadThroughWithDecodeAhead() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.mp3";
+        final File file = File.createTempFile("testReadThroughWithDecodeAhead", filename);
+        extractFile(filename, file);
+        try {
+            final int expected = readFully(new FFStreamInputStream(new FileInputStream(file)));
+            // the stream closes itself at its end, audio decoded ahead must still be readable
+            final FFStreamInputStream in = new FFStreamInputStream(new FileInputStream(file));
+            in.setDecodeAhead(2);
+            assertEquals(expected, readFully(in));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSeekChannel() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.wav";
+        final File file = File.createTempFile("testSeekChannel", filename);
+        extractFile(filename, file);
+        try (final FFStreamInputStream in = new FFStreamInputStream(FileChannel.open(file.toPath()), 0, 1, 32 * 1024, null, 0, 0)) {
+            assertTrue(in.isSeekable());
+            final byte[] first = new byte[4096];
+            new DataInputStream(in).readFully(first);
+            // read to the end, which must not close the stream
+            final byte[] buf = new byte[1024*8];
+            while (in.read(buf) != -1) {
+                // skip
+            }
+            assertTrue(in.isOpen());
+
+            in.seek(0, TimeUnit.MILLISECONDS);
+            final byte[] again = new byte[4096];
+            new DataInputStream(in).readFully(again);
+            assertArrayEquals(first, again);
+
+            in.seek(1, TimeUnit.SECONDS);
+            assertTrue(in.read(buf) > 0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadReadBufferSize() throws IOException, UnsupportedAudioFileException {
+        new FFStreamInputStream(Channels.newChannel(new ByteArrayInputStream(new byte[0])), 0, 1, 0, null, 0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonBlockingChannel() throws IOException, UnsupportedAudioFileException {
+        final Pipe pipe = Pipe.open();
+        try {
+            pipe.source().configureBlocking(false);
+            new FFStreamInputStream(pipe.source(), 0, 1, 32 * 1024, null, 0, 0);
+        } finally {
+            pipe.source().close();
+            pipe.sink().close();
+        }
+    }
+
+    private static int readFully(final FFStreamInputStream in) throws IOException {
+        int bytesRead = 0;
+        try {
+            int justRead;
+            final byte[] buf = new byte[1024*8];
+            while ((justRead = in.read(buf)) != -1) {
+                assertTrue(justRead > 0);
+                bytesRead += justRead;
+            }
+        } finally {
+            in.close();
+        }
+        return bytesRead;
+    }
+
     @Test
     public void testReadThroughOggFile() throws IOException, UnsupportedAudioFileException {
         final String filename = "test.ogg";
@@ -360,6 +457,78 @@ public class TestFFStreamInputStream {
     }
 
 
+    @Test
+    public void testOpenWhileAnotherOpenIsBlockedInIO() throws Exception {
+        final String filename = "test.wav";
+        final File file = File.createTempFile("testOpenWhileAnotherOpenIsBlockedInIO", filename);
+        extractFile(filename, file);
+
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean lockHeldWhileReading = new AtomicBoolean();
+        final InputStream stalled = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                if (FFGlobalLock.LOCK.isHeldByCurrentThread()) lockHeldWhileReading.set(true);
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return -1;
+            }
+        };
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<?> blocked = executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    try (final FFStreamInputStream ignored = new FFStreamInputStream(stalled)) {
+                        return null;
+                    } catch (IOException | UnsupportedAudioFileException e) {
+                        // expected, the stream is empty
+                        return null;
+                    }
+                }
+            });
+            assertTrue(reading.await(30, TimeUnit.SECONDS));
+
+            // while the first open is stuck reading, opening and decoding another stream must succeed
+            final Future<Integer> decoded = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int bytesRead = 0;
+                    try (final FFURLInputStream in = new FFURLInputStream(file.toURI().toURL())) {
+                        int justRead;
+                        final byte[] buf = new byte[1024];
+                        while ((justRead = in.read(buf)) != -1) {
+                            bytesRead += justRead;
+                        }
+                    }
+                    return bytesRead;
+                }
+            });
+            assertEquals(133632, decoded.get(30, TimeUnit.SECONDS) / 4);
+
+            release.countDown();
+            blocked.get(30, TimeUnit.SECONDS);
+            assertFalse("Global lock must not be held while reading from the source", lockHeldWhileReading.get());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+            file.delete();
+        }
+    }
+
+
     static void extractFile(final String filename, final File file) throws IOException {
         try (final InputStream in = TestFFStreamInputStream.class.getResourceAsStream(filename);
              OutputStream out = new FileOutputStream(file)) {
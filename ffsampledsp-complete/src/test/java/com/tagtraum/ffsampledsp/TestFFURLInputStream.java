@@ -20,13 +20,17 @@
  */
 package com.tagtraum.ffsampledsp;
 
+import org.junit.Ignore;
 import org.junit.Test;
 
 import javax.sound.sampled.*;
 import java.io.*;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
 import java.util.Random;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.*;
 
 import static org.junit.Assert.*;
 
@@ -37,6 +41,7 @@ import static org.junit.Assert.*;
  */
 public class TestFFURLInputStream {
 
+    private static final int[] FILL_TARGETS = {1, 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
 
     @Test
     public void testReadThroughMP3File() throws IOException, UnsupportedAudioFileException {
@@ -50,6 +55,93 @@ public class TestFFURLInputStream {
         assertEquals(1078272, bytesSkipped);
     }
 
+    @Test
+    public void testReadThroughMP3FileWithChannel() throws IOException, UnsupportedAudioFileException {
+        final int bytesRead = readThroughFileWithChannel("testReadThroughMP3FileWithChannel", "test.mp3", ByteBuffer.allocateDirect(1024 * 7));
+        assertEquals(1078272, bytesRead);
+    }
+
+    @Test
+    public void testReadThroughWavFileWithHeapChannel() throws IOException, UnsupportedAudioFileException {
+        final int bytesRead = readThroughFileWithChannel("testReadThroughWavFileWithHeapChannel", "test.wav", ByteBuffer.allocate(1023));
+        assertEquals(534528, bytesRead);
+    }
+
+    @Test
+    public void testChannelAndStreamReadSameData() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.mp3";
+        final File file = File.createTempFile("testChannelAndStreamReadSameData", filename);
+        extractFile(filename, file);
+        try (final FFURLInputStream streamIn = new FFURLInputStream(file.toURI().toURL());
+             final FFURLInputStream channelIn = new FFURLInputStream(file.toURI().toURL())) {
+            final byte[] streamBuf = new byte[4096];
+            final ByteBuffer channelBuf = ByteBuffer.allocateDirect(4096);
+            int justRead;
+            while ((justRead = streamIn.read(streamBuf)) != -1) {
+                channelBuf.clear();
+                channelBuf.limit(justRead);
+                assertEquals(justRead, channelIn.read(channelBuf));
+                channelBuf.flip();
+                for (int i = 0; i < justRead; i++) {
+                    assertEquals(streamBuf[i], channelBuf.get(i));
+                }
+            }
+            channelBuf.clear();
+            assertEquals(-1, channelIn.read(channelBuf));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testDecodeMP3FileIntoBuffer() throws IOException, UnsupportedAudioFileException {
+        final int bytesRead = decodeThroughFile("testDecodeMP3FileIntoBuffer", "test.mp3", ByteBuffer.allocateDirect(1024 * 64));
+        assertEquals(1078272, bytesRead);
+    }
+
+    @Test
+    public void testDecodeMP3FileIntoSmallBuffer() throws IOException, UnsupportedAudioFileException {
+        // smaller than a decoded packet, forces the use of the internal buffer
+        final int bytesRead = decodeThroughFile("testDecodeMP3FileIntoSmallBuffer", "test.mp3", ByteBuffer.allocateDirect(1000));
+        assertEquals(1078272, bytesRead);
+    }
+
+    @Test
+    public void testDecodeIntoAndReadSameData() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.mp3";
+        final File file = File.createTempFile("testDecodeIntoAndReadSameData", filename);
+        extractFile(filename, file);
+        try (final FFURLInputStream readIn = new FFURLInputStream(file.toURI().toURL());
+             final FFURLInputStream decodeIn = new FFURLInputStream(file.toURI().toURL())) {
+            final ByteBuffer decodeBuf = ByteBuffer.allocateDirect(1024 * 64);
+            int justDecoded;
+            while ((justDecoded = decodeIn.decodeInto(decodeBuf)) != -1) {
+                decodeBuf.flip();
+                final byte[] readBuf = new byte[justDecoded];
+                assertEquals(justDecoded, readIn.read(readBuf));
+                for (int i = 0; i < justDecoded; i++) {
+                    assertEquals(readBuf[i], decodeBuf.get(i));
+                }
+                decodeBuf.clear();
+            }
+            assertEquals(-1, readIn.read());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeIntoHeapBuffer() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.mp3";
+        final File file = File.createTempFile("testDecodeIntoHeapBuffer", filename);
+        extractFile(filename, file);
+        try (final FFURLInputStream in = new FFURLInputStream(file.toURI().toURL())) {
+            in.decodeInto(ByteBuffer.allocate(1024));
+        } finally {
+            file.delete();
+        }
+    }
+
     @Test
     public void testReadThroughVBRMP3File() throws IOException, UnsupportedAudioFileException {
         final int bytesRead = readThroughFile("testReadThroughVBRMP3File", "test_vbr130.mp3");
@@ -576,6 +668,147 @@ public class TestFFURLInputStream {
         }
     }
 
+    @Test
+    public void testDecodeAheadReadsSameData() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.mp3";
+        final File file = File.createTempFile("testDecodeAheadReadsSameData", filename);
+        extractFile(filename, file);
+        try (final FFURLInputStream in = new FFURLInputStream(file.toURI().toURL());
+             final FFURLInputStream decodeAheadIn = new FFURLInputStream(file.toURI().toURL())) {
+            decodeAheadIn.setDecodeAhead(3);
+            assertEquals(3, decodeAheadIn.getDecodeAhead());
+            final DataInputStream dataIn = new DataInputStream(decodeAheadIn);
+            final byte[] buf = new byte[1000];
+            final byte[] decodeAheadBuf = new byte[1000];
+            int bytesRead = 0;
+            int justRead;
+            while ((justRead = in.read(buf)) != -1) {
+                dataIn.readFully(decodeAheadBuf, 0, justRead);
+                for (int i = 0; i < justRead; i++) {
+                    assertEquals(buf[i], decodeAheadBuf[i]);
+                }
+                bytesRead += justRead;
+            }
+            assertEquals(1078272, bytesRead);
+            assertEquals(-1, decodeAheadIn.read(decodeAheadBuf));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSeekWithDecodeAhead() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.wav";
+        final File file = File.createTempFile("testSeekWithDecodeAhead", filename);
+        extractFile(filename, file);
+
+        final byte[] buf = new byte[534528]; // 10sec
+        try (final FFURLInputStream in = new FFURLInputStream(file.toURI().toURL())) {
+            in.setDecodeAhead(2);
+            new DataInputStream(in).readFully(buf, 0, 4096);
+            in.seek(2, TimeUnit.SECONDS);
+            final int twoSecondsInBytes = 44100 * 2 * 4;
+            assertEquals(buf.length - twoSecondsInBytes, in.read(buf));
+            assertEquals(-1, in.read(buf));
+            // seeking after the end resumes decoding ahead
+            in.seek(1, TimeUnit.SECONDS);
+            assertEquals(buf.length - 44100 * 4, in.read(buf));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSetDecodeAheadAfterRead() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.wav";
+        final File file = File.createTempFile("testSetDecodeAheadAfterRead", filename);
+        extractFile(filename, file);
+        try (final FFURLInputStream in = new FFURLInputStream(file.toURI().toURL())) {
+            in.setDecodeAhead(2);
+            in.read();
+            in.setDecodeAhead(4);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testReadAfterCloseWithDecodeAhead() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.wav";
+        final File file = File.createTempFile("testReadAfterCloseWithDecodeAhead", filename);
+        extractFile(filename, file);
+        try {
+            final FFURLInputStream in = new FFURLInputStream(file.toURI().toURL());
+            in.setDecodeAhead(2);
+            assertTrue(in.read(new byte[1024]) > 0);
+            in.close();
+            assertEquals(-1, in.read(new byte[1024]));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testDecodeAheadReleasesBuffersOnClose() throws Exception {
+        final String filename = "test.wav";
+        final File file = File.createTempFile("testDecodeAheadReleasesBuffersOnClose", filename);
+        extractFile(filename, file);
+        final FFDirectBufferPool pool = FFDirectBufferPool.getInstance();
+        try {
+            final FFURLInputStream in = new FFURLInputStream(file.toURI().toURL());
+            in.setDecodeAhead(2);
+            assertTrue(in.read(new byte[1024]) > 0);
+            final long idleBytes = pool.getIdleBytes();
+            in.close();
+            // depth + 1 buffers of at least twice the fill target, the worker may release its last one a little later
+            final long expected = idleBytes + 3L * 2 * in.getFillTarget();
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (pool.getIdleBytes() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(pool.getIdleBytes() >= expected);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testDecodeAheadWorkerStopsWhenStreamIsNotClosed() throws Exception {
+        final String filename = "test.wav";
+        final File file = File.createTempFile("testDecodeAheadWorkerStopsWhenStreamIsNotClosed", filename);
+        extractFile(filename, file);
+        try {
+            final Set<Thread> before = decodeAheadWorkers();
+            FFURLInputStream in = new FFURLInputStream(file.toURI().toURL());
+            in.setDecodeAhead(2);
+            assertTrue(in.read(new byte[1024]) > 0);
+            final Set<Thread> workers = decodeAheadWorkers();
+            workers.removeAll(before);
+            assertEquals(1, workers.size());
+            final Thread worker = workers.iterator().next();
+
+            // forget the stream without closing it
+            in = null;
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (worker.isAlive() && System.currentTimeMillis() < deadline) {
+                System.gc();
+                System.runFinalization();
+                worker.join(100);
+            }
+            assertFalse("Worker should stop once the stream has been finalized", worker.isAlive());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static Set<Thread> decodeAheadWorkers() {
+        final Set<Thread> workers = new HashSet<>();
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("FFDecodeAhead".equals(thread.getName())) workers.add(thread);
+        }
+        return workers;
+    }
+
     @Test(expected = IOException.class)
     public void testSeekAfterClose() throws IOException, UnsupportedAudioFileException {
         final String filename = "test.flac";
@@ -612,6 +845,127 @@ public class TestFFURLInputStream {
     }
 
 
+    @Test
+    public void testMultithreadedDecodingYieldsSameData() throws IOException, UnsupportedAudioFileException {
+        // FLAC and ALAC decoders support frame threading
+        for (final String filename : new String[]{"test.flac", "test_48k_alac.m4a", "test.mp3"}) {
+            final File file = File.createTempFile("testMultithreadedDecodingYieldsSameData", filename);
+            extractFile(filename, file);
+            try {
+                final byte[] singleThreaded = decodeFully(file.toURI().toURL(), 1);
+                assertTrue(singleThreaded.length > 0);
+                assertArrayEquals(filename, singleThreaded, decodeFully(file.toURI().toURL(), 4));
+                assertArrayEquals(filename, singleThreaded, decodeFully(file.toURI().toURL(), 0));
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeDecoderThreads() throws IOException, UnsupportedAudioFileException {
+        new FFURLInputStream(new URL("file:///does/not/matter.wav"), 0, -1);
+    }
+
+    @Test
+    public void testFillTargetYieldsSameData() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.mp3";
+        final File file = File.createTempFile("testFillTargetYieldsSameData", filename);
+        extractFile(filename, file);
+        try {
+            final URL url = file.toURI().toURL();
+            // one packet per fill
+            final byte[] reference = decodeFully(url, 1, 1);
+            assertTrue(reference.length > 0);
+            for (final int fillTarget : FILL_TARGETS) {
+                assertArrayEquals("Fill target " + fillTarget, reference, decodeFully(url, 1, fillTarget));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void testFillTargetThroughput() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.mp3";
+        final File file = File.createTempFile("testFillTargetThroughput", filename);
+        extractFile(filename, file);
+        try {
+            final URL url = file.toURI().toURL();
+            for (final int fillTarget : FILL_TARGETS) {
+                long bestNanos = Long.MAX_VALUE;
+                int length = 0;
+                for (int i = 0; i < 5; i++) {
+                    final long start = System.nanoTime();
+                    length = decodeFully(url, 1, fillTarget).length;
+                    bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+                }
+                System.out.printf("Fill target %7d bytes: %6.1f MB/s%n", fillTarget, length * 1000.0 / bestNanos);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalFillTarget() throws IOException, UnsupportedAudioFileException {
+        final String filename = "test.mp3";
+        final File file = File.createTempFile("testIllegalFillTarget", filename);
+        extractFile(filename, file);
+        try (final FFURLInputStream in = new FFURLInputStream(file.toURI().toURL())) {
+            in.setFillTarget(0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCloseDoesNotRequireGlobalLock() throws Exception {
+        final String filename = "test.flac";
+        final File file = File.createTempFile("testCloseDoesNotRequireGlobalLock", filename);
+        extractFile(filename, file);
+        final FFURLInputStream in = new FFURLInputStream(file.toURI().toURL());
+        assertTrue(in.read() != -1);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        FFGlobalLock.LOCK.lock();
+        try {
+            final Future<?> future = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    in.close();
+                    return null;
+                }
+            });
+            // would time out, if closing waited for the global lock
+            future.get(30, TimeUnit.SECONDS);
+            assertFalse(in.isOpen());
+        } finally {
+            FFGlobalLock.LOCK.unlock();
+            executor.shutdownNow();
+            in.close();
+            file.delete();
+        }
+    }
+
+    private static byte[] decodeFully(final URL url, final int decoderThreads) throws IOException, UnsupportedAudioFileException {
+        return decodeFully(url, decoderThreads, FFNativePeerInputStream.DEFAULT_FILL_TARGET);
+    }
+
+    private static byte[] decodeFully(final URL url, final int decoderThreads, final int fillTarget) throws IOException, UnsupportedAudioFileException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final FFURLInputStream in = new FFURLInputStream(url, 0, decoderThreads)) {
+            in.setFillTarget(fillTarget);
+            int justRead;
+            final byte[] buf = new byte[1024 * 16];
+            while ((justRead = in.read(buf)) != -1) {
+                out.write(buf, 0, justRead);
+            }
+        }
+        return out.toByteArray();
+    }
+
     private int readThroughFile(final String prefix, final String filename) throws IOException, UnsupportedAudioFileException {
         final File file = File.createTempFile(prefix, filename);
         extractFile(filename, file);
@@ -633,6 +987,50 @@ public class TestFFURLInputStream {
         return bytesRead;
     }
 
+    private int readThroughFileWithChannel(final String prefix, final String filename, final ByteBuffer buf) throws IOException, UnsupportedAudioFileException {
+        final File file = File.createTempFile(prefix, filename);
+        extractFile(filename, file);
+        int bytesRead = 0;
+
+        final AudioFileFormat audioFileFormat = new FFAudioFileReader().getAudioFileFormat(file);
+
+        try (final FFAudioInputStream in = new FFAudioInputStream(new FFURLInputStream(file.toURI().toURL()), audioFileFormat.getFormat(), audioFileFormat.getFrameLength())) {
+            int justRead;
+            while ((justRead = in.read(buf)) != -1) {
+                if (audioFileFormat.getFormat().getFrameSize() > 0) {
+                    assertEquals(0, justRead % audioFileFormat.getFormat().getFrameSize());
+                }
+                bytesRead += justRead;
+                buf.clear();
+            }
+        } finally {
+            file.delete();
+        }
+        System.out.println("Read " + bytesRead + " bytes.");
+        return bytesRead;
+    }
+
+    private int decodeThroughFile(final String prefix, final String filename, final ByteBuffer buf) throws IOException, UnsupportedAudioFileException {
+        final File file = File.createTempFile(prefix, filename);
+        extractFile(filename, file);
+        int bytesRead = 0;
+
+        final AudioFileFormat audioFileFormat = new FFAudioFileReader().getAudioFileFormat(file);
+
+        try (final FFAudioInputStream in = new FFAudioInputStream(new FFURLInputStream(file.toURI().toURL()), audioFileFormat.getFormat(), audioFileFormat.getFrameLength())) {
+            int justRead;
+            while ((justRead = in.decodeInto(buf)) != -1) {
+                assertEquals(justRead, buf.position());
+                bytesRead += justRead;
+                buf.clear();
+            }
+        } finally {
+            file.delete();
+        }
+        System.out.println("Decoded " + bytesRead + " bytes.");
+        return bytesRead;
+    }
+
     private int skipThroughFile(final String prefix, final String filename) throws IOException, UnsupportedAudioFileException {
         final File file = File.createTempFile(prefix, filename);
         extractFile(filename, file);
@@ -24,7 +24,10 @@ import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Collections;
@@ -62,6 +65,19 @@ public class FFAudioFileFormat extends AudioFileFormat {
 
 
     private final HashMap<String, Object> properties;
+    // constructor arguments, kept for FFAudioFileFormatIndex
+    private final String url;
+    private final int codecId;
+    private final float sampleRate;
+    private final int sampleSize;
+    private final int channels;
+    private final int frameSize;
+    private final float frameRate;
+    private final boolean bigEndian;
+    private final long durationInMicroSeconds;
+    private final int bitRate;
+    private final Boolean vbr;
+    private final boolean encrypted;
 
     public FFAudioFileFormat(final String url, final int codecId,
                              final float sampleRate, final int sampleSize, final int channels, final int frameSize,
@@ -79,6 +95,68 @@ public class FFAudioFileFormat extends AudioFileFormat {
         if (durationInMicroSeconds > 0) {
             this.properties.put("duration", durationInMicroSeconds);
         }
+        this.url = url;
+        this.codecId = codecId;
+        this.sampleRate = sampleRate;
+        this.sampleSize = sampleSize;
+        this.channels = channels;
+        this.frameSize = frameSize;
+        this.frameRate = frameRate;
+        this.bigEndian = bigEndian;
+        this.durationInMicroSeconds = durationInMicroSeconds;
+        this.bitRate = bitRate;
+        this.vbr = vbr;
+        this.encrypted = encrypted;
+    }
+
+    /**
+     * Writes the arguments this object was constructed from.
+     *
+     * @param out output
+     * @throws IOException if an IO error occurs
+     * @see #read(DataInput)
+     */
+    void write(final DataOutput out) throws IOException {
+        out.writeBoolean(url != null);
+        if (url != null) out.writeUTF(url);
+        out.writeInt(codecId);
+        out.writeFloat(sampleRate);
+        out.writeInt(sampleSize);
+        out.writeInt(channels);
+        out.writeInt(frameSize);
+        out.writeFloat(frameRate);
+        out.writeInt(getFrameLength());
+        out.writeBoolean(bigEndian);
+        out.writeLong(durationInMicroSeconds);
+        out.writeInt(bitRate);
+        out.writeByte(vbr == null ? -1 : vbr ? 1 : 0);
+        out.writeBoolean(encrypted);
+    }
+
+    /**
+     * Re-creates an instance written with {@link #write(DataOutput)}.
+     *
+     * @param in input
+     * @return file format
+     * @throws IOException if an IO error occurs
+     * @throws UnsupportedAudioFileException if the format cannot be re-created
+     */
+    static FFAudioFileFormat read(final DataInput in) throws IOException, UnsupportedAudioFileException {
+        final String url = in.readBoolean() ? in.readUTF() : null;
+        final int codecId = in.readInt();
+        final float sampleRate = in.readFloat();
+        final int sampleSize = in.readInt();
+        final int channels = in.readInt();
+        final int frameSize = in.readInt();
+        final float frameRate = in.readFloat();
+        final int frameLength = in.readInt();
+        final boolean bigEndian = in.readBoolean();
+        final long durationInMicroSeconds = in.readLong();
+        final int bitRate = in.readInt();
+        final byte vbr = in.readByte();
+        final boolean encrypted = in.readBoolean();
+        return new FFAudioFileFormat(url, codecId, sampleRate, sampleSize, channels, frameSize, frameRate, frameLength,
+            bigEndian, durationInMicroSeconds, bitRate, vbr < 0 ? null : vbr == 1, encrypted);
     }
 
     private static int getLength(final String urlString) {
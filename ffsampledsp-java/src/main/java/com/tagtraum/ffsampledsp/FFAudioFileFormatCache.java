@@ -0,0 +1,319 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ */
+package com.tagtraum.ffsampledsp;
+
+import javax.sound.sampled.AudioFileFormat;
+import java.io.File;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent cache for {@link AudioFileFormat}s, keyed by URL.
+ * <p>
+ * For <code>file:</code> URLs, each entry remembers the file's size and modification time
+ * at the time it was cached. If either has changed when the entry is looked up, the entry
+ * is invalidated, i.e. the cache never serves metadata of a file that was modified since.
+ * Entries may also expire after a configurable time to live. When the cache is full,
+ * entries are evicted in insertion order, but entries that were read since they were last
+ * considered for eviction get a second chance (CLOCK).
+ * <p>
+ * The shared instance used by {@link FFAudioFileReader} is configured via the system properties
+ * <code>ffsampledsp.cache.maxEntries</code> (default 1000, <code>0</code> disables caching) and
+ * <code>ffsampledsp.cache.ttl</code> (time to live in milliseconds, default <code>0</code>, i.e. no expiry).
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see FFAudioFileReader#getCache()
+ */
+public final class FFAudioFileFormatCache {
+
+    private final ConcurrentMap<URL, Entry> entries = new ConcurrentHashMap<>();
+    private final Queue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private volatile int maxEntries;
+    private volatile long timeToLiveNanos;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxEntries max number of entries, <code>0</code> disables caching
+     * @param timeToLiveMillis time to live in milliseconds, <code>0</code> means no expiry
+     */
+    public FFAudioFileFormatCache(final int maxEntries, final long timeToLiveMillis) {
+        setMaxEntries(maxEntries);
+        setTimeToLive(timeToLiveMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cached formats for the given URL.
+     *
+     * @param url url
+     * @return formats or <code>null</code>, if not cached, expired or if the file has changed
+     */
+    public AudioFileFormat[] get(final URL url) {
+        final Entry entry = entries.get(url);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        final long ttl = timeToLiveNanos;
+        if (ttl > 0 && System.nanoTime() - entry.created > ttl) {
+            if (entries.remove(url, entry)) expirations.increment();
+            misses.increment();
+            return null;
+        }
+        if (entry.file != null && (entry.file.length() != entry.length || entry.file.lastModified() != entry.lastModified)) {
+            if (entries.remove(url, entry)) invalidations.increment();
+            misses.increment();
+            return null;
+        }
+        entry.referenced = true;
+        hits.increment();
+        return entry.audioFileFormats;
+    }
+
+    /**
+     * Adds formats to the cache, possibly evicting other entries.
+     * For <code>file:</code> URLs, the entry is validated against the file's current
+     * size and modification time. When caching the result of a probe, use
+     * {@link #put(URL, AudioFileFormat[], long, long)} instead.
+     *
+     * @param url url
+     * @param audioFileFormats formats
+     */
+    public void put(final URL url, final AudioFileFormat[] audioFileFormats) {
+        final File file = toFile(url);
+        put(url, audioFileFormats, file == null ? 0 : file.length(), file == null ? 0 : file.lastModified());
+    }
+
+    /**
+     * Adds formats to the cache, possibly evicting other entries.
+     * For <code>file:</code> URLs, pass the file's size and modification time from
+     * <em>before</em> it was probed. That way, a file that was modified while being
+     * probed does not end up with outdated formats that look valid.
+     *
+     * @param url url
+     * @param audioFileFormats formats
+     * @param length file size before probing, ignored for other URLs
+     * @param lastModified file modification time before probing, ignored for other URLs
+     */
+    public void put(final URL url, final AudioFileFormat[] audioFileFormats, final long length, final long lastModified) {
+        if (maxEntries <= 0) return;
+        final Entry entry = new Entry(url, toFile(url), audioFileFormats, length, lastModified);
+        entries.put(url, entry);
+        insertionOrder.offer(entry);
+        queued.incrementAndGet();
+        evict();
+    }
+
+    /**
+     * Removes the entry for the given URL.
+     *
+     * @param url url
+     */
+    public void remove(final URL url) {
+        entries.remove(url);
+    }
+
+    /**
+     * Removes all entries. Statistics are not affected.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    private void evict() {
+        final int max = maxEntries;
+        while (true) {
+            final boolean full = entries.size() > max;
+            // also drop queue nodes of replaced or removed entries
+            if (!full && queued.get() <= 2 * Math.max(max, 1)) break;
+            final Entry entry = insertionOrder.poll();
+            if (entry == null) break;
+            queued.decrementAndGet();
+            if (entries.get(entry.url) != entry) continue;
+            if (!full || entry.referenced) {
+                entry.referenced = false;
+                insertionOrder.offer(entry);
+                queued.incrementAndGet();
+            } else if (entries.remove(entry.url, entry)) {
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * File for a <code>file:</code> URL.
+     *
+     * @param url url
+     * @return file or <code>null</code> for other URLs
+     */
+    static File toFile(final URL url) {
+        if (!"file".equals(url.getProtocol())) return null;
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            // FFAudioFileReader.fileToURL() creates URLs that are not URL-encoded
+            return new File(url.getFile());
+        }
+    }
+
+    /**
+     * Number of entries currently in the cache, including those that are expired
+     * or invalid but have not been looked up yet.
+     *
+     * @return number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Max number of entries.
+     *
+     * @return max number of entries
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Sets the max number of entries. Shrinking the cache evicts entries
+     * with the next {@link #put(URL, AudioFileFormat[])}.
+     *
+     * @param maxEntries max number of entries, <code>0</code> disables caching
+     * @throws IllegalArgumentException if <code>maxEntries</code> is negative
+     */
+    public void setMaxEntries(final int maxEntries) {
+        if (maxEntries < 0) throw new IllegalArgumentException("Max entries must not be negative: " + maxEntries);
+        this.maxEntries = maxEntries;
+        if (maxEntries == 0) clear();
+    }
+
+    /**
+     * Time to live.
+     *
+     * @param timeUnit unit of the returned value
+     * @return time to live, <code>0</code> means no expiry
+     */
+    public long getTimeToLive(final TimeUnit timeUnit) {
+        return timeUnit.convert(timeToLiveNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the time to live. Also applies to entries that are already cached.
+     *
+     * @param timeToLive time to live, <code>0</code> means no expiry
+     * @param timeUnit unit
+     * @throws IllegalArgumentException if <code>timeToLive</code> is negative
+     */
+    public void setTimeToLive(final long timeToLive, final TimeUnit timeUnit) {
+        if (timeToLive < 0) throw new IllegalArgumentException("Time to live must not be negative: " + timeToLive);
+        this.timeToLiveNanos = timeUnit.toNanos(timeToLive);
+    }
+
+    /**
+     * Number of lookups that were answered from the cache.
+     *
+     * @return hits
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of lookups that were not answered from the cache.
+     *
+     * @return misses
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Number of entries removed, because the cache was full.
+     *
+     * @return evictions
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Number of entries removed, because their time to live was exceeded.
+     *
+     * @return expirations
+     */
+    public long getExpirationCount() {
+        return expirations.sum();
+    }
+
+    /**
+     * Number of entries removed, because the underlying file's size or modification time changed.
+     *
+     * @return invalidations
+     */
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "FFAudioFileFormatCache{" +
+            "size=" + size() +
+            ", maxEntries=" + maxEntries +
+            ", hits=" + getHitCount() +
+            ", misses=" + getMissCount() +
+            ", evictions=" + getEvictionCount() +
+            ", expirations=" + getExpirationCount() +
+            ", invalidations=" + getInvalidationCount() +
+            '}';
+    }
+
+    private static class Entry {
+        private final URL url;
+        private final File file;
+        private final long length;
+        private final long lastModified;
+        private final long created = System.nanoTime();
+        private final AudioFileFormat[] audioFileFormats;
+        private volatile boolean referenced;
+
+        private Entry(final URL url, final File file, final AudioFileFormat[] audioFileFormats, final long length, final long lastModified) {
+            this.url = url;
+            this.file = file;
+            this.length = file == null ? 0 : length;
+            this.lastModified = file == null ? 0 : lastModified;
+            this.audioFileFormats = audioFileFormats;
+        }
+    }
+}
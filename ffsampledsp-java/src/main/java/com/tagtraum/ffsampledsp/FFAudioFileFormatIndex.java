@@ -0,0 +1,266 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ */
+package com.tagtraum.ffsampledsp;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent index of {@link FFAudioFileFormat}s for local files, allowing
+ * {@link FFAudioFileReader#getAudioFileFormats(File)} to answer without probing the file
+ * with FFmpeg, e.g. after a restart.
+ * <p>
+ * Entries are validated against the file's size and modification time, i.e. a file
+ * that was modified after it was indexed is probed again. The index is held in memory
+ * and written to a compact binary file with {@link #save()}. Only {@link FFAudioFileFormat}s
+ * can be indexed.
+ * <p>
+ * If the system property <code>ffsampledsp.index</code> is set to a file path,
+ * {@link FFAudioFileReader} loads that index at startup and saves it when the JVM shuts down.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see FFAudioFileReader#setIndex(FFAudioFileFormatIndex)
+ */
+public final class FFAudioFileFormatIndex {
+
+    private static final Logger LOG = Logger.getLogger(FFAudioFileFormatIndex.class.getName());
+    private static final int MAGIC = 0x46464d49; // "FFMI"
+    private static final int VERSION = 1;
+
+    private final Path path;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private FFAudioFileFormatIndex(final Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Opens the index stored in the given file. If the file does not exist yet,
+     * an empty index is returned. If the file cannot be read or has an unknown format,
+     * the problem is logged and an empty index is returned as well.
+     *
+     * @param path index file
+     * @return index
+     */
+    public static FFAudioFileFormatIndex open(final Path path) {
+        final FFAudioFileFormatIndex index = new FFAudioFileFormatIndex(path);
+        if (Files.exists(path)) {
+            try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                index.read(in);
+            } catch (IOException | UnsupportedAudioFileException e) {
+                LOG.log(Level.WARNING, "Failed to read audio file format index " + path + ". Starting with empty index.", e);
+                index.entries.clear();
+            }
+        }
+        return index;
+    }
+
+    private void read(final DataInputStream in) throws IOException, UnsupportedAudioFileException {
+        if (in.readInt() != MAGIC) throw new IOException("Not an audio file format index");
+        final int version = in.readInt();
+        if (version != VERSION) throw new IOException("Unsupported index version: " + version);
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            final String file = in.readUTF();
+            final long length = in.readLong();
+            final long lastModified = in.readLong();
+            final FFAudioFileFormat[] audioFileFormats = new FFAudioFileFormat[in.readUnsignedByte()];
+            for (int j = 0; j < audioFileFormats.length; j++) {
+                audioFileFormats[j] = FFAudioFileFormat.read(in);
+            }
+            entries.put(file, new Entry(length, lastModified, audioFileFormats));
+        }
+    }
+
+    /**
+     * Writes the index to its file. To not leave a corrupt index behind,
+     * the index is first written to a temporary file, which then replaces the index file.
+     *
+     * @throws IOException if an IO error occurs
+     */
+    public void save() throws IOException {
+        final Path parent = path.toAbsolutePath().getParent();
+        final Path tmp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                final Map<String, Entry> snapshot = new HashMap<>(entries);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(snapshot.size());
+                for (final Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                    final Entry entry = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeLong(entry.length);
+                    out.writeLong(entry.lastModified);
+                    out.writeByte(entry.audioFileFormats.length);
+                    for (final FFAudioFileFormat audioFileFormat : entry.audioFileFormats) {
+                        audioFileFormat.write(out);
+                    }
+                }
+            }
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Indexed formats for the given file.
+     *
+     * @param file file
+     * @return formats or <code>null</code>, if the file is not indexed or has changed since it was indexed
+     */
+    public AudioFileFormat[] get(final File file) {
+        final String key = file.getAbsolutePath();
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.length != file.length() || entry.lastModified != file.lastModified()) {
+            entries.remove(key, entry);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return Arrays.copyOf(entry.audioFileFormats, entry.audioFileFormats.length, AudioFileFormat[].class);
+    }
+
+    /**
+     * Adds the formats for the given file to the index, validated against the file's
+     * current size and modification time. When indexing the result of a probe, use
+     * {@link #put(File, AudioFileFormat[], long, long)} instead.
+     * Formats that are not {@link FFAudioFileFormat}s are ignored.
+     *
+     * @param file file
+     * @param audioFileFormats formats
+     */
+    public void put(final File file, final AudioFileFormat[] audioFileFormats) {
+        put(file, audioFileFormats, file.length(), file.lastModified());
+    }
+
+    /**
+     * Adds the formats for the given file to the index.
+     * Pass the file's size and modification time from <em>before</em> it was probed,
+     * so that a file modified while being probed is not indexed with outdated formats.
+     * Formats that are not {@link FFAudioFileFormat}s are ignored.
+     *
+     * @param file file
+     * @param audioFileFormats formats
+     * @param length file size before probing
+     * @param lastModified file modification time before probing
+     */
+    public void put(final File file, final AudioFileFormat[] audioFileFormats, final long length, final long lastModified) {
+        if (audioFileFormats == null || audioFileFormats.length == 0 || audioFileFormats.length > 255) return;
+        final FFAudioFileFormat[] ffAudioFileFormats = new FFAudioFileFormat[audioFileFormats.length];
+        for (int i = 0; i < audioFileFormats.length; i++) {
+            if (!(audioFileFormats[i] instanceof FFAudioFileFormat)) return;
+            ffAudioFileFormats[i] = (FFAudioFileFormat) audioFileFormats[i];
+        }
+        entries.put(file.getAbsolutePath(), new Entry(length, lastModified, ffAudioFileFormats));
+    }
+
+    /**
+     * Removes the given file from the index.
+     *
+     * @param file file
+     */
+    public void remove(final File file) {
+        entries.remove(file.getAbsolutePath());
+    }
+
+    /**
+     * Index file.
+     *
+     * @return path
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Number of indexed files.
+     *
+     * @return number of files
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Number of lookups that were answered from the index.
+     *
+     * @return hits
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of lookups that were not answered from the index.
+     *
+     * @return misses
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "FFAudioFileFormatIndex{" +
+            "path=" + path +
+            ", size=" + size() +
+            ", hits=" + getHitCount() +
+            ", misses=" + getMissCount() +
+            '}';
+    }
+
+    private static class Entry {
+        private final long length;
+        private final long lastModified;
+        private final FFAudioFileFormat[] audioFileFormats;
+
+        private Entry(final long length, final long lastModified, final FFAudioFileFormat[] audioFileFormats) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.audioFileFormats = audioFileFormats;
+        }
+    }
+}
@@ -29,14 +29,22 @@ import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
-import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
-
-import static com.tagtraum.ffsampledsp.FFGlobalLock.LOCK;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Open URLs/files or streams and returns a {@link AudioFileFormat} instance.
@@ -53,37 +61,391 @@ public class FFAudioFileReader extends AudioFileReader {
     }
 
     private static final boolean WINDOWS = System.getProperty("os.name").toLowerCase().contains("win");
+    private static final int STREAM_MARK_LIMIT = 256 * 1024;
+    private static final Map<String, String> EXTENSION_FORMATS = new HashMap<>();
 
-    private static final Map<URL, AudioFileFormat[]> cache = Collections.synchronizedMap(new LinkedHashMap<URL, AudioFileFormat[]>() {
-        private static final int MAX_ENTRIES = 20;
+    static {
+        // file extension -> FFmpeg demuxer name
+        EXTENSION_FORMATS.put("wav", "wav");
+        EXTENSION_FORMATS.put("wave", "wav");
+        EXTENSION_FORMATS.put("w64", "w64");
+        EXTENSION_FORMATS.put("aif", "aiff");
+        EXTENSION_FORMATS.put("aiff", "aiff");
+        EXTENSION_FORMATS.put("aifc", "aiff");
+        EXTENSION_FORMATS.put("au", "au");
+        EXTENSION_FORMATS.put("snd", "au");
+        EXTENSION_FORMATS.put("caf", "caf");
+        EXTENSION_FORMATS.put("flac", "flac");
+        EXTENSION_FORMATS.put("mp3", "mp3");
+        EXTENSION_FORMATS.put("aac", "aac");
+        EXTENSION_FORMATS.put("ac3", "ac3");
+        EXTENSION_FORMATS.put("ogg", "ogg");
+        EXTENSION_FORMATS.put("oga", "ogg");
+        EXTENSION_FORMATS.put("opus", "ogg");
+        EXTENSION_FORMATS.put("m4a", "mov");
+        EXTENSION_FORMATS.put("m4b", "mov");
+        EXTENSION_FORMATS.put("mp4", "mov");
+        EXTENSION_FORMATS.put("mov", "mov");
+        EXTENSION_FORMATS.put("wma", "asf");
+        EXTENSION_FORMATS.put("mka", "matroska");
+        EXTENSION_FORMATS.put("webm", "matroska");
+        EXTENSION_FORMATS.put("ape", "ape");
+        EXTENSION_FORMATS.put("wv", "wv");
+    }
 
-        @Override
-        protected boolean removeEldestEntry(final Map.Entry eldest) {
-            return size() > MAX_ENTRIES;
-        }
-    });
+    private static final FFAudioFileFormatCache cache = new FFAudioFileFormatCache(
+        Integer.getInteger("ffsampledsp.cache.maxEntries", 1000),
+        Long.getLong("ffsampledsp.cache.ttl", 0L)
+    );
+
+    /**
+     * Cache for the {@link AudioFileFormat}s returned by {@link #getAudioFileFormats(URL)}
+     * (and all methods based on it), shared by all instances.
+     * May be used to configure the cache or query its statistics.
+     * <p>
+     * Only readers with default probe settings, i.e. without {@link #setFormatHint(String) format hint},
+     * {@link #setProbeSize(int) probe size}, {@link #setAnalyzeDuration(long, TimeUnit) analyze duration}
+     * or {@link #setHeaderOnlyProbe(boolean) header-only probing}, use this cache.
+     *
+     * @return cache
+     */
+    public static FFAudioFileFormatCache getCache() {
+        return cache;
+    }
+
+    private static final AudioFileFormat[] UNSUPPORTED = new AudioFileFormat[0];
+    private static final FFAudioFileFormatCache unsupportedCache = new FFAudioFileFormatCache(
+        Integer.getInteger("ffsampledsp.unsupportedCache.maxEntries", 1000),
+        Long.getLong("ffsampledsp.unsupportedCache.ttl", 0L)
+    );
+
+    /**
+     * Cache for <code>file:</code> URLs that were found to be unsupported by {@link #getAudioFileFormats(URL)},
+     * shared by all instances. Repeated lookups of such files fail without probing them again,
+     * unless their size or modification time has changed.
+     * Only readers with default probe settings, i.e. without {@link #setFormatHint(String) format hint},
+     * {@link #setProbeSize(int) probe size}, {@link #setAnalyzeDuration(long, TimeUnit) analyze duration}
+     * or {@link #setHeaderOnlyProbe(boolean) header-only probing}, use this cache.
+     * <p>
+     * Configured via the system properties <code>ffsampledsp.unsupportedCache.maxEntries</code>
+     * (default 1000, <code>0</code> disables caching) and <code>ffsampledsp.unsupportedCache.ttl</code>
+     * (time to live in milliseconds, default <code>0</code>, i.e. no expiry).
+     *
+     * @return cache of unsupported files
+     */
+    public static FFAudioFileFormatCache getUnsupportedCache() {
+        return unsupportedCache;
+    }
+
+    private static volatile FFAudioFileFormatIndex index = openIndex(System.getProperty("ffsampledsp.index"));
+
+    private static FFAudioFileFormatIndex openIndex(final String path) {
+        if (path == null || path.isEmpty()) return null;
+        final FFAudioFileFormatIndex index = FFAudioFileFormatIndex.open(Paths.get(path));
+        Runtime.getRuntime().addShutdownHook(new Thread("FFAudioFileFormatIndex shutdown hook") {
+            @Override
+            public void run() {
+                try {
+                    index.save();
+                } catch (IOException e) {
+                    Logger.getLogger(FFAudioFileReader.class.getName()).log(Level.WARNING, "Failed to save " + index, e);
+                }
+            }
+        });
+        return index;
+    }
+
+    /**
+     * Persistent index used by {@link #getAudioFileFormats(File)}.
+     *
+     * @return index or <code>null</code>
+     * @see #setIndex(FFAudioFileFormatIndex)
+     */
+    public static FFAudioFileFormatIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Sets a persistent index for {@link #getAudioFileFormats(File)}
+     * (and all methods based on it), shared by all instances.
+     * Files found in the index are not probed, probed files are added to the index.
+     * Like {@link #getCache()}, the index is only used by readers with default probe settings.
+     * Saving the index is up to the caller, unless it was configured via the system property
+     * <code>ffsampledsp.index</code>.
+     *
+     * @param index index or <code>null</code> to not use an index
+     */
+    public static void setIndex(final FFAudioFileFormatIndex index) {
+        FFAudioFileReader.index = index;
+    }
+
+    private volatile int decoderThreads = FFNativePeerInputStream.DEFAULT_DECODER_THREADS;
+    private volatile boolean headerOnlyProbe = Boolean.getBoolean("ffsampledsp.probe.headerOnly");
+    private volatile int probeSize = FFNativePeerInputStream.checkProbeSize(Integer.getInteger("ffsampledsp.probe.size", 0));
+    private volatile long analyzeDuration = FFNativePeerInputStream.checkAnalyzeDuration(Long.getLong("ffsampledsp.probe.analyzeDuration", 0L));
+    private volatile String formatHint;
+    private volatile boolean formatHintFromExtension = Boolean.getBoolean("ffsampledsp.probe.formatHintFromExtension");
+    private volatile boolean memoryMapped = Boolean.getBoolean("ffsampledsp.mmap");
+    private volatile int readAheadCapacity = Integer.getInteger("ffsampledsp.stream.readAhead.capacity", 0);
+    private volatile int readAheadLowWatermark = Integer.getInteger("ffsampledsp.stream.readAhead.lowWatermark", readAheadCapacity / 2);
+    private volatile int readAheadHighWatermark = Integer.getInteger("ffsampledsp.stream.readAhead.highWatermark", readAheadCapacity);
+
+    /**
+     * Number of threads used by decoders of streams opened by this reader.
+     * Defaults to the value of the system property <code>ffsampledsp.decoder.threads</code> or <code>1</code>.
+     *
+     * @return number of decoder threads, <code>0</code> means FFmpeg chooses
+     * @see #setDecoderThreads(int)
+     */
+    public int getDecoderThreads() {
+        return decoderThreads;
+    }
+
+    /**
+     * Lets decoders of streams opened by this reader use multiple threads, if they support
+     * frame or slice threading. Note that most lossy audio decoders (e.g. MP3, AAC, Vorbis)
+     * don't, while lossless ones like FLAC or ALAC do.
+     *
+     * @param decoderThreads number of decoder threads, <code>0</code> lets FFmpeg choose, <code>1</code> disables threading
+     * @throws IllegalArgumentException if <code>decoderThreads</code> is negative
+     */
+    public void setDecoderThreads(final int decoderThreads) {
+        this.decoderThreads = FFNativePeerInputStream.checkDecoderThreads(decoderThreads);
+    }
+
+    /**
+     * Indicates whether probing relies on header information only, if possible.
+     * Defaults to the value of the system property <code>ffsampledsp.probe.headerOnly</code>
+     * or <code>false</code>.
+     *
+     * @return true, if header-only probing is enabled
+     * @see #setHeaderOnlyProbe(boolean)
+     */
+    public boolean isHeaderOnlyProbe() {
+        return headerOnlyProbe;
+    }
+
+    /**
+     * Lets probing rely on the codec parameters found in the container's header, i.e.
+     * skip FFmpeg's stream analysis, which reads packets and may decode frames.
+     * The analysis is still performed, if the header lacks codec, sample rate, channels,
+     * duration or, for non-PCM audio, the information needed to compute frame rate and length
+     * (e.g. for raw MP3 or ADTS AAC streams). So the resulting {@link AudioFileFormat}s
+     * are the same, but for formats like WAVE, AIFF or MP4 probing is
+     * considerably cheaper.
+     *
+     * @param headerOnlyProbe true to enable header-only probing
+     */
+    public void setHeaderOnlyProbe(final boolean headerOnlyProbe) {
+        this.headerOnlyProbe = headerOnlyProbe;
+    }
+
+    /**
+     * Max number of bytes FFmpeg reads to detect the container format.
+     * Defaults to the value of the system property <code>ffsampledsp.probe.size</code> or <code>0</code>.
+     *
+     * @return probe size, <code>0</code> means FFmpeg's default (or 32kb when reading from an {@link InputStream})
+     * @see #setProbeSize(int)
+     */
+    public int getProbeSize() {
+        return probeSize;
+    }
+
+    /**
+     * Sets the max number of bytes FFmpeg reads to detect the container format.
+     * When probing an {@link InputStream}, this is also the number of bytes read from
+     * the stream (instead of 32kb). Hard to detect streams may need more, known formats less.
+     *
+     * @param probeSize probe size, <code>0</code> means FFmpeg's default
+     * @throws IllegalArgumentException if <code>probeSize</code> is negative or less than 32
+     */
+    public void setProbeSize(final int probeSize) {
+        this.probeSize = FFNativePeerInputStream.checkProbeSize(probeSize);
+    }
+
+    /**
+     * Max duration FFmpeg analyzes to determine stream info.
+     * Defaults to the value of the system property <code>ffsampledsp.probe.analyzeDuration</code> or <code>0</code>.
+     *
+     * @param timeUnit unit of the returned value
+     * @return analyze duration, <code>0</code> means FFmpeg's default
+     * @see #setAnalyzeDuration(long, TimeUnit)
+     */
+    public long getAnalyzeDuration(final TimeUnit timeUnit) {
+        return timeUnit.convert(analyzeDuration, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Sets the max duration FFmpeg analyzes to determine stream info.
+     *
+     * @param analyzeDuration analyze duration, <code>0</code> means FFmpeg's default
+     * @param timeUnit unit
+     * @throws IllegalArgumentException if <code>analyzeDuration</code> is negative
+     */
+    public void setAnalyzeDuration(final long analyzeDuration, final TimeUnit timeUnit) {
+        this.analyzeDuration = FFNativePeerInputStream.checkAnalyzeDuration(timeUnit.toMicros(analyzeDuration));
+    }
 
-    private static void addAudioFileFormatToCache(final URL url, final AudioFileFormat[] audioFileFormat) {
-        cache.put(url, audioFileFormat);
+    /**
+     * Explicit container format.
+     *
+     * @return short name of an FFmpeg demuxer or <code>null</code>
+     * @see #setFormatHint(String)
+     */
+    public String getFormatHint() {
+        return formatHint;
     }
 
-    private static AudioFileFormat[] getAudioFileFormatsFromCache(final URL url) {
-        return cache.get(url);
+    /**
+     * Tells FFmpeg to use the given demuxer instead of detecting the container format.
+     * Unknown names are ignored. Note that the input is not checked for plausibility
+     * when a format is given, i.e. this should only be used, if the format is known.
+     *
+     * @param formatHint short name of an FFmpeg demuxer, e.g. <code>mp3</code>, <code>wav</code>
+     *                   or <code>mov</code>, or <code>null</code> to detect the format
+     */
+    public void setFormatHint(final String formatHint) {
+        this.formatHint = formatHint;
+    }
+
+    /**
+     * Indicates whether the container format is derived from the file extension of URLs.
+     * Defaults to the value of the system property <code>ffsampledsp.probe.formatHintFromExtension</code>
+     * or <code>false</code>.
+     *
+     * @return true, if format hints are derived from file extensions
+     * @see #setFormatHintFromExtension(boolean)
+     */
+    public boolean isFormatHintFromExtension() {
+        return formatHintFromExtension;
+    }
+
+    /**
+     * Lets FFmpeg use the demuxer that corresponds to a URL's file extension (e.g. <code>mp3</code>
+     * for <code>.mp3</code> or <code>mov</code> for <code>.m4a</code>) instead of detecting the
+     * container format. If the demuxer fails to open the URL, the format is detected as usual.
+     * An explicit {@link #setFormatHint(String) format hint} takes precedence.
+     *
+     * @param formatHintFromExtension true to derive format hints from file extensions
+     */
+    public void setFormatHintFromExtension(final boolean formatHintFromExtension) {
+        this.formatHintFromExtension = formatHintFromExtension;
+    }
+
+    /**
+     * Indicates whether {@link #getAudioInputStream(File, int)} decodes memory mapped files.
+     * Defaults to the value of the system property <code>ffsampledsp.mmap</code> or <code>false</code>.
+     *
+     * @return true, if files are memory mapped
+     * @see #setMemoryMapped(boolean)
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Lets {@link #getAudioInputStream(File, int)} (and all methods based on it) map files into
+     * memory and decode them via {@link FFMemoryInputStream} instead of reading them with system calls.
+     * This is beneficial for files that are likely in the page cache.
+     * Files larger than 2GB are read as usual.
+     * Note that on some platforms mapped files cannot be deleted, before the mapping is garbage collected.
+     *
+     * @param memoryMapped true to memory map files
+     */
+    public void setMemoryMapped(final boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Size of the read-ahead buffer used by {@link #getAudioInputStream(InputStream, int)}.
+     * Defaults to the value of the system property <code>ffsampledsp.stream.readAhead.capacity</code>
+     * or <code>0</code>.
+     *
+     * @return capacity in bytes, <code>0</code> means read-ahead is disabled
+     * @see #setReadAhead(int, int, int)
+     */
+    public int getReadAheadCapacity() {
+        return readAheadCapacity;
+    }
+
+    /**
+     * Number of buffered bytes at which reading ahead resumes.
+     * Defaults to the value of the system property <code>ffsampledsp.stream.readAhead.lowWatermark</code>
+     * or half the capacity.
+     *
+     * @return low watermark in bytes
+     * @see #setReadAhead(int, int, int)
+     */
+    public int getReadAheadLowWatermark() {
+        return readAheadLowWatermark;
+    }
+
+    /**
+     * Number of buffered bytes at which reading ahead pauses.
+     * Defaults to the value of the system property <code>ffsampledsp.stream.readAhead.highWatermark</code>
+     * or the capacity.
+     *
+     * @return high watermark in bytes
+     * @see #setReadAhead(int, int, int)
+     */
+    public int getReadAheadHighWatermark() {
+        return readAheadHighWatermark;
+    }
+
+    /**
+     * Lets {@link #getAudioInputStream(InputStream, int)} (and all methods based on it) read
+     * from the stream in a background thread, so that slow sources like network streams
+     * are read while decoding. See {@link FFReadAheadChannel} for details.
+     * <p>
+     * Note that streams read ahead are not reset, if the audio turns out to be unsupported.
+     *
+     * @param capacity size of the read-ahead buffer in bytes, <code>0</code> disables read-ahead
+     * @param lowWatermark number of buffered bytes at which reading ahead resumes
+     * @param highWatermark number of buffered bytes at which reading ahead pauses
+     * @throws IllegalArgumentException if <code>capacity</code> is negative or, for a positive capacity,
+     * unless <code>0 &lt;= lowWatermark &lt; highWatermark &lt;= capacity</code>
+     */
+    public void setReadAhead(final int capacity, final int lowWatermark, final int highWatermark) {
+        if (capacity < 0) throw new IllegalArgumentException("Read-ahead capacity must not be negative: " + capacity);
+        if (capacity > 0 && (lowWatermark < 0 || lowWatermark >= highWatermark || highWatermark > capacity))
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low < high <= capacity: low="
+                + lowWatermark + ", high=" + highWatermark + ", capacity=" + capacity);
+        this.readAheadCapacity = capacity;
+        this.readAheadLowWatermark = lowWatermark;
+        this.readAheadHighWatermark = highWatermark;
+    }
+
+    /**
+     * Demuxer name for the extension of the given URL.
+     *
+     * @param url url
+     * @return demuxer name or <code>null</code>, if unknown
+     */
+    static String formatFromExtension(final String url) {
+        if (url == null) return null;
+        final int end = url.indexOf('?') == -1 ? url.length() : url.indexOf('?');
+        final int lastDot = url.lastIndexOf('.', end);
+        if (lastDot == -1 || url.lastIndexOf('/', end) > lastDot) return null;
+        return EXTENSION_FORMATS.get(url.substring(lastDot + 1, end).toLowerCase());
     }
 
     public AudioFileFormat[] getAudioFileFormats(final InputStream stream) throws UnsupportedAudioFileException, IOException {
         if (!nativeLibraryLoaded) throw new UnsupportedAudioFileException("Native library ffsampledsp not loaded.");
         if (!stream.markSupported()) throw new IOException("InputStream must support mark()");
-        final int readlimit = 1024 * 32;
+        final int readlimit = probeSize > 0 ? probeSize : 1024 * 32;
         stream.mark(readlimit);
 
         final ReadableByteChannel channel = Channels.newChannel(stream);
-        final ByteBuffer buf = ByteBuffer.allocateDirect(readlimit);
+        final ByteBuffer buf = FFDirectBufferPool.getInstance().acquire(readlimit);
         try {
+            // workaround covariant return type introduced in Java 9
+            // ensure limit(int) is called on Buffer, not ByteBuffer
+            ((Buffer)buf).limit(readlimit);
             channel.read(buf);
-            buf.flip();
-            return lockedGetAudioFileFormatFromBuffer(buf);
+            ((Buffer)buf).flip();
+            return probeAudioFileFormatsFromBuffer(buf);
         } finally {
+            FFDirectBufferPool.getInstance().release(buf);
             stream.reset();
         }
     }
@@ -95,9 +457,7 @@ public class FFAudioFileReader extends AudioFileReader {
 
     @Override
     public AudioFileFormat getAudioFileFormat(final File file) throws UnsupportedAudioFileException, IOException {
-        if (!file.exists()) throw new FileNotFoundException(file.toString());
-        if (!file.canRead()) throw new IOException("Can't read " + file);
-        return getAudioFileFormat(fileToURL(file));
+        return getAudioFileFormats(file)[0];
     }
 
     /**
@@ -115,7 +475,91 @@ public class FFAudioFileReader extends AudioFileReader {
     public AudioFileFormat[] getAudioFileFormats(final File file) throws UnsupportedAudioFileException, IOException {
         if (!file.exists()) throw new FileNotFoundException(file.toString());
         if (!file.canRead()) throw new IOException("Can't read " + file);
-        return getAudioFileFormats(fileToURL(file));
+        final FFAudioFileFormatIndex index = FFAudioFileReader.index;
+        if (index == null || !isCacheable()) {
+            return getAudioFileFormats(fileToURL(file));
+        }
+        final AudioFileFormat[] indexed = index.get(file);
+        if (indexed != null) {
+            return indexed;
+        }
+        final FileState state = new FileState(file);
+        final AudioFileFormat[] audioFileFormats = getAudioFileFormats(fileToURL(file));
+        index.put(file, audioFileFormats, state.length, state.lastModified);
+        return audioFileFormats;
+    }
+
+    /**
+     * Probes many files concurrently, with at most {@link Runtime#availableProcessors()}
+     * probes in flight at any time.
+     *
+     * @param paths files to probe
+     * @param executor executor that runs the individual probes
+     * @return per-file results or failures and throughput statistics
+     * @throws InterruptedException if interrupted while waiting for the probes to finish
+     * @see #getAudioFileFormats(Collection, Executor, int)
+     */
+    public FFBatchProbeResult getAudioFileFormats(final Collection<Path> paths, final Executor executor) throws InterruptedException {
+        return getAudioFileFormats(paths, executor, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Probes many files concurrently, with at most <code>parallelism</code> probes in flight
+     * at any time, regardless of how many threads <code>executor</code> offers.
+     * Successfully probed files are added to the metadata cache, just like
+     * with {@link #getAudioFileFormats(URL)}.
+     * <p>
+     * Failures (including rejected executions) don't abort the batch, but are reported
+     * via {@link FFProbeResult#getException()}.
+     * If the calling thread is interrupted, already submitted probes still run to completion.
+     *
+     * @param paths files to probe
+     * @param executor executor that runs the individual probes
+     * @param parallelism maximum number of concurrent probes
+     * @return per-file results or failures and throughput statistics
+     * @throws InterruptedException if interrupted while waiting for the probes to finish
+     * @throws IllegalArgumentException if <code>parallelism</code> is less than 1
+     */
+    public FFBatchProbeResult getAudioFileFormats(final Collection<Path> paths, final Executor executor, final int parallelism) throws InterruptedException {
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        final FFProbeResult[] results = new FFProbeResult[paths.size()];
+        final Semaphore permits = new Semaphore(parallelism);
+        final CountDownLatch done = new CountDownLatch(results.length);
+        final long start = System.nanoTime();
+        int i = 0;
+        for (final Path path : paths) {
+            final int index = i++;
+            permits.acquire();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            results[index] = probe(path);
+                        } finally {
+                            permits.release();
+                            done.countDown();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                results[index] = new FFProbeResult(path, null, e, 0);
+                permits.release();
+                done.countDown();
+            }
+        }
+        done.await();
+        return new FFBatchProbeResult(results, System.nanoTime() - start);
+    }
+
+    private FFProbeResult probe(final Path path) {
+        final long start = System.nanoTime();
+        try {
+            return new FFProbeResult(path, getAudioFileFormats(path.toFile()), null, System.nanoTime() - start);
+        } catch (Throwable t) {
+            // record errors, too, otherwise the batch would be left with an empty slot
+            return new FFProbeResult(path, null, t, System.nanoTime() - start);
+        }
     }
 
     /**
@@ -167,17 +611,50 @@ public class FFAudioFileReader extends AudioFileReader {
      */
     public AudioFileFormat[] getAudioFileFormats(final URL url) throws UnsupportedAudioFileException, IOException {
         if (!nativeLibraryLoaded) throw new UnsupportedAudioFileException("Native library ffsampledsp not loaded.");
-        final AudioFileFormat[] fileFormats = getAudioFileFormatsFromCache(url);
+        final boolean cacheable = isCacheable();
+        final AudioFileFormat[] fileFormats = cacheable ? cache.get(url) : null;
         if (fileFormats != null) {
             return fileFormats;
         }
-        final AudioFileFormat[] audioFileFormat = lockedGetAudioFileFormatsFromURL(urlToString(url));
-        if (audioFileFormat != null) {
-            addAudioFileFormatToCache(url, audioFileFormat);
+        final boolean cacheUnsupported = isUnsupportedCacheable(url);
+        checkUnsupportedCache(url, cacheUnsupported);
+        // the file may be modified while we probe it, so remember what it looked like before
+        final FileState state = FileState.of(url);
+        final AudioFileFormat[] audioFileFormat;
+        try {
+            audioFileFormat = probeAudioFileFormatsFromURL(urlToString(url));
+        } catch (UnsupportedAudioFileException e) {
+            if (cacheUnsupported) unsupportedCache.put(url, UNSUPPORTED, state.length, state.lastModified);
+            throw e;
+        }
+        if (audioFileFormat != null && cacheable) {
+            cache.put(url, audioFileFormat, state.length, state.lastModified);
         }
         return audioFileFormat;
     }
 
+    /**
+     * Only share probe results via {@link #cache} and {@link #index}, which are keyed by location alone,
+     * if they do not depend on this reader's probe configuration.
+     */
+    private boolean isCacheable() {
+        return formatHint == null && probeSize == 0 && analyzeDuration == 0 && !headerOnlyProbe;
+    }
+
+    /**
+     * Only remember unsupported files, if the outcome does not depend on this reader's configuration
+     * (see {@link #isCacheable()}), e.g. a short analyze duration may leave a valid file implausible.
+     */
+    private boolean isUnsupportedCacheable(final URL url) {
+        return "file".equals(url.getProtocol()) && isCacheable();
+    }
+
+    private static void checkUnsupportedCache(final URL url, final boolean cacheUnsupported) throws UnsupportedAudioFileException {
+        if (cacheUnsupported && unsupportedCache.get(url) != null) {
+            throw new UnsupportedAudioFileException("Unsupported file (cached): " + url);
+        }
+    }
+
     private static void checkPlausibility(final AudioFileFormat[] audioFileFormat) throws UnsupportedAudioFileException {
         if (audioFileFormat != null && audioFileFormat.length >= 1 && audioFileFormat[0].getFormat() != null) {
             // verify plausibility of audioFileFormat
@@ -213,6 +690,17 @@ public class FFAudioFileReader extends AudioFileReader {
     /**
      * Allows you to open a specific audio stream from the given stream.
      * Useful for <a href="https://www.stems-music.com">Stems</a>.
+     * <p>
+     * The stream is probed only once, by the decoder, and does not have to support
+     * {@link InputStream#mark(int)}. If it does and the audio turns out to be unsupported,
+     * the stream is reset, provided no more than 256kb (or the {@link #setProbeSize(int) probe size})
+     * were read.
+     * <p>
+     * Reading from the stream while probing does not happen under {@link FFGlobalLock#LOCK},
+     * so a stalled source (e.g. a socket) does not keep other threads from opening audio.
+     * <p>
+     * If {@link #setReadAhead(int, int, int) read-ahead} is enabled, the stream is read
+     * in a background thread and never reset.
      *
      * @param stream stream
      * @param streamIndex audio stream index
@@ -225,13 +713,159 @@ public class FFAudioFileReader extends AudioFileReader {
      */
     public AudioInputStream getAudioInputStream(final InputStream stream, final int streamIndex) throws UnsupportedAudioFileException, IOException {
         if (!nativeLibraryLoaded) throw new UnsupportedAudioFileException("Native library ffsampledsp not loaded.");
-        final AudioFileFormat fileFormat = getAudioFileFormats(stream)[streamIndex];
-        return new FFAudioInputStream(new FFStreamInputStream(stream, streamIndex), fileFormat.getFormat(), fileFormat.getFrameLength());
+        final int capacity = readAheadCapacity;
+        if (capacity > 0) {
+            final FFReadAheadChannel channel = new FFReadAheadChannel(stream, capacity, readAheadLowWatermark, readAheadHighWatermark);
+            try {
+                return getAudioInputStream(channel, streamIndex);
+            } catch (IOException | UnsupportedAudioFileException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        // the stream is probed only once, by the decoder's native peer and outside the global lock,
+        // so mark() is not required.
+        // but if it's supported, we try to leave the stream untouched for other readers, should we fail.
+        final boolean marked = stream.markSupported();
+        if (marked) stream.mark(Math.max(probeSize, STREAM_MARK_LIMIT));
+        try {
+            return toAudioInputStream(new FFStreamInputStream(stream, streamIndex, decoderThreads, formatHint, probeSize, analyzeDuration), streamIndex);
+        } catch (UnsupportedAudioFileException e) {
+            if (marked) resetQuietly(stream);
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a specific audio stream from the given channel.
+     * If the channel is a {@link java.nio.channels.SeekableByteChannel}, e.g. a
+     * {@link java.nio.channels.FileChannel}, the returned stream is seekable
+     * (see {@link FFAudioInputStream#seek(long, TimeUnit)}).
+     *
+     * @param channel blocking channel
+     * @param streamIndex audio stream index
+     * @return audio stream
+     * @throws UnsupportedAudioFileException if the audio is not supported
+     * @throws IOException if an IO error occurs
+     * @throws IndexOutOfBoundsException if the index is not valid.
+     * @see FFStreamInputStream#FFStreamInputStream(ReadableByteChannel, int, int, int, String, int, long)
+     */
+    public AudioInputStream getAudioInputStream(final ReadableByteChannel channel, final int streamIndex) throws UnsupportedAudioFileException, IOException {
+        if (!nativeLibraryLoaded) throw new UnsupportedAudioFileException("Native library ffsampledsp not loaded.");
+        return toAudioInputStream(new FFStreamInputStream(channel, streamIndex, decoderThreads,
+            FFStreamInputStream.DEFAULT_READ_BUFFER_SIZE, formatHint, probeSize, analyzeDuration), streamIndex);
+    }
+
+    /**
+     * Returns one or more {@link AudioFileFormat}s for a complete file held in memory.
+     * Like probing files, this neither opens a decoder nor acquires {@link FFGlobalLock#LOCK}
+     * and respects {@link #setHeaderOnlyProbe(boolean) header-only probing}.
+     *
+     * @param buffer buffer, its remaining bytes must contain the complete file
+     * @return one or more {@link AudioFileFormat}s
+     * @throws UnsupportedAudioFileException if the audio is not supported
+     * @throws IOException if an IO error occurs
+     * @see FFMemoryInputStream
+     */
+    public AudioFileFormat[] getAudioFileFormats(final ByteBuffer buffer) throws UnsupportedAudioFileException, IOException {
+        if (!nativeLibraryLoaded) throw new UnsupportedAudioFileException("Native library ffsampledsp not loaded.");
+        final ByteBuffer accessible = FFMemoryInputStream.accessible(buffer);
+        final AudioFileFormat[] audioFileFormats = accessible.isDirect()
+            ? getAudioFileFormatsFromMemory(accessible, null, 0, 0, headerOnlyProbe, formatHint, probeSize, analyzeDuration)
+            : getAudioFileFormatsFromMemory(null, accessible.array(), accessible.arrayOffset(), accessible.remaining(), headerOnlyProbe, formatHint, probeSize, analyzeDuration);
+        checkPlausibility(audioFileFormats);
+        return audioFileFormats;
+    }
+
+    /**
+     * Opens a complete file held in memory, e.g. a clip loaded from a database.
+     * The encoded data is read in place, i.e. it is not copied, and the returned stream is seekable
+     * (see {@link FFAudioInputStream#seek(long, TimeUnit)}).
+     *
+     * @param buffer buffer, its remaining bytes must contain the complete file. Must not be modified while the stream is open.
+     * @return audio stream
+     * @throws UnsupportedAudioFileException if the audio is not supported
+     * @throws IOException if an IO error occurs
+     * @see FFMemoryInputStream
+     */
+    public AudioInputStream getAudioInputStream(final ByteBuffer buffer) throws UnsupportedAudioFileException, IOException {
+        return getAudioInputStream(buffer, 0);
+    }
+
+    /**
+     * Opens a complete file held in memory.
+     *
+     * @param data complete file. Must not be modified while the stream is open.
+     * @return audio stream
+     * @throws UnsupportedAudioFileException if the audio is not supported
+     * @throws IOException if an IO error occurs
+     * @see #getAudioInputStream(ByteBuffer)
+     */
+    public AudioInputStream getAudioInputStream(final byte[] data) throws UnsupportedAudioFileException, IOException {
+        return getAudioInputStream(ByteBuffer.wrap(data), 0);
+    }
+
+    /**
+     * Opens a specific audio stream of a complete file held in memory.
+     * Useful for <a href="https://www.stems-music.com">Stems</a>.
+     *
+     * @param buffer buffer, its remaining bytes must contain the complete file. Must not be modified while the stream is open.
+     * @param streamIndex audio stream index
+     * @return audio stream
+     * @throws UnsupportedAudioFileException if the audio is not supported
+     * @throws IOException if an IO error occurs
+     * @throws IndexOutOfBoundsException if the index is not valid.
+     * @see #getAudioInputStream(ByteBuffer)
+     */
+    public AudioInputStream getAudioInputStream(final ByteBuffer buffer, final int streamIndex) throws UnsupportedAudioFileException, IOException {
+        if (!nativeLibraryLoaded) throw new UnsupportedAudioFileException("Native library ffsampledsp not loaded.");
+        final FFMemoryInputStream stream = new FFMemoryInputStream(buffer, streamIndex, decoderThreads, formatHint, probeSize, analyzeDuration);
+        boolean success = false;
+        try {
+            final AudioFileFormat[] audioFileFormats = stream.getAudioFileFormats(null);
+            checkPlausibility(audioFileFormats);
+            final AudioFileFormat fileFormat = audioFileFormats[streamIndex];
+            final AudioInputStream audioInputStream = new FFAudioInputStream(stream, fileFormat.getFormat(), fileFormat.getFrameLength());
+            success = true;
+            return audioInputStream;
+        } finally {
+            if (!success) stream.close();
+        }
+    }
+
+    /**
+     * Wraps an opened stream in an {@link FFAudioInputStream}, describing it with the help of its
+     * native peer. Closes the stream, if that fails.
+     */
+    private static AudioInputStream toAudioInputStream(final FFStreamInputStream ffStream, final int streamIndex) throws UnsupportedAudioFileException, IOException {
+        boolean success = false;
+        try {
+            final AudioFileFormat[] audioFileFormats = ffStream.getAudioFileFormats();
+            checkPlausibility(audioFileFormats);
+            final AudioFileFormat fileFormat = audioFileFormats[streamIndex];
+            final AudioInputStream audioInputStream = new FFAudioInputStream(ffStream, fileFormat.getFormat(), fileFormat.getFrameLength());
+            success = true;
+            return audioInputStream;
+        } finally {
+            if (!success) ffStream.close();
+        }
+    }
+
+    private static void resetQuietly(final InputStream stream) {
+        try {
+            stream.reset();
+        } catch (IOException e) {
+            // more than STREAM_MARK_LIMIT bytes were read, nothing we can do
+            Logger.getLogger(FFAudioFileReader.class.getName()).log(Level.FINE, "Failed to reset stream after failed probe.", e);
+        }
     }
 
     /**
      * Allows you to open a specific audio stream from the given URL.
      * Useful for <a href="https://www.stems-music.com">Stems</a>.
+     * <p>
+     * If the URL's formats are not cached yet, they are taken from the opened stream,
+     * i.e. the URL is probed only once and outside of {@link FFGlobalLock#LOCK}.
      *
      * @param url url
      * @param streamIndex audio stream index
@@ -244,8 +878,52 @@ public class FFAudioFileReader extends AudioFileReader {
      */
     public AudioInputStream getAudioInputStream(final URL url, final int streamIndex) throws UnsupportedAudioFileException, IOException {
         if (!nativeLibraryLoaded) throw new UnsupportedAudioFileException("Native library ffsampledsp not loaded.");
-        final AudioFileFormat fileFormat = getAudioFileFormats(url)[streamIndex];
-        return new FFAudioInputStream(new FFURLInputStream(url, streamIndex), fileFormat.getFormat(), fileFormat.getFrameLength());
+        final boolean cacheable = isCacheable();
+        final AudioFileFormat[] cached = cacheable ? cache.get(url) : null;
+        if (cached != null) {
+            final AudioFileFormat fileFormat = cached[streamIndex];
+            return new FFAudioInputStream(openURLInputStream(url, streamIndex), fileFormat.getFormat(), fileFormat.getFrameLength());
+        }
+        // describe the streams using the decoder's native peer, so that the url is opened only once.
+        // the peer probes the url without holding the global lock, only opening its decoder is locked.
+        final boolean cacheUnsupported = isUnsupportedCacheable(url);
+        checkUnsupportedCache(url, cacheUnsupported);
+        // the file may be modified while we probe it, so remember what it looked like before
+        final FileState state = FileState.of(url);
+        final FFURLInputStream stream;
+        try {
+            stream = openURLInputStream(url, streamIndex);
+        } catch (UnsupportedAudioFileException e) {
+            if (cacheUnsupported) unsupportedCache.put(url, UNSUPPORTED, state.length, state.lastModified);
+            throw e;
+        }
+        boolean success = false;
+        try {
+            final AudioFileFormat[] audioFileFormats = stream.getAudioFileFormats();
+            checkPlausibility(audioFileFormats);
+            if (cacheable) cache.put(url, audioFileFormats, state.length, state.lastModified);
+            final AudioFileFormat fileFormat = audioFileFormats[streamIndex];
+            final AudioInputStream audioInputStream = new FFAudioInputStream(stream, fileFormat.getFormat(), fileFormat.getFrameLength());
+            success = true;
+            return audioInputStream;
+        } catch (UnsupportedAudioFileException e) {
+            if (cacheUnsupported) unsupportedCache.put(url, UNSUPPORTED, state.length, state.lastModified);
+            throw e;
+        } finally {
+            if (!success) stream.close();
+        }
+    }
+
+    private FFURLInputStream openURLInputStream(final URL url, final int streamIndex) throws IOException, UnsupportedAudioFileException {
+        final String explicitFormat = formatHint;
+        final String format = explicitFormat != null ? explicitFormat : formatHintFromExtension ? formatFromExtension(url.toString()) : null;
+        try {
+            return new FFURLInputStream(url, streamIndex, decoderThreads, format, probeSize, analyzeDuration);
+        } catch (UnsupportedAudioFileException e) {
+            // the extension may have been misleading
+            if (explicitFormat != null || format == null) throw e;
+            return new FFURLInputStream(url, streamIndex, decoderThreads, null, probeSize, analyzeDuration);
+        }
     }
 
     /**
@@ -264,67 +942,164 @@ public class FFAudioFileReader extends AudioFileReader {
     public AudioInputStream getAudioInputStream(final File file, final int streamIndex) throws UnsupportedAudioFileException, IOException {
         if (!file.exists()) throw new FileNotFoundException(file.toString());
         if (!file.canRead()) throw new IOException("Can't read " + file);
+        if (memoryMapped && file.length() <= Integer.MAX_VALUE) {
+            return getMappedAudioInputStream(file, streamIndex);
+        }
         return getAudioInputStream(fileToURL(file), streamIndex);
     }
 
+    private AudioInputStream getMappedAudioInputStream(final File file, final int streamIndex) throws UnsupportedAudioFileException, IOException {
+        if (!nativeLibraryLoaded) throw new UnsupportedAudioFileException("Native library ffsampledsp not loaded.");
+        final URL url = fileToURL(file);
+        // FFmpeg did not use to recognize DRM-crippled files.
+        if (file.getName().toLowerCase().endsWith(".m4p")) {
+            throw new UnsupportedAudioFileException("DRM encrypted file is unsupported: " + url);
+        }
+        final boolean cacheUnsupported = isUnsupportedCacheable(url);
+        checkUnsupportedCache(url, cacheUnsupported);
+        // the file may be modified while we probe it, so remember what it looked like before
+        final FileState state = FileState.of(url);
+        final ByteBuffer mapped = FFMemoryInputStream.map(file.toPath());
+        final String explicitFormat = formatHint;
+        final String format = explicitFormat != null ? explicitFormat : formatHintFromExtension ? formatFromExtension(url.toString()) : null;
+        FFMemoryInputStream stream;
+        try {
+            try {
+                stream = new FFMemoryInputStream(mapped, streamIndex, decoderThreads, format, probeSize, analyzeDuration);
+            } catch (UnsupportedAudioFileException e) {
+                // the extension may have been misleading
+                if (explicitFormat != null || format == null) throw e;
+                stream = new FFMemoryInputStream(mapped, streamIndex, decoderThreads, null, probeSize, analyzeDuration);
+            }
+        } catch (UnsupportedAudioFileException e) {
+            if (cacheUnsupported) unsupportedCache.put(url, UNSUPPORTED, state.length, state.lastModified);
+            throw e;
+        }
+        boolean success = false;
+        try {
+            final boolean cacheable = isCacheable();
+            AudioFileFormat[] audioFileFormats = cacheable ? cache.get(url) : null;
+            if (audioFileFormats == null) {
+                audioFileFormats = stream.getAudioFileFormats(urlToString(url));
+                checkPlausibility(audioFileFormats);
+                if (cacheable) cache.put(url, audioFileFormats, state.length, state.lastModified);
+            }
+            final AudioFileFormat fileFormat = audioFileFormats[streamIndex];
+            final AudioInputStream audioInputStream = new FFAudioInputStream(stream, fileFormat.getFormat(), fileFormat.getFrameLength());
+            success = true;
+            return audioInputStream;
+        } catch (UnsupportedAudioFileException e) {
+            if (cacheUnsupported) unsupportedCache.put(url, UNSUPPORTED, state.length, state.lastModified);
+            throw e;
+        } finally {
+            if (!success) stream.close();
+        }
+    }
+
     /**
-     * Makes sure that functions like <code>avcodec_open2</code> are not called from multiple
-     * threads at the same time.
+     * Probes the given url and checks the result for plausibility.
+     * Probing does not acquire {@link FFGlobalLock#LOCK}, i.e. multiple threads
+     * may probe different files in parallel.
      *
      * @param url url
      * @return file formats
      * @throws IOException if an IO error occurs
      * @throws UnsupportedAudioFileException if the audio is not supported
      */
-    private AudioFileFormat[] lockedGetAudioFileFormatsFromURL(final String url) throws IOException, UnsupportedAudioFileException {
-        LOCK.lock();
+    private AudioFileFormat[] probeAudioFileFormatsFromURL(final String url) throws IOException, UnsupportedAudioFileException {
+        final String explicitFormat = formatHint;
+        final String format = explicitFormat != null ? explicitFormat : formatHintFromExtension ? formatFromExtension(url) : null;
         try {
-            final AudioFileFormat[] audioFileFormat = getAudioFileFormatsFromURL(url);
+            final AudioFileFormat[] audioFileFormat = getAudioFileFormatsFromURL(url, headerOnlyProbe, format, probeSize, analyzeDuration);
+            checkPlausibility(audioFileFormat);
+            return audioFileFormat;
+        } catch (UnsupportedAudioFileException e) {
+            // the extension may have been misleading
+            if (explicitFormat != null || format == null) throw e;
+            final AudioFileFormat[] audioFileFormat = getAudioFileFormatsFromURL(url, headerOnlyProbe, null, probeSize, analyzeDuration);
             checkPlausibility(audioFileFormat);
             return audioFileFormat;
-        } finally {
-            LOCK.unlock();
         }
     }
 
     /**
-     * Makes sure that functions like <code>avcodec_open2</code> are not called from multiple
-     * threads at the same time.
+     * Probes the given buffer and checks the result for plausibility.
+     * Probing does not acquire {@link FFGlobalLock#LOCK}, i.e. multiple threads
+     * may probe different buffers in parallel.
      *
      * @param byteBuffer byteBuffer
      * @return file formats
      * @throws IOException if an IO error occurs
      * @throws UnsupportedAudioFileException if the audio is not supported
      */
-    private AudioFileFormat[] lockedGetAudioFileFormatFromBuffer(final ByteBuffer byteBuffer) throws IOException, UnsupportedAudioFileException {
-        LOCK.lock();
-        try {
-            final AudioFileFormat[] audioFileFormat = getAudioFileFormatsFromBuffer(byteBuffer);
-            checkPlausibility(audioFileFormat);
-            return audioFileFormat;
-        } finally {
-            LOCK.unlock();
-        }
+    private AudioFileFormat[] probeAudioFileFormatsFromBuffer(final ByteBuffer byteBuffer) throws IOException, UnsupportedAudioFileException {
+        final AudioFileFormat[] audioFileFormat = getAudioFileFormatsFromBuffer(byteBuffer, headerOnlyProbe, formatHint, probeSize, analyzeDuration);
+        checkPlausibility(audioFileFormat);
+        return audioFileFormat;
     }
 
     /**
      * Determine {@link AudioFileFormat}s from url.
      *
      * @param url url
+     * @param headerOnly if true, skip stream analysis, if the header is sufficient
+     * @param formatName demuxer name or <code>null</code> to detect the format
+     * @param probeSize max number of bytes to probe or <code>0</code>
+     * @param analyzeDuration max duration to analyze in microseconds or <code>0</code>
      * @return {@link AudioFileFormat}s
      * @throws IOException if an IO error occurs
      */
-    private native AudioFileFormat[] getAudioFileFormatsFromURL(final String url) throws IOException, UnsupportedAudioFileException;
+    private native AudioFileFormat[] getAudioFileFormatsFromURL(final String url, final boolean headerOnly,
+                                                                final String formatName, final int probeSize, final long analyzeDuration) throws IOException, UnsupportedAudioFileException;
 
     /**
      * Determine {@link AudioFileFormat} from a file containing just the first kbs from a stream.
      *
      * @param byteBuffer buffer with the beginning from an audio stream
+     * @param headerOnly if true, skip stream analysis, if the header is sufficient
+     * @param formatName demuxer name or <code>null</code> to detect the format
+     * @param probeSize max number of bytes to probe or <code>0</code>
+     * @param analyzeDuration max duration to analyze in microseconds or <code>0</code>
      * @return {@link AudioFileFormat}
      * @throws IOException if an IO error occurs
      */
-    private native AudioFileFormat[] getAudioFileFormatsFromBuffer(final ByteBuffer byteBuffer) throws IOException, UnsupportedAudioFileException;
+    private native AudioFileFormat[] getAudioFileFormatsFromBuffer(final ByteBuffer byteBuffer, final boolean headerOnly,
+                                                                   final String formatName, final int probeSize, final long analyzeDuration) throws IOException, UnsupportedAudioFileException;
+
+    /**
+     * Determine {@link AudioFileFormat}s from a complete file held in memory, read in place through a seekable custom IO context.
+     *
+     * @param buffer direct buffer containing the complete file or <code>null</code>
+     * @param array array, only used if <code>buffer</code> is <code>null</code>
+     * @param offset offset of the file in <code>array</code>
+     * @param length length of the file in <code>array</code>
+     * @param headerOnly if true, skip stream analysis, if the header is sufficient
+     * @param formatName demuxer name or <code>null</code> to detect the format
+     * @param probeSize max number of bytes to probe or <code>0</code>
+     * @param analyzeDuration max duration to analyze in microseconds or <code>0</code>
+     * @return {@link AudioFileFormat}s
+     * @throws IOException if an IO error occurs
+     */
+    private native AudioFileFormat[] getAudioFileFormatsFromMemory(final ByteBuffer buffer, final byte[] array, final int offset, final int length,
+                                                                   final boolean headerOnly, final String formatName,
+                                                                   final int probeSize, final long analyzeDuration) throws IOException, UnsupportedAudioFileException;
+
+    /**
+     * Size and modification time of a file, taken before probing it, so that cache and index
+     * entries are validated against what the probe actually saw.
+     */
+    private static final class FileState {
+        private final long length;
+        private final long lastModified;
 
+        private FileState(final File file) {
+            this.length = file == null ? 0 : file.length();
+            this.lastModified = file == null ? 0 : file.lastModified();
+        }
 
+        private static FileState of(final URL url) {
+            return new FileState(FFAudioFileFormatCache.toFile(url));
+        }
+    }
 }
 
@@ -24,16 +24,22 @@ import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Effectively acts as a wrapper around our own {@link FFNativePeerInputStream}.
+ * <p>
+ * As {@link ReadableByteChannel}, this stream allows reading whole frames into
+ * a (preferably direct) {@link ByteBuffer} via {@link #read(ByteBuffer)}.
  *
  * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
  */
-public class FFAudioInputStream extends AudioInputStream {
+public class FFAudioInputStream extends AudioInputStream implements ReadableByteChannel {
 
     private final FFNativePeerInputStream nativePeerInputStream;
     private final long ffFrameLength;
@@ -93,6 +99,99 @@ public class FFAudioInputStream extends AudioInputStream {
         return nativePeerInputStream.pointer;
     }
 
+    /**
+     * Reads whole frames into the given buffer. If the buffer is a direct buffer,
+     * decoded audio is copied straight from native memory to the destination.
+     * Like {@link #read(byte[], int, int)}, this method never reads partial frames
+     * and never reads beyond the frame length of this stream.
+     *
+     * @param dst destination buffer
+     * @return number of bytes read, possibly zero, or <code>-1</code>, if the end of the stream has been reached
+     * @throws IOException if an IO error occurs
+     */
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        return read(dst, false);
+    }
+
+    /**
+     * Decodes whole frames directly into the given direct buffer, without
+     * going through the stream's internal native buffer.
+     * Like {@link #read(ByteBuffer)}, this method never reads beyond the frame length of this stream.
+     *
+     * @param dst direct destination buffer
+     * @return number of bytes decoded into <code>dst</code>, possibly zero, or <code>-1</code>, if the end of the stream has been reached
+     * @throws IOException if an IO error occurs
+     * @throws IllegalArgumentException if <code>dst</code> is not a direct buffer
+     * @see FFNativePeerInputStream#decodeInto(ByteBuffer)
+     */
+    public int decodeInto(final ByteBuffer dst) throws IOException {
+        return read(dst, true);
+    }
+
+    private int read(final ByteBuffer dst, final boolean decodeInto) throws IOException {
+        int len = dst.remaining();
+        if (len % frameSize != 0) {
+            len -= len % frameSize;
+            if (len == 0) return 0;
+        }
+        if (frameLength != AudioSystem.NOT_SPECIFIED) {
+            if (framePos >= frameLength) return -1;
+            if (len / frameSize > frameLength - framePos) {
+                len = (int) ((frameLength - framePos) * frameSize);
+            }
+        }
+        if (len == 0) return 0;
+
+        final int limit = dst.limit();
+        final int bytesRead;
+        // workaround covariant return type introduced in Java 9
+        // ensure limit(int) is called on Buffer, not ByteBuffer
+        ((Buffer)dst).limit(dst.position() + len);
+        try {
+            bytesRead = decodeInto
+                ? nativePeerInputStream.decodeInto(dst)
+                : nativePeerInputStream.read(dst);
+        } finally {
+            ((Buffer)dst).limit(limit);
+        }
+        if (bytesRead > 0) {
+            framePos += bytesRead / frameSize;
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Indicates whether the underlying native stream is still open.
+     *
+     * @return true, if open
+     */
+    @Override
+    public boolean isOpen() {
+        return nativePeerInputStream.isOpen();
+    }
+
+    /**
+     * Sets the number of bytes decoded per call into native code.
+     *
+     * @param fillTarget fill target in bytes
+     * @see FFNativePeerInputStream#setFillTarget(int)
+     */
+    public void setFillTarget(final int fillTarget) {
+        nativePeerInputStream.setFillTarget(fillTarget);
+    }
+
+    /**
+     * Sets the number of buffers decoded ahead in a background thread.
+     * Must be called before the first read.
+     *
+     * @param depth number of buffers, <code>0</code> disables decoding ahead
+     * @see FFNativePeerInputStream#setDecodeAhead(int)
+     */
+    public void setDecodeAhead(final int depth) {
+        nativePeerInputStream.setDecodeAhead(depth);
+    }
+
     /**
      * Indicates whether this stream is seekable.
      * Typically, stream based streams (as opposed to file-based streams)
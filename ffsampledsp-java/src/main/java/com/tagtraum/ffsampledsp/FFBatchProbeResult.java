@@ -0,0 +1,118 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ */
+package com.tagtraum.ffsampledsp;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of probing a batch of files, including simple throughput statistics.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see FFAudioFileReader#getAudioFileFormats(java.util.Collection, java.util.concurrent.Executor)
+ */
+public final class FFBatchProbeResult {
+
+    private final List<FFProbeResult> results;
+    private final long elapsedNanos;
+    private final int failures;
+
+    FFBatchProbeResult(final FFProbeResult[] results, final long elapsedNanos) {
+        this.results = Collections.unmodifiableList(Arrays.asList(results));
+        this.elapsedNanos = elapsedNanos;
+        int failures = 0;
+        for (final FFProbeResult result : results) {
+            if (!result.isSuccess()) failures++;
+        }
+        this.failures = failures;
+    }
+
+    /**
+     * Results, in the iteration order of the probed collection.
+     *
+     * @return results
+     */
+    public List<FFProbeResult> getResults() {
+        return results;
+    }
+
+    /**
+     * Number of files that were probed successfully.
+     *
+     * @return count
+     */
+    public int getSuccessCount() {
+        return results.size() - failures;
+    }
+
+    /**
+     * Number of files that could not be probed.
+     *
+     * @return count
+     */
+    public int getFailureCount() {
+        return failures;
+    }
+
+    /**
+     * Wall clock time it took to probe the whole batch.
+     *
+     * @return nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Sum of the times it took to probe the individual files.
+     * Divided by {@link #getElapsedNanos()}, this is the effective parallelism.
+     *
+     * @return nanoseconds
+     */
+    public long getTotalProbeNanos() {
+        long nanos = 0;
+        for (final FFProbeResult result : results) {
+            nanos += result.getNanos();
+        }
+        return nanos;
+    }
+
+    /**
+     * Throughput.
+     *
+     * @return probed files per second
+     */
+    public double getFilesPerSecond() {
+        if (elapsedNanos <= 0) return 0;
+        return results.size() * 1000000000.0 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "FFBatchProbeResult{" +
+            "files=" + results.size() +
+            ", failures=" + failures +
+            ", elapsedNanos=" + elapsedNanos +
+            ", filesPerSecond=" + getFilesPerSecond() +
+            '}';
+    }
+}
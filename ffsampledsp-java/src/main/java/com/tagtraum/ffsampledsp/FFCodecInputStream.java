@@ -23,13 +23,12 @@ package com.tagtraum.ffsampledsp;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.IOException;
-import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import static com.tagtraum.ffsampledsp.FFAudioFormat.FFEncoding.Codec.*;
-import static com.tagtraum.ffsampledsp.FFGlobalLock.LOCK;
 import static java.util.Arrays.asList;
 
 /**
@@ -53,6 +52,7 @@ public class FFCodecInputStream extends FFNativePeerInputStream {
 
     private static final Set<Integer> PCM_VALID_SAMPLE_SIZES = new HashSet<>(asList(8, 16, 24, 32));
     private static final Set<Integer> PCM_FLOAT_VALID_SAMPLE_SIZES = new HashSet<>(asList(32, 64));
+    private static final FFLockStatistics OPEN_LOCK_STATISTICS = FFLockStatistics.forCallSite("FFCodecInputStream.open");
     private final FFNativePeerInputStream wrappedStream;
 
     public FFCodecInputStream(final AudioFormat targetFormat, final FFAudioInputStream stream) throws IOException, UnsupportedAudioFileException {
@@ -71,9 +71,6 @@ public class FFCodecInputStream extends FFNativePeerInputStream {
 
         this.wrappedStream = stream.getNativePeerInputStream();
 
-        // workaround covariant return type introduced in Java 9
-        // ensure limit(int) is called on Buffer, not ByteBuffer
-        ((Buffer)this.nativeBuffer).limit(0);
         this.pointer = lockedOpen(audioFormat, stream.getNativePeerInputStreamPointer());
     }
 
@@ -145,10 +142,40 @@ public class FFCodecInputStream extends FFNativePeerInputStream {
     }
 
     @Override
-    protected boolean isOpen() {
+    public int read(final ByteBuffer dst) throws IOException {
+        return wrappedStream.read(dst);
+    }
+
+    @Override
+    public int decodeInto(final ByteBuffer dst) throws IOException {
+        return wrappedStream.decodeInto(dst);
+    }
+
+    @Override
+    public boolean isOpen() {
         return wrappedStream.isOpen();
     }
 
+    @Override
+    public int getFillTarget() {
+        return wrappedStream.getFillTarget();
+    }
+
+    @Override
+    public void setFillTarget(final int fillTarget) {
+        wrappedStream.setFillTarget(fillTarget);
+    }
+
+    @Override
+    public int getDecodeAhead() {
+        return wrappedStream.getDecodeAhead();
+    }
+
+    @Override
+    public void setDecodeAhead(final int depth) {
+        wrappedStream.setDecodeAhead(depth);
+    }
+
     @Override
     public void close() throws IOException {
         wrappedStream.close();
@@ -175,11 +202,11 @@ public class FFCodecInputStream extends FFNativePeerInputStream {
     }
 
     private long lockedOpen(final AudioFormat target, final long pointer) throws IOException {
-        LOCK.lock();
+        final long acquired = FFGlobalLock.lock(OPEN_LOCK_STATISTICS);
         try {
             return open(target, pointer);
         } finally {
-            LOCK.unlock();
+            FFGlobalLock.unlock(OPEN_LOCK_STATISTICS, acquired);
         }
     }
 
@@ -0,0 +1,391 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ */
+package com.tagtraum.ffsampledsp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decodes the audio of a {@link FFNativePeerInputStream} ahead of time in a background thread.
+ * <p>
+ * The worker decodes into a small ring of direct buffers (via
+ * {@link FFNativePeerInputStream#decodeDirectly(ByteBuffer)}), while the reader drains the current one.
+ * Buffers are handed back and forth between the two threads, but never copied.
+ * Up to <code>depth</code> buffers are decoded ahead of the one being read.
+ * The buffers are acquired from {@link FFDirectBufferPool} and released once decoding ahead stops.
+ * <p>
+ * The worker only references the stream weakly (and strongly only while decoding a buffer),
+ * so that a stream that is not closed can still be finalized, which in turn stops the worker.
+ * <p>
+ * The worker is started with the first read, so that the stream may still be configured
+ * (e.g. wrapped by a {@link FFCodecInputStream}) before decoding begins.
+ * <p>
+ * Lock order is stream monitor first, then {@link #lock}. The reader only ever holds {@link #lock},
+ * the worker never holds both at the same time.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see FFNativePeerInputStream#setDecodeAhead(int)
+ */
+final class FFDecodeAhead {
+
+    private static final int MIN_BUFFER_SIZE = 32 * 1024;
+
+    private final WeakReference<FFNativePeerInputStream> stream;
+    private final int depth;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition filled = lock.newCondition();
+    private final Condition emptied = lock.newCondition();
+    /**
+     * Decoded buffers, ready to be read.
+     */
+    private final ArrayDeque<ByteBuffer> full = new ArrayDeque<>();
+    /**
+     * Buffers ready to be decoded into.
+     */
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    /**
+     * Buffer currently drained by the reader.
+     */
+    private ByteBuffer current;
+    private Thread worker;
+    private boolean endOfStream;
+    private boolean closed;
+    private IOException error;
+    /**
+     * Incremented whenever decoded audio becomes invalid, e.g. because of a seek.
+     * Modified while holding both the stream's monitor and {@link #lock}.
+     */
+    private long generation;
+
+    /**
+     * @param stream stream to decode
+     * @param depth number of buffers to decode ahead
+     * @throws IllegalArgumentException if <code>depth</code> is less than <code>1</code>
+     */
+    FFDecodeAhead(final FFNativePeerInputStream stream, final int depth) {
+        if (depth < 1) throw new IllegalArgumentException("Decode-ahead depth must be greater than 0: " + depth);
+        this.stream = new WeakReference<>(stream);
+        this.depth = depth;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Indicates whether the worker has been started, i.e. whether the stream has been read from.
+     *
+     * @return true, if started
+     */
+    boolean isStarted() {
+        lock.lock();
+        try {
+            return worker != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must be called by the reading stream while holding {@link #lock}.
+     */
+    private void start() {
+        final FFNativePeerInputStream stream = this.stream.get();
+        if (worker != null || closed || stream == null) return;
+        final int bufferSize = Math.max(MIN_BUFFER_SIZE, 2 * stream.getFillTarget());
+        // one more than depth, so that the worker can decode depth buffers ahead of the one being read
+        for (int i = 0; i <= depth; i++) {
+            free.add(FFDirectBufferPool.getInstance().acquire(bufferSize));
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                decode();
+            }
+        }, "FFDecodeAhead");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Worker loop.
+     */
+    private void decode() {
+        try {
+            while (decodeNext()) {
+                // keep decoding
+            }
+        } catch (InterruptedException e) {
+            lock.lock();
+            try {
+                error = new InterruptedIOException("Decode-ahead was interrupted.");
+                endOfStream = true;
+                filled.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits for a free buffer and decodes into it. The stream is only strongly
+     * referenced while decoding, not while waiting.
+     *
+     * @return false, if the worker should stop
+     * @throws InterruptedException if the worker was interrupted while waiting
+     */
+    private boolean decodeNext() throws InterruptedException {
+        final ByteBuffer buffer;
+        lock.lock();
+        try {
+            while (!closed && (free.isEmpty() || endOfStream)) {
+                emptied.await();
+            }
+            if (closed) return false;
+            buffer = free.poll();
+        } finally {
+            lock.unlock();
+        }
+        final FFNativePeerInputStream stream = this.stream.get();
+        if (stream == null) {
+            // the stream was garbage collected without being closed
+            lock.lock();
+            try {
+                closed = true;
+                endOfStream = true;
+                free.add(buffer);
+                releaseBuffers();
+                filled.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            return false;
+        }
+        // workaround covariant return type introduced in Java 9
+        // ensure clear() and flip() are called on Buffer, not ByteBuffer
+        ((Buffer)buffer).clear();
+        long decodedGeneration;
+        int length;
+        IOException decodeError = null;
+        synchronized (stream) {
+            decodedGeneration = generation;
+            try {
+                length = stream.decodeDirectly(buffer);
+            } catch (IOException e) {
+                length = -1;
+                decodeError = e;
+            } catch (RuntimeException e) {
+                length = -1;
+                decodeError = new IOException(e);
+            }
+        }
+        ((Buffer)buffer).flip();
+        lock.lock();
+        try {
+            if (closed) {
+                FFDirectBufferPool.getInstance().release(buffer);
+                return false;
+            }
+            if (decodedGeneration != generation || length < 0) {
+                free.add(buffer);
+            } else {
+                full.add(buffer);
+            }
+            if (decodedGeneration == generation && length < 0) {
+                endOfStream = true;
+                error = decodeError;
+            }
+            filled.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Makes a buffer the reader is done with available to the worker again or,
+     * if decoding ahead has stopped, returns it to {@link FFDirectBufferPool}.
+     * Must be called while holding {@link #lock}.
+     *
+     * @param buffer buffer
+     */
+    private void recycle(final ByteBuffer buffer) {
+        if (closed) {
+            FFDirectBufferPool.getInstance().release(buffer);
+        } else {
+            free.add(buffer);
+        }
+    }
+
+    /**
+     * Returns all buffers not currently held by the worker to {@link FFDirectBufferPool}.
+     * Must be called while holding {@link #lock}.
+     */
+    private void releaseBuffers() {
+        final FFDirectBufferPool pool = FFDirectBufferPool.getInstance();
+        for (final ByteBuffer buffer : free) {
+            pool.release(buffer);
+        }
+        free.clear();
+        for (final ByteBuffer buffer : full) {
+            pool.release(buffer);
+        }
+        full.clear();
+        pool.release(current);
+        current = null;
+    }
+
+    /**
+     * Makes sure {@link #current} has remaining bytes, swapping it for the next
+     * decoded buffer, if necessary. Must be called while holding {@link #lock}.
+     *
+     * @return false, if the end of the stream has been reached
+     * @throws IOException if decoding failed or the reader was interrupted
+     */
+    private boolean nextBuffer() throws IOException {
+        start();
+        while (current == null || !current.hasRemaining()) {
+            if (current != null) {
+                recycle(current);
+                current = null;
+                emptied.signalAll();
+            }
+            while (full.isEmpty() && !endOfStream && !closed) {
+                try {
+                    filled.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for decoded audio.");
+                }
+            }
+            if (full.isEmpty()) {
+                if (error != null) throw new IOException("Failed to decode ahead.", error);
+                return false;
+            }
+            current = full.poll();
+        }
+        return true;
+    }
+
+    int read() throws IOException {
+        lock.lock();
+        try {
+            if (!nextBuffer()) return -1;
+            return current.get() & 0xff;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int read(final byte[] b, final int off, final int len) throws IOException {
+        lock.lock();
+        try {
+            int bytesRead = 0;
+            while (bytesRead < len && nextBuffer()) {
+                final int chunkSize = Math.min(len - bytesRead, current.remaining());
+                current.get(b, off + bytesRead, chunkSize);
+                bytesRead += chunkSize;
+            }
+            return bytesRead == 0 ? -1 : bytesRead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int read(final ByteBuffer dst) throws IOException {
+        lock.lock();
+        try {
+            int bytesRead = 0;
+            while (dst.hasRemaining() && nextBuffer()) {
+                bytesRead += FFNativePeerInputStream.transfer(current, dst);
+            }
+            return bytesRead == 0 ? -1 : bytesRead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards all audio decoded so far and lets the worker continue at the
+     * stream's current position. Must be called while holding the stream's monitor,
+     * e.g. right after seeking.
+     */
+    void discard() {
+        lock.lock();
+        try {
+            generation++;
+            for (final ByteBuffer buffer : full) {
+                recycle(buffer);
+            }
+            full.clear();
+            if (current != null) {
+                recycle(current);
+                current = null;
+            }
+            endOfStream = false;
+            error = null;
+            emptied.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops decoding ahead. Must be called while holding the stream's monitor.
+     * <p>
+     * When called by the worker itself, i.e. when the stream closes itself after its
+     * last fill, audio that has already been decoded remains readable and its buffers
+     * are released once they have been read. Otherwise it is discarded.
+     * Either way, the buffer the worker is decoding into is released by the worker.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            endOfStream = true;
+            if (Thread.currentThread() != worker) {
+                releaseBuffers();
+            } else {
+                for (final ByteBuffer buffer : free) {
+                    FFDirectBufferPool.getInstance().release(buffer);
+                }
+                free.clear();
+            }
+            filled.signalAll();
+            emptied.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FFDecodeAhead{" +
+            "depth=" + depth +
+            '}';
+    }
+}
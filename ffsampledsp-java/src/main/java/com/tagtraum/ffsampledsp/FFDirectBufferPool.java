@@ -0,0 +1,152 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ */
+package com.tagtraum.ffsampledsp;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread-safe pool of direct {@link ByteBuffer}s.
+ * <p>
+ * Buffers are organized in size classes (powers of two), so that a released buffer
+ * can be handed out again for any request of the same class. The pool only keeps idle
+ * buffers up to a total of <code>maxBytes</code> and up to <code>maxBuffersPerClass</code>
+ * per size class. Requests larger than <code>maxBufferSize</code> are never pooled.
+ * <p>
+ * The shared instance is configured via the system properties
+ * <code>ffsampledsp.bufferpool.maxBytes</code> (default 32 MiB),
+ * <code>ffsampledsp.bufferpool.maxBuffersPerClass</code> (default 32) and
+ * <code>ffsampledsp.bufferpool.maxBufferSize</code> (default 4 MiB).
+ * Setting <code>maxBytes</code> to <code>0</code> effectively disables pooling.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class FFDirectBufferPool {
+
+    private static final int MIN_CLASS_SHIFT = 12; // 4 KiB
+    private static final int MAX_CLASS_SHIFT = 30; // 1 GiB
+
+    private static final FFDirectBufferPool INSTANCE = new FFDirectBufferPool(
+        Long.getLong("ffsampledsp.bufferpool.maxBytes", 32L * 1024 * 1024),
+        Integer.getInteger("ffsampledsp.bufferpool.maxBuffersPerClass", 32),
+        Integer.getInteger("ffsampledsp.bufferpool.maxBufferSize", 4 * 1024 * 1024)
+    );
+
+    private final long maxBytes;
+    private final int maxBuffersPerClass;
+    private final int maxBufferSize;
+    private final Queue<ByteBuffer>[] idleBuffers;
+    private final AtomicInteger[] idleCounts;
+    private final AtomicLong idleBytes = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    FFDirectBufferPool(final long maxBytes, final int maxBuffersPerClass, final int maxBufferSize) {
+        this.maxBytes = maxBytes;
+        this.maxBuffersPerClass = maxBuffersPerClass;
+        this.maxBufferSize = Math.min(maxBufferSize, 1 << MAX_CLASS_SHIFT);
+        final int classes = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+        this.idleBuffers = new Queue[classes];
+        this.idleCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            this.idleBuffers[i] = new ConcurrentLinkedQueue<>();
+            this.idleCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Shared pool instance.
+     *
+     * @return pool
+     */
+    static FFDirectBufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a cleared direct buffer in big endian byte order with a capacity of
+     * <em>at least</em> <code>minimumCapacity</code> bytes.
+     *
+     * @param minimumCapacity minimum capacity
+     * @return direct buffer
+     */
+    ByteBuffer acquire(final int minimumCapacity) {
+        if (minimumCapacity > maxBufferSize) {
+            return ByteBuffer.allocateDirect(minimumCapacity);
+        }
+        final int sizeClass = sizeClass(minimumCapacity);
+        final ByteBuffer buffer = idleBuffers[sizeClass].poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(1 << (sizeClass + MIN_CLASS_SHIFT));
+        }
+        idleCounts[sizeClass].decrementAndGet();
+        idleBytes.addAndGet(-buffer.capacity());
+        // workaround covariant return type introduced in Java 9
+        // ensure clear() is called on Buffer, not ByteBuffer
+        ((Buffer)buffer).clear();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that were not acquired from
+     * this pool or that exceed the pool's limits are simply dropped.
+     * The caller must not use the buffer after releasing it.
+     *
+     * @param buffer buffer, may be <code>null</code>
+     */
+    void release(final ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.isReadOnly()) return;
+        final int capacity = buffer.capacity();
+        if (capacity > maxBufferSize || Integer.bitCount(capacity) != 1 || capacity < 1 << MIN_CLASS_SHIFT) return;
+        final int sizeClass = sizeClass(capacity);
+        if (idleCounts[sizeClass].incrementAndGet() > maxBuffersPerClass) {
+            idleCounts[sizeClass].decrementAndGet();
+            return;
+        }
+        if (idleBytes.addAndGet(capacity) > maxBytes) {
+            idleBytes.addAndGet(-capacity);
+            idleCounts[sizeClass].decrementAndGet();
+            return;
+        }
+        idleBuffers[sizeClass].offer(buffer);
+    }
+
+    /**
+     * Number of bytes currently held by idle buffers.
+     *
+     * @return bytes
+     */
+    long getIdleBytes() {
+        return idleBytes.get();
+    }
+
+    private static int sizeClass(final int capacity) {
+        final int shift = capacity <= 1 << MIN_CLASS_SHIFT
+            ? MIN_CLASS_SHIFT
+            : 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return shift - MIN_CLASS_SHIFT;
+    }
+}
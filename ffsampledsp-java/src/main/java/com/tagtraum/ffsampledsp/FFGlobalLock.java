@@ -24,6 +24,15 @@ import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Global lock to synchronize certain native function calls.
+ * <p>
+ * Only opening a decoder or encoder (i.e. calls that end up in <code>avcodec_open2</code>)
+ * is guarded by this lock. Probing files, analyzing stream info, decoding and closing
+ * operate on per-instance FFmpeg contexts, which FFmpeg 4.x allows to be used from
+ * different threads concurrently. Therefore these calls do <em>not</em> acquire this lock.
+ * <p>
+ * Decoding streams are opened in two steps: The native peer first probes its input
+ * (which may block on slow files, sockets or Java {@link java.io.InputStream}s) without
+ * holding this lock, and only then opens its decoder while holding it.
  *
  * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
  */
@@ -35,6 +44,34 @@ class FFGlobalLock {
      */
     public static final ReentrantLock LOCK = new ReentrantLock();
 
+    /**
+     * Acquires {@link #LOCK} and records the time spent waiting for it.
+     *
+     * @param statistics statistics for the calling site
+     * @return time at which the lock was acquired, to be passed to {@link #unlock(FFLockStatistics, long)}
+     */
+    static long lock(final FFLockStatistics statistics) {
+        final long requested = System.nanoTime();
+        LOCK.lock();
+        final long acquired = System.nanoTime();
+        statistics.recordWait(acquired - requested);
+        return acquired;
+    }
+
+    /**
+     * Records the time {@link #LOCK} was held and releases it.
+     *
+     * @param statistics statistics for the calling site
+     * @param acquired time at which the lock was acquired, as returned by {@link #lock(FFLockStatistics)}
+     */
+    static void unlock(final FFLockStatistics statistics, final long acquired) {
+        try {
+            statistics.recordHold(System.nanoTime() - acquired);
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
     private FFGlobalLock() {
     }
 }
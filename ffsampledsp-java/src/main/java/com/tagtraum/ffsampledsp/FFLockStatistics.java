@@ -0,0 +1,234 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ */
+package com.tagtraum.ffsampledsp;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Contention statistics for the global lock that serializes opening native decoders
+ * and encoders, kept per call site.
+ * <p>
+ * For each call site, the time spent waiting for the lock and the time the lock
+ * was held are recorded as totals, maxima and histograms. Histogram bucket
+ * <code>i</code> counts durations between <code>2<sup>i</sup></code> (inclusive) and
+ * <code>2<sup>i+1</sup></code> (exclusive) microseconds, with bucket <code>0</code> also
+ * counting everything shorter than one microsecond (see {@link #bucket(long)}).
+ * <p>
+ * If the system property <code>ffsampledsp.lock.jmx</code> is <code>true</code>,
+ * each call site is also registered as MBean with the platform MBean server under
+ * <code>com.tagtraum.ffsampledsp:type=LockStatistics,name=&lt;call site&gt;</code>.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see #getAll()
+ */
+public final class FFLockStatistics implements FFLockStatisticsMBean {
+
+    /**
+     * Number of histogram buckets.
+     */
+    public static final int BUCKETS = 32;
+
+    private static final Logger LOG = Logger.getLogger(FFLockStatistics.class.getName());
+    private static final boolean JMX = Boolean.getBoolean("ffsampledsp.lock.jmx");
+    private static final ConcurrentMap<String, FFLockStatistics> STATISTICS = new ConcurrentHashMap<>();
+
+    private final String callSite;
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final LongAdder totalHoldNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong maxHoldNanos = new AtomicLong();
+    private final AtomicLongArray waitHistogram = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray holdHistogram = new AtomicLongArray(BUCKETS);
+
+    FFLockStatistics(final String callSite) {
+        this.callSite = callSite;
+    }
+
+    /**
+     * Statistics for the given call site. Creates (and, if enabled, registers
+     * with JMX) a new instance on first use.
+     *
+     * @param callSite call site
+     * @return statistics
+     */
+    static FFLockStatistics forCallSite(final String callSite) {
+        final FFLockStatistics statistics = new FFLockStatistics(callSite);
+        final FFLockStatistics existing = STATISTICS.putIfAbsent(callSite, statistics);
+        if (existing != null) return existing;
+        if (JMX) register(statistics);
+        return statistics;
+    }
+
+    /**
+     * Statistics for the given call site.
+     *
+     * @param callSite call site, e.g. <code>FFURLInputStream.open</code>
+     * @return statistics or <code>null</code>, if the call site is unknown
+     */
+    public static FFLockStatistics get(final String callSite) {
+        return STATISTICS.get(callSite);
+    }
+
+    /**
+     * Statistics for all call sites that have been initialized so far.
+     *
+     * @return statistics
+     */
+    public static Collection<FFLockStatistics> getAll() {
+        return Collections.unmodifiableCollection(new ArrayList<>(STATISTICS.values()));
+    }
+
+    private static void register(final FFLockStatistics statistics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(statistics,
+                new ObjectName("com.tagtraum.ffsampledsp:type=LockStatistics,name=" + ObjectName.quote(statistics.callSite)));
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Failed to register lock statistics for " + statistics.callSite + " with JMX", e);
+        }
+    }
+
+    /**
+     * Records a single acquisition of the lock.
+     *
+     * @param waitNanos time spent waiting for the lock
+     */
+    void recordWait(final long waitNanos) {
+        acquisitions.increment();
+        totalWaitNanos.add(waitNanos);
+        updateMax(maxWaitNanos, waitNanos);
+        waitHistogram.incrementAndGet(bucket(waitNanos));
+    }
+
+    /**
+     * Records a single release of the lock.
+     *
+     * @param holdNanos time the lock was held
+     */
+    void recordHold(final long holdNanos) {
+        totalHoldNanos.add(holdNanos);
+        updateMax(maxHoldNanos, holdNanos);
+        holdHistogram.incrementAndGet(bucket(holdNanos));
+    }
+
+    /**
+     * Histogram bucket for the given duration.
+     *
+     * @param nanos duration in nanoseconds
+     * @return <code>floor(log2(micros))</code>, limited to <code>[0, BUCKETS-1]</code>
+     */
+    static int bucket(final long nanos) {
+        final long micros = nanos / 1000L;
+        if (micros <= 1) return 0;
+        return Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+    }
+
+    private static void updateMax(final AtomicLong max, final long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) break;
+        }
+    }
+
+    private static long[] toArray(final AtomicLongArray histogram) {
+        final long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public String getCallSite() {
+        return callSite;
+    }
+
+    @Override
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    @Override
+    public long getTotalWaitNanos() {
+        return totalWaitNanos.sum();
+    }
+
+    @Override
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    @Override
+    public long getTotalHoldNanos() {
+        return totalHoldNanos.sum();
+    }
+
+    @Override
+    public long getMaxHoldNanos() {
+        return maxHoldNanos.get();
+    }
+
+    @Override
+    public long[] getWaitHistogram() {
+        return toArray(waitHistogram);
+    }
+
+    @Override
+    public long[] getHoldHistogram() {
+        return toArray(holdHistogram);
+    }
+
+    @Override
+    public void reset() {
+        acquisitions.reset();
+        totalWaitNanos.reset();
+        totalHoldNanos.reset();
+        maxWaitNanos.set(0);
+        maxHoldNanos.set(0);
+        for (int i = 0; i < BUCKETS; i++) {
+            waitHistogram.set(i, 0);
+            holdHistogram.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FFLockStatistics{" +
+            "callSite='" + callSite + '\'' +
+            ", acquisitions=" + getAcquisitions() +
+            ", totalWaitNanos=" + getTotalWaitNanos() +
+            ", maxWaitNanos=" + getMaxWaitNanos() +
+            ", totalHoldNanos=" + getTotalHoldNanos() +
+            ", maxHoldNanos=" + getMaxHoldNanos() +
+            '}';
+    }
+}
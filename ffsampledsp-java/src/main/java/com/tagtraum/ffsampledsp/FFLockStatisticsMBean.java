@@ -0,0 +1,92 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ */
+package com.tagtraum.ffsampledsp;
+
+/**
+ * JMX view of {@link FFLockStatistics}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public interface FFLockStatisticsMBean {
+
+    /**
+     * Name of the call site, e.g. <code>FFURLInputStream.open</code>.
+     *
+     * @return call site
+     */
+    String getCallSite();
+
+    /**
+     * Number of times the lock was acquired at this call site.
+     *
+     * @return acquisitions
+     */
+    long getAcquisitions();
+
+    /**
+     * Total time spent waiting for the lock in nanoseconds.
+     *
+     * @return nanoseconds
+     */
+    long getTotalWaitNanos();
+
+    /**
+     * Longest time spent waiting for the lock in nanoseconds.
+     *
+     * @return nanoseconds
+     */
+    long getMaxWaitNanos();
+
+    /**
+     * Total time the lock was held in nanoseconds.
+     *
+     * @return nanoseconds
+     */
+    long getTotalHoldNanos();
+
+    /**
+     * Longest time the lock was held in nanoseconds.
+     *
+     * @return nanoseconds
+     */
+    long getMaxHoldNanos();
+
+    /**
+     * Histogram of wait times.
+     *
+     * @return counts per bucket
+     * @see FFLockStatistics#bucket(long)
+     */
+    long[] getWaitHistogram();
+
+    /**
+     * Histogram of hold times.
+     *
+     * @return counts per bucket
+     * @see FFLockStatistics#bucket(long)
+     */
+    long[] getHoldHistogram();
+
+    /**
+     * Resets all counters.
+     */
+    void reset();
+}
@@ -0,0 +1,208 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ */
+package com.tagtraum.ffsampledsp;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Audio stream capable of decoding a complete file held in memory via FFmpeg,
+ * e.g. a memory mapped file (see {@link #map(Path)}) or a clip loaded from a database.
+ * FFmpeg reads straight from the buffer (or its backing array), i.e. the encoded
+ * data is neither copied up front nor read via system calls. The stream is seekable.
+ * <p>
+ * The buffer's content must not be modified while the stream is open.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class FFMemoryInputStream extends FFNativePeerInputStream {
+
+    private static final FFLockStatistics OPEN_LOCK_STATISTICS = FFLockStatistics.forCallSite("FFMemoryInputStream.open");
+
+    /**
+     * Referenced, so that the memory isn't freed (or unmapped) while the native peer is reading it.
+     */
+    private final ByteBuffer buffer;
+
+    public FFMemoryInputStream(final byte[] data) throws IOException, UnsupportedAudioFileException {
+        this(ByteBuffer.wrap(data));
+    }
+
+    public FFMemoryInputStream(final ByteBuffer buffer) throws IOException, UnsupportedAudioFileException {
+        this(buffer, 0);
+    }
+
+    public FFMemoryInputStream(final ByteBuffer buffer, final int streamIndex) throws IOException, UnsupportedAudioFileException {
+        this(buffer, streamIndex, DEFAULT_DECODER_THREADS, null, 0, 0);
+    }
+
+    /**
+     * Opens the given buffer.
+     * The remaining bytes of the buffer, i.e. the bytes between its position and limit, must
+     * contain the complete file. Changes to the buffer's position or limit do not affect this stream.
+     * Direct buffers and buffers backed by an accessible array are read in place, read-only
+     * heap buffers are copied.
+     *
+     * @param buffer buffer, e.g. a {@link java.nio.MappedByteBuffer} or a wrapped <code>byte[]</code>
+     * @param streamIndex index of the audio stream, typically 0, but may differ for STEMS
+     * @param decoderThreads number of decoder threads, <code>0</code> lets FFmpeg choose
+     * @param formatName short name of the FFmpeg demuxer to use (e.g. <code>mp3</code>) or <code>null</code> to probe
+     * @param probeSize max number of bytes to probe, <code>0</code> for FFmpeg's default
+     * @param analyzeDuration max duration to analyze in microseconds, <code>0</code> for FFmpeg's default
+     * @throws IOException if something IO-related goes wrong
+     * @throws UnsupportedAudioFileException if the file is not supported
+     * @throws IllegalArgumentException if <code>decoderThreads</code>, <code>probeSize</code> or <code>analyzeDuration</code> is negative
+     */
+    public FFMemoryInputStream(final ByteBuffer buffer, final int streamIndex, final int decoderThreads,
+                               final String formatName, final int probeSize, final long analyzeDuration) throws IOException, UnsupportedAudioFileException {
+        checkDecoderThreads(decoderThreads);
+        checkProbeSize(probeSize);
+        checkAnalyzeDuration(analyzeDuration);
+        this.buffer = accessible(buffer);
+        if (this.buffer.isDirect()) {
+            this.pointer = openPeer(this.buffer, null, 0, 0, streamIndex, decoderThreads, formatName, probeSize, analyzeDuration);
+        } else {
+            this.pointer = openPeer(null, this.buffer.array(), this.buffer.arrayOffset(), this.buffer.remaining(),
+                streamIndex, decoderThreads, formatName, probeSize, analyzeDuration);
+        }
+    }
+
+    /**
+     * Returns the remaining bytes of the given buffer as a buffer that native code can read,
+     * i.e. a direct buffer or a buffer backed by an accessible array, starting at position 0.
+     * Only read-only heap buffers are copied.
+     *
+     * @param buffer buffer
+     * @return slice of <code>buffer</code> or a direct copy
+     */
+    static ByteBuffer accessible(final ByteBuffer buffer) {
+        if (buffer.isDirect() || buffer.hasArray()) {
+            return buffer.slice();
+        }
+        // read-only heap buffer, we cannot access its array
+        final ByteBuffer copy = ByteBuffer.allocateDirect(buffer.remaining());
+        copy.put(buffer.duplicate());
+        // workaround covariant return type introduced in Java 9
+        // ensure flip() is called on Buffer, not ByteBuffer
+        ((Buffer)copy).flip();
+        return copy;
+    }
+
+    /**
+     * Maps the given file into memory (read-only).
+     *
+     * @param file file
+     * @return mapped buffer
+     * @throws IOException if the file cannot be mapped, e.g. because it's larger than 2GB
+     */
+    public static ByteBuffer map(final Path file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("File is too large to be mapped: " + file);
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * Describes all audio streams of the buffer, using the already opened native peer.
+     *
+     * @param url url the buffer was read from or <code>null</code>, used to determine the file type
+     * @return one {@link AudioFileFormat} per audio stream
+     * @throws IOException if the stream is already closed
+     * @throws UnsupportedAudioFileException if no audio stream is found
+     */
+    synchronized AudioFileFormat[] getAudioFileFormats(final String url) throws IOException, UnsupportedAudioFileException {
+        if (!isOpen()) throw new IOException("Stream is already closed.");
+        return getAudioFileFormats(pointer, url);
+    }
+
+    /**
+     * Always returns <code>true</code>.
+     *
+     * @return true
+     */
+    @Override
+    public boolean isSeekable() {
+        return true;
+    }
+
+    @Override
+    public synchronized void seek(final long time, final TimeUnit timeUnit) throws IOException {
+        if (!isOpen()) throw new IOException("Stream is already closed.");
+        seek(pointer, timeUnit.toMicros(time));
+        discardDecodedAudio();
+    }
+
+    @Override
+    protected void fillNativeBuffer() throws IOException {
+        if (isOpen()) {
+            registerNativeBuffer();
+            setNativeBufferLength(fillNativeBuffer(pointer, getFillTarget()));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FFMemoryInputStream{" +
+                "capacity=" + buffer.capacity() +
+                '}';
+    }
+
+    /**
+     * Probes the buffer via {@link #open(ByteBuffer, byte[], int, int, int, String, int, long)} and then opens the decoder.
+     * Only the latter is synchronized via {@link FFGlobalLock}.
+     *
+     * @param buffer direct buffer or <code>null</code>
+     * @param array array, only used if <code>buffer</code> is <code>null</code>
+     * @param offset offset of the file in <code>array</code>
+     * @param length length of the file in <code>array</code>
+     * @param streamIndex index of the stream, typically 0, but may differ for STEMS
+     * @param decoderThreads number of decoder threads
+     * @param formatName demuxer name or <code>null</code>
+     * @param probeSize max number of bytes to probe or <code>0</code>
+     * @param analyzeDuration max duration to analyze in microseconds or <code>0</code>
+     * @return pointer to native peer
+     * @throws IOException if something IO-related goes wrong
+     * @throws UnsupportedAudioFileException if the file is not supported
+     * @throws IndexOutOfBoundsException if the stream index is not valid
+     */
+    private long openPeer(final ByteBuffer buffer, final byte[] array, final int offset, final int length,
+                          final int streamIndex, final int decoderThreads,
+                          final String formatName, final int probeSize, final long analyzeDuration) throws IOException, UnsupportedAudioFileException {
+        return lockedOpenDecoder(open(buffer, array, offset, length, streamIndex, formatName, probeSize, analyzeDuration), decoderThreads, OPEN_LOCK_STATISTICS);
+    }
+
+    private native AudioFileFormat[] getAudioFileFormats(final long pointer, final String url) throws IOException, UnsupportedAudioFileException;
+    private native void seek(final long pointer, final long microseconds) throws IOException;
+    private native int fillNativeBuffer(final long pointer, final int target) throws IOException;
+    private native long open(final ByteBuffer buffer, final byte[] array, final int offset, final int length,
+                             final int streamIndex,
+                             final String formatName, final int probeSize, final long analyzeDuration) throws IOException, UnsupportedAudioFileException;
+    protected native void close(final long pointer) throws IOException;
+
+}
@@ -23,19 +23,25 @@ package com.tagtraum.ffsampledsp;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.ReadableByteChannel;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static com.tagtraum.ffsampledsp.FFGlobalLock.LOCK;
-
 /**
  * Audio stream backed by FFmpeg.
+ * <p>
+ * Besides the regular {@link InputStream} methods, this class also implements
+ * {@link ReadableByteChannel}. When reading into a direct {@link ByteBuffer}
+ * via {@link #read(ByteBuffer)}, decoded audio is transferred from the native buffer
+ * to the destination without an intermediate copy to the Java heap.
  *
  * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
  */
-public abstract class FFNativePeerInputStream extends InputStream {
+public abstract class FFNativePeerInputStream extends InputStream implements ReadableByteChannel {
 
     static {
         // Ensure JNI library is loaded
@@ -43,6 +49,21 @@ public abstract class FFNativePeerInputStream extends InputStream {
     }
 
     private static final int DEFAULT_NATIVE_BUFFER_SIZE = 1024 * 1024;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocateDirect(0);
+
+    /**
+     * Default number of decoder threads, configurable via the system property
+     * <code>ffsampledsp.decoder.threads</code>. <code>1</code> (the default) means
+     * single-threaded decoding, <code>0</code> lets FFmpeg choose.
+     * Only decoders supporting frame or slice threading (e.g. FLAC or ALAC) actually use more than one thread.
+     */
+    static final int DEFAULT_DECODER_THREADS = Integer.getInteger("ffsampledsp.decoder.threads", 1);
+
+    /**
+     * Default number of bytes the native side tries to decode per fill, configurable via the system property
+     * <code>ffsampledsp.fill.target</code> (default 64 KiB).
+     */
+    static final int DEFAULT_FILL_TARGET = Integer.getInteger("ffsampledsp.fill.target", 64 * 1024);
 
     /**
      * Pointer to the native peer struct.
@@ -51,8 +72,28 @@ public abstract class FFNativePeerInputStream extends InputStream {
 
     /**
      * Buffer the native side copies audio data into.
+     * Until the native side needs space for decoded audio, this is an empty buffer.
+     */
+    protected ByteBuffer nativeBuffer = EMPTY_BUFFER;
+
+    /**
+     * Buffer acquired from {@link FFDirectBufferPool}, if any.
+     * Typically identical to {@link #nativeBuffer}, unless we are decoding into a caller-supplied buffer.
      */
-    protected ByteBuffer nativeBuffer;
+    private ByteBuffer pooledBuffer;
+
+    /**
+     * Buffer whose address and capacity are currently known to the native side.
+     */
+    private ByteBuffer registeredBuffer;
+
+    private volatile int fillTarget = DEFAULT_FILL_TARGET;
+
+    /**
+     * Decodes ahead in a background thread, if not <code>null</code>.
+     * Disabled by default, see {@link #setDecodeAhead(int)}.
+     */
+    private volatile FFDecodeAhead decodeAhead;
 
     /**
      * Subclasses will open a native stream in this constructor.
@@ -62,25 +103,180 @@ public abstract class FFNativePeerInputStream extends InputStream {
      * @throws UnsupportedAudioFileException if we cannot open the stream, because the format is unsupported
      */
     protected FFNativePeerInputStream() throws IOException, UnsupportedAudioFileException {
-        setNativeBufferCapacity(DEFAULT_NATIVE_BUFFER_SIZE);
+    }
+
+    /**
+     * Number of bytes the native side tries to decode, before it returns to Java.
+     *
+     * @return fill target in bytes
+     * @see #setFillTarget(int)
+     */
+    public int getFillTarget() {
+        return fillTarget;
+    }
+
+    /**
+     * Sets the number of bytes the native side tries to decode, before it returns to Java.
+     * Larger values mean fewer transitions between Java and native code, smaller values mean
+     * less latency for the first bytes of a read.
+     * Decoding always happens in whole packets, so a single fill may decode more bytes than
+     * requested. Setting this to <code>1</code> decodes only one packet per fill.
+     *
+     * @param fillTarget fill target in bytes
+     * @throws IllegalArgumentException if <code>fillTarget</code> is less than <code>1</code>
+     */
+    public void setFillTarget(final int fillTarget) {
+        if (fillTarget < 1) throw new IllegalArgumentException("Fill target must be greater than 0: " + fillTarget);
+        this.fillTarget = fillTarget;
+    }
+
+    /**
+     * Number of buffers decoded ahead in a background thread.
+     *
+     * @return depth, <code>0</code> means audio is decoded on the reading thread
+     * @see #setDecodeAhead(int)
+     */
+    public int getDecodeAhead() {
+        final FFDecodeAhead decodeAhead = this.decodeAhead;
+        return decodeAhead == null ? 0 : decodeAhead.getDepth();
+    }
+
+    /**
+     * Lets a background thread decode up to <code>depth</code> buffers (each about twice the
+     * {@link #setFillTarget(int) fill target}) ahead of the one currently being read.
+     * Reads then only block, if the decoder falls behind, which evens out the latency of
+     * individual reads, e.g. for real-time consumers.
+     * <p>
+     * Must be called before the first read. Streams decoding ahead should be closed
+     * to stop the background thread and return its buffers to the pool right away.
+     * Otherwise this only happens once the stream has been finalized.
+     * Note that with decoding ahead, {@link #decodeInto(ByteBuffer)} copies
+     * from the decoded buffers like {@link #read(ByteBuffer)}.
+     *
+     * @param depth number of buffers to decode ahead, <code>0</code> disables decoding ahead
+     * @throws IllegalArgumentException if <code>depth</code> is negative
+     * @throws IllegalStateException if the stream has already been read from with decoding ahead enabled
+     */
+    public synchronized void setDecodeAhead(final int depth) {
+        if (depth < 0) throw new IllegalArgumentException("Decode-ahead depth must be greater than or equal to 0: " + depth);
+        if (decodeAhead != null && decodeAhead.isStarted()) throw new IllegalStateException("Decode-ahead must be configured before reading.");
+        decodeAhead = depth == 0 ? null : new FFDecodeAhead(this, depth);
+    }
+
+    /**
+     * Checks the given number of decoder threads.
+     *
+     * @param decoderThreads number of decoder threads, <code>0</code> means FFmpeg chooses
+     * @return decoder threads
+     * @throws IllegalArgumentException if negative
+     */
+    static int checkDecoderThreads(final int decoderThreads) {
+        if (decoderThreads < 0) throw new IllegalArgumentException("Decoder threads must be greater than or equal to 0: " + decoderThreads);
+        return decoderThreads;
+    }
+
+    /**
+     * Checks the given probe size.
+     *
+     * @param probeSize max number of bytes to probe, <code>0</code> means FFmpeg's default
+     * @return probe size
+     * @throws IllegalArgumentException if negative or less than the minimum of 32 bytes FFmpeg accepts
+     */
+    static int checkProbeSize(final int probeSize) {
+        if (probeSize < 0 || probeSize > 0 && probeSize < 32) throw new IllegalArgumentException("Probe size must be 0 or at least 32: " + probeSize);
+        return probeSize;
+    }
+
+    /**
+     * Checks the given analyze duration.
+     *
+     * @param analyzeDuration max duration to analyze in microseconds, <code>0</code> means FFmpeg's default
+     * @return analyze duration
+     * @throws IllegalArgumentException if negative
+     */
+    static long checkAnalyzeDuration(final long analyzeDuration) {
+        if (analyzeDuration < 0) throw new IllegalArgumentException("Analyze duration must be greater than or equal to 0: " + analyzeDuration);
+        return analyzeDuration;
     }
 
     /**
      * Replace the old direct buffer with a newly allocated direct buffer, if the specified <code>minimumCapacity</code>
      * is larger than the current <code>capacity</code> of the already allocated buffer.
      * In other words, we never shrink the buffer, but only grow.
+     * <p>
+     * Is called by native code, which then continues writing to the returned buffer.
+     * The first <code>length</code> bytes the native side has already written
+     * to the old buffer during the current fill are copied to the new buffer.
      *
      * @param minimumCapacity desired capacity of the new buffer
-     * @return actual current capacity
+     * @param length number of bytes already written to the current buffer
+     * @return the buffer the native side must write to
+     */
+    private ByteBuffer setNativeBufferCapacity(final int minimumCapacity, final int length) {
+        if (nativeBuffer.capacity() < minimumCapacity) {
+            final ByteBuffer newBuffer = FFDirectBufferPool.getInstance().acquire(Math.max(minimumCapacity, DEFAULT_NATIVE_BUFFER_SIZE));
+            final ByteBuffer written = nativeBuffer.duplicate();
+            // workaround covariant return type introduced in Java 9
+            // ensure clear() is called on Buffer, not ByteBuffer
+            ((Buffer)written).clear();
+            ((Buffer)written).limit(length);
+            newBuffer.put(written);
+            FFDirectBufferPool.getInstance().release(pooledBuffer);
+            pooledBuffer = newBuffer;
+            nativeBuffer = newBuffer;
+            registeredBuffer = newBuffer;
+        }
+        return nativeBuffer;
+    }
+
+    /**
+     * Makes sure the native side writes to the current {@link #nativeBuffer}.
+     * Must be called by subclasses right before asking the native side to fill the buffer.
+     * The native side caches the buffer's address and capacity, therefore the buffer
+     * is only registered again, if it was replaced on the Java side.
      */
-    private int setNativeBufferCapacity(final int minimumCapacity) {
-        if (nativeBuffer != null && nativeBuffer.hasRemaining()) {
-            throw new IllegalStateException("Can't replace native buffer while the old buffer still has data remaining.");
+    protected void registerNativeBuffer() {
+        if (registeredBuffer != nativeBuffer) {
+            setNativeBuffer(pointer, nativeBuffer);
+            registeredBuffer = nativeBuffer;
         }
-        if (nativeBuffer == null || nativeBuffer.capacity() < minimumCapacity) {
-            nativeBuffer = ByteBuffer.allocateDirect(minimumCapacity);
+    }
+
+    /**
+     * Makes the bytes the native side wrote to {@link #nativeBuffer} during the last fill
+     * available for reading, i.e. sets <code>position</code> to <code>0</code> and
+     * <code>limit</code> to <code>length</code>.
+     *
+     * @param length number of bytes written by the native side
+     */
+    protected void setNativeBufferLength(final int length) {
+        // workaround covariant return type introduced in Java 9
+        // ensure clear() is called on Buffer, not ByteBuffer
+        ((Buffer)nativeBuffer).clear();
+        ((Buffer)nativeBuffer).limit(length);
+    }
+
+    /**
+     * Discards decoded audio that has not been read yet, e.g. after seeking.
+     * Must be called by subclasses while holding this stream's monitor.
+     */
+    protected void discardDecodedAudio() {
+        // workaround covariant return type introduced in Java 9
+        // ensure limit(int) is called on Buffer, not ByteBuffer
+        ((Buffer)nativeBuffer).limit(0);
+        final FFDecodeAhead decodeAhead = this.decodeAhead;
+        if (decodeAhead != null) decodeAhead.discard();
+    }
+
+    /**
+     * Returns the pooled native buffer (if any) to {@link FFDirectBufferPool}.
+     */
+    private void releaseNativeBuffer() {
+        if (nativeBuffer == pooledBuffer) {
+            nativeBuffer = EMPTY_BUFFER;
         }
-        return nativeBuffer.capacity();
+        FFDirectBufferPool.getInstance().release(pooledBuffer);
+        pooledBuffer = null;
     }
 
     /**
@@ -101,25 +297,36 @@ public abstract class FFNativePeerInputStream extends InputStream {
         Logger.getLogger(this.getClass().getName()).log(Level.WARNING, message);
     }
 
+    // reads don't hold this stream's monitor while waiting for decoded audio,
+    // because the decode-ahead worker needs it to decode
     @Override
-    public synchronized int read() throws IOException {
-        if (!nativeBuffer.hasRemaining()) {
-            fillNativeBuffer();
-        }
-        // we're at the end
-        if (!nativeBuffer.hasRemaining()) {
-            return -1;
+    public int read() throws IOException {
+        final FFDecodeAhead decodeAhead = this.decodeAhead;
+        if (decodeAhead != null) return decodeAhead.read();
+        synchronized (this) {
+            if (!nativeBuffer.hasRemaining()) {
+                fillNativeBuffer();
+            }
+            // we're at the end
+            if (!nativeBuffer.hasRemaining()) {
+                return -1;
+            }
+            return nativeBuffer.get() & 0xff;
         }
-        return nativeBuffer.get() & 0xff;
     }
 
     @Override
-    public synchronized int read(final byte[] b, final int off, final int len) throws IOException {
+    public int read(final byte[] b, final int off, final int len) throws IOException {
         if (len == 0) return 0;
         if (len < 0) throw new IllegalArgumentException("Length must be greater than or equal to 0: " + len);
         if (off < 0) throw new IllegalArgumentException("Offset must be greater than or equal to 0: " + off);
         if (b.length - off < len) throw new IllegalArgumentException("There must be more space than "  + len + " bytes left in the buffer. Offset is " + off);
+        final FFDecodeAhead decodeAhead = this.decodeAhead;
+        if (decodeAhead != null) return decodeAhead.read(b, off, len);
+        return readSynchronized(b, off, len);
+    }
 
+    private synchronized int readSynchronized(final byte[] b, final int off, final int len) throws IOException {
         int bytesRead = 0;
         while (bytesRead < len) {
             if (!nativeBuffer.hasRemaining()) {
@@ -142,6 +349,125 @@ public abstract class FFNativePeerInputStream extends InputStream {
         return bytesRead == 0 ? -1 : bytesRead;
     }
 
+    /**
+     * Reads decoded audio into the given buffer. If the destination is a direct buffer,
+     * data is copied straight from the native buffer to the destination.
+     * Like {@link #read(byte[], int, int)}, this method attempts to fill all of the
+     * destination's remaining space.
+     *
+     * @param dst destination buffer
+     * @return number of bytes read, possibly zero, or <code>-1</code>, if the end of the stream has been reached
+     * @throws IOException if an IO error occurs
+     */
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) return 0;
+        final FFDecodeAhead decodeAhead = this.decodeAhead;
+        if (decodeAhead != null) return decodeAhead.read(dst);
+        return readSynchronized(dst);
+    }
+
+    private synchronized int readSynchronized(final ByteBuffer dst) throws IOException {
+        int bytesRead = 0;
+        while (dst.hasRemaining()) {
+            if (!nativeBuffer.hasRemaining()) {
+                fillNativeBuffer();
+                if (!nativeBuffer.hasRemaining()) {
+                    // nothing more to read
+                    break;
+                }
+            }
+            bytesRead += transfer(nativeBuffer, dst);
+        }
+        return bytesRead == 0 ? -1 : bytesRead;
+    }
+
+    /**
+     * Decodes audio directly into the given direct buffer, bypassing the
+     * internal native buffer. Decoded data is written starting at the buffer's
+     * current position, and the position is advanced by the number of bytes written.
+     * <p>
+     * If data from a previous call or read is still buffered internally, this data
+     * is transferred first. Should a decoded packet not fit into the remaining space of <code>dst</code>,
+     * the part that does not fit is kept internally and returned by the next read.
+     * To avoid this, <code>dst</code> should be able to hold at least one decoded packet.
+     *
+     * @param dst direct destination buffer
+     * @return number of bytes decoded into <code>dst</code>, possibly zero, or <code>-1</code>, if the end of the stream has been reached
+     * @throws IOException if an IO error occurs
+     * @throws IllegalArgumentException if <code>dst</code> is not a direct buffer
+     * @throws java.nio.ReadOnlyBufferException if <code>dst</code> is read-only
+     */
+    public int decodeInto(final ByteBuffer dst) throws IOException {
+        if (!dst.isDirect()) throw new IllegalArgumentException("Destination buffer must be direct.");
+        if (dst.isReadOnly()) throw new ReadOnlyBufferException();
+        if (!dst.hasRemaining()) return 0;
+        final FFDecodeAhead decodeAhead = this.decodeAhead;
+        if (decodeAhead != null) return decodeAhead.read(dst);
+        return decodeDirectly(dst);
+    }
+
+    /**
+     * Implements {@link #decodeInto(ByteBuffer)} without decoding ahead.
+     * Is also used by the {@link FFDecodeAhead} worker.
+     *
+     * @param dst direct destination buffer with remaining space
+     * @return number of bytes decoded into <code>dst</code> or <code>-1</code>, if the end of the stream has been reached
+     * @throws IOException if an IO error occurs
+     */
+    synchronized int decodeDirectly(final ByteBuffer dst) throws IOException {
+        if (nativeBuffer.hasRemaining()) {
+            return transfer(nativeBuffer, dst);
+        }
+
+        final ByteBuffer ownBuffer = nativeBuffer;
+        final ByteBuffer target = dst.slice();
+        // workaround covariant return type introduced in Java 9
+        // ensure limit(int) is called on Buffer, not ByteBuffer
+        ((Buffer)target).limit(0);
+        nativeBuffer = target;
+        try {
+            fillNativeBuffer();
+        } finally {
+            if (nativeBuffer == target) {
+                // the pooled buffer may have been released, if the stream was closed while filling
+                nativeBuffer = ownBuffer == pooledBuffer ? ownBuffer : EMPTY_BUFFER;
+            }
+        }
+        final int bytesRead;
+        if (nativeBuffer == ownBuffer) {
+            // everything was decoded straight into dst
+            bytesRead = target.limit();
+            ((Buffer)dst).position(dst.position() + bytesRead);
+        } else {
+            // target was too small, the native side had to switch to a new, larger buffer
+            bytesRead = nativeBuffer.hasRemaining() ? transfer(nativeBuffer, dst) : 0;
+        }
+        return bytesRead == 0 ? -1 : bytesRead;
+    }
+
+    /**
+     * Bulk-copies as many bytes as possible from <code>src</code> to <code>dst</code>.
+     *
+     * @param src source buffer
+     * @param dst destination buffer
+     * @return number of bytes copied
+     */
+    static int transfer(final ByteBuffer src, final ByteBuffer dst) {
+        final int chunkSize = Math.min(src.remaining(), dst.remaining());
+        if (chunkSize == src.remaining()) {
+            dst.put(src);
+        } else {
+            final int limit = src.limit();
+            // workaround covariant return type introduced in Java 9
+            // ensure limit(int) is called on Buffer, not ByteBuffer
+            ((Buffer)src).limit(src.position() + chunkSize);
+            dst.put(src);
+            ((Buffer)src).limit(limit);
+        }
+        return chunkSize;
+    }
+
     /**
      * @return true or false
      * @see com.tagtraum.ffsampledsp.FFAudioInputStream#isSeekable()
@@ -161,42 +487,80 @@ public abstract class FFNativePeerInputStream extends InputStream {
      *
      * @return true, if open
      */
-    protected boolean isOpen() {
+    @Override
+    public boolean isOpen() {
         return pointer != 0;
     }
 
     @Override
     public synchronized void close() throws IOException {
+        final FFDecodeAhead decodeAhead = this.decodeAhead;
+        if (decodeAhead != null) decodeAhead.close();
         if (isOpen()) {
             try {
-                lockedClose(pointer);
+                close(pointer);
             } finally {
                 pointer = 0;
+                registeredBuffer = null;
+                releaseNativeBuffer();
             }
         }
     }
 
     /**
-     * Synchronizes call to {@link #close(long)} via {@link FFGlobalLock#LOCK}.
+     * Fills {@link #nativeBuffer} with new data.
+     * Implementations call {@link #registerNativeBuffer()} before and
+     * {@link #setNativeBufferLength(int)} after the native fill.
      *
-     * @param pointer pointer
      * @throws IOException if an IO error occurs
      */
-    private void lockedClose(final long pointer) throws IOException {
-        LOCK.lock();
+    protected abstract void fillNativeBuffer() throws IOException;
+
+    /**
+     * Opens the decoder of a native peer that has already been created and probed by a subclass'
+     * <code>open</code> method. Only this step, which ends up in <code>avcodec_open2</code>, is done
+     * while holding {@link FFGlobalLock#LOCK}. Probing, which may read from slow sources, is not.
+     * If the decoder cannot be opened, the native peer is closed.
+     *
+     * @param pointer pointer to the probed native peer
+     * @param decoderThreads number of decoder threads, <code>0</code> lets FFmpeg choose
+     * @param statistics lock statistics of the calling site
+     * @return <code>pointer</code>
+     * @throws IOException if the decoder cannot be opened
+     * @throws UnsupportedAudioFileException if the codec is not supported
+     */
+    protected long lockedOpenDecoder(final long pointer, final int decoderThreads, final FFLockStatistics statistics) throws IOException, UnsupportedAudioFileException {
+        boolean success = false;
         try {
-            close(pointer);
+            final long acquired = FFGlobalLock.lock(statistics);
+            try {
+                openDecoder(pointer, decoderThreads);
+            } finally {
+                FFGlobalLock.unlock(statistics, acquired);
+            }
+            success = true;
+            return pointer;
         } finally {
-            LOCK.unlock();
+            if (!success) close(pointer);
         }
     }
 
     /**
-     * Fills {@link #nativeBuffer} with new data.
+     * Opens the decoder of the given native peer.
      *
-     * @throws IOException if an IO error occurs
+     * @param pointer pointer
+     * @param decoderThreads number of decoder threads
+     * @throws IOException if the decoder cannot be opened
      */
-    protected abstract void fillNativeBuffer() throws IOException;
+    private native void openDecoder(final long pointer, final int decoderThreads) throws IOException;
+
+    /**
+     * Tells the native peer to write decoded audio to the given direct buffer.
+     *
+     * @param pointer pointer
+     * @param buffer direct buffer
+     */
+    private native void setNativeBuffer(final long pointer, final ByteBuffer buffer);
 
     /**
      * Closes the native peer and releases all resources held by it.
@@ -0,0 +1,107 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ */
+package com.tagtraum.ffsampledsp;
+
+import javax.sound.sampled.AudioFileFormat;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Outcome of probing a single file as part of a batch.
+ * Either holds the file's {@link AudioFileFormat}s or the exception or error that
+ * occurred while probing.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see FFAudioFileReader#getAudioFileFormats(java.util.Collection, java.util.concurrent.Executor)
+ */
+public final class FFProbeResult {
+
+    private final Path path;
+    private final AudioFileFormat[] audioFileFormats;
+    private final Throwable exception;
+    private final long nanos;
+
+    FFProbeResult(final Path path, final AudioFileFormat[] audioFileFormats, final Throwable exception, final long nanos) {
+        this.path = path;
+        this.audioFileFormats = audioFileFormats;
+        this.exception = exception;
+        this.nanos = nanos;
+    }
+
+    /**
+     * Probed file.
+     *
+     * @return path
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Indicates whether probing succeeded.
+     *
+     * @return true, if {@link #getAudioFileFormats()} is not <code>null</code>
+     */
+    public boolean isSuccess() {
+        return exception == null;
+    }
+
+    /**
+     * File formats.
+     *
+     * @return formats or <code>null</code>, if probing failed
+     */
+    public AudioFileFormat[] getAudioFileFormats() {
+        return audioFileFormats;
+    }
+
+    /**
+     * Exception that occurred while probing, typically an
+     * {@link java.io.IOException} or a {@link javax.sound.sampled.UnsupportedAudioFileException}.
+     * May also be an {@link Error}, e.g. an {@link OutOfMemoryError}, so that one broken file
+     * does not fail the whole batch.
+     *
+     * @return exception or <code>null</code>, if probing succeeded
+     */
+    public Throwable getException() {
+        return exception;
+    }
+
+    /**
+     * Time it took to probe this file.
+     *
+     * @return nanoseconds
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "FFProbeResult{" +
+            "path=" + path +
+            (exception == null
+                ? ", audioFileFormats=" + Arrays.toString(audioFileFormats)
+                : ", exception=" + exception) +
+            ", nanos=" + nanos +
+            '}';
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ */
+package com.tagtraum.ffsampledsp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Channel that reads ahead from a slow source (e.g. a network stream) using a background thread,
+ * so that IO and decoding overlap.
+ * <p>
+ * Data is buffered in a bounded, off-heap ring buffer taken from the {@link FFDirectBufferPool}.
+ * The buffer is returned to the pool once this channel is closed <em>and</em> the background
+ * thread has finished, as a pending read of the source may still write into it. Once the buffer holds
+ * <code>highWatermark</code> bytes, the background thread pauses until reads have drained
+ * it to <code>lowWatermark</code> bytes. Read errors of the source are reported by the
+ * first {@link #read(ByteBuffer)} that finds the buffer empty.
+ * <p>
+ * Closing this channel stops reading ahead, but does <em>not</em> close the source, which
+ * remains owned by the caller. A read of the source that is in progress when this channel is
+ * closed still completes in the background, i.e. the source's position is undefined afterwards.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see FFStreamInputStream#FFStreamInputStream(ReadableByteChannel, int, int, int, String, int, long)
+ */
+public class FFReadAheadChannel implements ReadableByteChannel {
+
+    private final ReadableByteChannel source;
+    private final ByteBuffer ring;
+    private final int capacity;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int readPosition;
+    private int writePosition;
+    private int count;
+    private boolean paused;
+    private boolean endOfStream;
+    private IOException error;
+    private boolean readingAhead = true;
+    private boolean ringReleased;
+    private volatile boolean open = true;
+
+    public FFReadAheadChannel(final InputStream source, final int capacity, final int lowWatermark, final int highWatermark) {
+        this(Channels.newChannel(source), capacity, lowWatermark, highWatermark);
+    }
+
+    /**
+     * Creates the channel and starts reading ahead.
+     *
+     * @param source source channel (blocking)
+     * @param capacity size of the ring buffer in bytes
+     * @param lowWatermark number of buffered bytes at which a paused background thread resumes reading
+     * @param highWatermark number of buffered bytes at which the background thread pauses
+     * @throws IllegalArgumentException unless <code>0 &lt;= lowWatermark &lt; highWatermark &lt;= capacity</code>
+     */
+    public FFReadAheadChannel(final ReadableByteChannel source, final int capacity, final int lowWatermark, final int highWatermark) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        if (lowWatermark < 0 || lowWatermark >= highWatermark || highWatermark > capacity)
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low < high <= capacity: low="
+                + lowWatermark + ", high=" + highWatermark + ", capacity=" + capacity);
+        this.source = source;
+        this.capacity = capacity;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.ring = FFDirectBufferPool.getInstance().acquire(capacity);
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readAhead();
+            }
+        }, "FFReadAheadChannel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Background loop that fills the ring buffer.
+     */
+    private void readAhead() {
+        try {
+            while (open) {
+                final int writeLength;
+                lock.lock();
+                try {
+                    while (open && (paused || count >= highWatermark)) {
+                        paused = true;
+                        notFull.await();
+                    }
+                    if (!open) return;
+                    // contiguous free space after writePosition
+                    writeLength = Math.min(Math.min(capacity - count, capacity - writePosition), highWatermark - count);
+                } finally {
+                    lock.unlock();
+                }
+                // read outside of the lock, into a region the reader does not touch
+                final ByteBuffer target = ring.duplicate();
+                // workaround covariant return type introduced in Java 9
+                // ensure limit(int) and position(int) are called on Buffer, not ByteBuffer
+                ((Buffer)target).limit(writePosition + writeLength).position(writePosition);
+                int justRead;
+                do {
+                    justRead = source.read(target);
+                } while (justRead == 0);
+                lock.lock();
+                try {
+                    if (justRead < 0) {
+                        endOfStream = true;
+                        notEmpty.signalAll();
+                        return;
+                    }
+                    writePosition = (writePosition + justRead) % capacity;
+                    count += justRead;
+                    notEmpty.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            lock.lock();
+            try {
+                error = e;
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            lock.lock();
+            try {
+                error = new IOException("Read-ahead was interrupted.", e);
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            lock.lock();
+            try {
+                readingAhead = false;
+                if (!open) releaseRing();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the ring buffer to the pool, unless that already happened.
+     * Must be called while holding {@link #lock}, after the background thread
+     * has finished and the channel has been closed.
+     */
+    private void releaseRing() {
+        if (ringReleased) return;
+        ringReleased = true;
+        FFDirectBufferPool.getInstance().release(ring);
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        lock.lock();
+        try {
+            while (open && count == 0 && !endOfStream && error == null) {
+                try {
+                    notEmpty.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for data.", e);
+                }
+            }
+            if (!open) throw new ClosedChannelException();
+            if (count == 0) {
+                if (error != null) throw new IOException("Failed to read ahead.", error);
+                return -1;
+            }
+            final int length = Math.min(dst.remaining(), Math.min(count, capacity - readPosition));
+            final ByteBuffer source = ring.duplicate();
+            // workaround covariant return type introduced in Java 9
+            // ensure limit(int) and position(int) are called on Buffer, not ByteBuffer
+            ((Buffer)source).limit(readPosition + length).position(readPosition);
+            dst.put(source);
+            readPosition = (readPosition + length) % capacity;
+            count -= length;
+            if (paused && count <= lowWatermark) {
+                paused = false;
+                notFull.signalAll();
+            }
+            return length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of bytes that can be read without blocking.
+     *
+     * @return buffered bytes
+     */
+    public int available() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Indicates whether the ring buffer has been returned to the pool.
+     *
+     * @return true, if the ring buffer must no longer be used
+     */
+    boolean isRingReleased() {
+        lock.lock();
+        try {
+            return ringReleased;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Stops reading ahead. Does not close the source.
+     * If the background thread is still busy reading from the source,
+     * it returns the ring buffer to the pool when it is done.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            open = false;
+            notFull.signalAll();
+            notEmpty.signalAll();
+            if (!readingAhead) releaseRing();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FFReadAheadChannel{" +
+            "source=" + source +
+            ", capacity=" + capacity +
+            ", lowWatermark=" + lowWatermark +
+            ", highWatermark=" + highWatermark +
+            ", available=" + available() +
+            '}';
+    }
+}
@@ -20,16 +20,18 @@
  */
 package com.tagtraum.ffsampledsp;
 
+import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.SelectableChannel;
 import java.util.concurrent.TimeUnit;
-
-import static com.tagtraum.ffsampledsp.FFGlobalLock.LOCK;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Audio stream capable of decoding a stream via FFmpeg.
@@ -38,112 +40,288 @@ import static com.tagtraum.ffsampledsp.FFGlobalLock.LOCK;
  */
 public class FFStreamInputStream extends FFNativePeerInputStream {
 
-    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(32 * 1024);
+    /**
+     * Default size of the buffer FFmpeg reads stream data into, configurable via the system property
+     * <code>ffsampledsp.stream.readBufferSize</code>. Defaults to 32kb.
+     */
+    static final int DEFAULT_READ_BUFFER_SIZE = checkReadBufferSize(Integer.getInteger("ffsampledsp.stream.readBufferSize", 32 * 1024));
+    private static final Logger LOG = Logger.getLogger(FFStreamInputStream.class.getName());
+    private static final FFLockStatistics OPEN_LOCK_STATISTICS = FFLockStatistics.forCallSite("FFStreamInputStream.open");
+    // whence values passed to seekChannel(), see avio.h
+    private static final int SEEK_SET = 0;
+    private static final int SEEK_CUR = 1;
+    private static final int SEEK_END = 2;
+    private static final int AVSEEK_SIZE = 0x10000;
     private final ReadableByteChannel channel;
+    private final boolean seekable;
 
     public FFStreamInputStream(final InputStream stream) throws IOException, UnsupportedAudioFileException {
         this(stream, 0);
     }
 
     public FFStreamInputStream(final InputStream stream, final int streamIndex) throws IOException, UnsupportedAudioFileException {
-        // workaround covariant return type introduced in Java 9
-        // ensure limit(int) is called on Buffer, not ByteBuffer
-        ((Buffer)this.nativeBuffer).limit(0);
-        this.channel = Channels.newChannel(stream);
-        this.pointer = lockedOpen(streamIndex);
+        this(stream, streamIndex, DEFAULT_DECODER_THREADS);
+    }
+
+    /**
+     * Opens the given stream.
+     *
+     * @param stream stream
+     * @param streamIndex index of the audio stream, typically 0, but may differ for STEMS
+     * @param decoderThreads number of decoder threads, <code>0</code> lets FFmpeg choose
+     * @throws IOException if something IO-related goes wrong
+     * @throws UnsupportedAudioFileException if the stream is not supported
+     * @throws IllegalArgumentException if <code>decoderThreads</code> is negative
+     */
+    public FFStreamInputStream(final InputStream stream, final int streamIndex, final int decoderThreads) throws IOException, UnsupportedAudioFileException {
+        this(stream, streamIndex, decoderThreads, null, 0, 0);
     }
 
     /**
-     * Always returns <code>false</code>.
-     * Stream based {@link FFNativePeerInputStream}s are not seekable.
+     * Opens the given stream with custom probing options.
      *
-     * @return false
+     * @param stream stream
+     * @param streamIndex index of the audio stream, typically 0, but may differ for STEMS
+     * @param decoderThreads number of decoder threads, <code>0</code> lets FFmpeg choose
+     * @param formatName short name of the FFmpeg demuxer to use (e.g. <code>mp3</code>) or <code>null</code> to probe
+     * @param probeSize max number of bytes to probe, <code>0</code> for the default (8kb)
+     * @param analyzeDuration max duration to analyze in microseconds, <code>0</code> for the default
+     * @throws IOException if something IO-related goes wrong
+     * @throws UnsupportedAudioFileException if the stream is not supported
+     * @throws IllegalArgumentException if <code>decoderThreads</code>, <code>probeSize</code> or <code>analyzeDuration</code> is negative
+     */
+    public FFStreamInputStream(final InputStream stream, final int streamIndex, final int decoderThreads,
+                               final String formatName, final int probeSize, final long analyzeDuration) throws IOException, UnsupportedAudioFileException {
+        this(Channels.newChannel(stream), streamIndex, decoderThreads, DEFAULT_READ_BUFFER_SIZE, formatName, probeSize, analyzeDuration);
+    }
+
+    public FFStreamInputStream(final ReadableByteChannel channel) throws IOException, UnsupportedAudioFileException {
+        this(channel, 0, DEFAULT_DECODER_THREADS, DEFAULT_READ_BUFFER_SIZE, null, 0, 0);
+    }
+
+    /**
+     * Opens the given channel. Data is read from the channel straight into FFmpeg's
+     * IO buffer, i.e. without any intermediate copies.
+     * If the channel is a {@link SeekableByteChannel} (e.g. a {@link java.nio.channels.FileChannel}),
+     * the resulting stream is {@link #isSeekable() seekable}.
+     *
+     * @param channel blocking channel, e.g. a socket or pipe
+     * @param streamIndex index of the audio stream, typically 0, but may differ for STEMS
+     * @param decoderThreads number of decoder threads, <code>0</code> lets FFmpeg choose
+     * @param readBufferSize max number of bytes read from the channel at once
+     * @param formatName short name of the FFmpeg demuxer to use (e.g. <code>mp3</code>) or <code>null</code> to probe
+     * @param probeSize max number of bytes to probe, <code>0</code> for the default (8kb)
+     * @param analyzeDuration max duration to analyze in microseconds, <code>0</code> for the default
+     * @throws IOException if something IO-related goes wrong
+     * @throws UnsupportedAudioFileException if the stream is not supported
+     * @throws IllegalArgumentException if <code>decoderThreads</code>, <code>probeSize</code> or <code>analyzeDuration</code>
+     * is negative, <code>readBufferSize</code> is not positive or the channel is in non-blocking mode
+     */
+    public FFStreamInputStream(final ReadableByteChannel channel, final int streamIndex, final int decoderThreads, final int readBufferSize,
+                               final String formatName, final int probeSize, final long analyzeDuration) throws IOException, UnsupportedAudioFileException {
+        checkDecoderThreads(decoderThreads);
+        checkReadBufferSize(readBufferSize);
+        checkProbeSize(probeSize);
+        checkAnalyzeDuration(analyzeDuration);
+        if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+            throw new IllegalArgumentException("Channel must be in blocking mode: " + channel);
+        }
+        this.channel = channel;
+        this.seekable = channel instanceof SeekableByteChannel;
+        this.pointer = openPeer(streamIndex, decoderThreads, readBufferSize, seekable, formatName, probeSize, analyzeDuration);
+    }
+
+    static int checkReadBufferSize(final int readBufferSize) {
+        if (readBufferSize <= 0) throw new IllegalArgumentException("Read buffer size must be positive: " + readBufferSize);
+        return readBufferSize;
+    }
+
+    /**
+     * Describes all audio streams of the opened stream, using the data already read
+     * by the native peer, i.e. without probing the stream a second time.
+     *
+     * @return one {@link AudioFileFormat} per audio stream
+     * @throws IOException if the stream is already closed
+     * @throws UnsupportedAudioFileException if no audio stream is found
+     */
+    synchronized AudioFileFormat[] getAudioFileFormats() throws IOException, UnsupportedAudioFileException {
+        if (!isOpen()) throw new IOException("Stream is already closed.");
+        return getAudioFileFormats(pointer);
+    }
+
+    /**
+     * Stream based {@link FFNativePeerInputStream}s are only seekable,
+     * if they were opened with a {@link SeekableByteChannel}.
+     *
+     * @return true, if this stream reads from a {@link SeekableByteChannel}
      */
     @Override
     public boolean isSeekable() {
-        return false;
+        return seekable;
     }
 
     /**
-     * Always throws {@link UnsupportedOperationException}, because stream based
-     * {@link FFNativePeerInputStream}s are not seekable
+     * Seeks to the given time, if this stream reads from a {@link SeekableByteChannel}.
      *
      * @param time time
      * @param timeUnit time unit
-     * @throws UnsupportedOperationException always throws UnsupportedOperationException
+     * @throws UnsupportedOperationException if this stream is not seekable
      * @throws IOException if an IO error occurs
      */
     @Override
-    public void seek(final long time, final TimeUnit timeUnit) throws UnsupportedOperationException, IOException {
-        throw new UnsupportedOperationException("Seeking is not supported.");
+    public synchronized void seek(final long time, final TimeUnit timeUnit) throws UnsupportedOperationException, IOException {
+        if (!isSeekable()) throw new UnsupportedOperationException("Seeking is not supported.");
+        if (!isOpen()) throw new IOException("Stream is already closed.");
+        seek(pointer, timeUnit.toMicros(time));
+        discardDecodedAudio();
     }
 
     /**
-     * Calls {@link #fillNativeBuffer(long)}.
+     * Calls {@link #fillNativeBuffer(long, int)}.
      *
      * @throws IOException if an IO error occurs
      */
      @Override
     protected void fillNativeBuffer() throws IOException {
         if (isOpen()) {
-            // make sure we are at the start of the native buffer, before we fill it
-
-            // workaround covariant return type introduced in Java 9
-            // ensure limit(int) is called on Buffer, not ByteBuffer
-            ((Buffer)this.nativeBuffer).limit(0);
-            // read data, until we have a new limit or we reached the end of the file
-            fillNativeBuffer(pointer);
-            if (!nativeBuffer.hasRemaining()) {
+            registerNativeBuffer();
+            // read data, until we have some decoded audio or we reached the end of the file
+            setNativeBufferLength(fillNativeBuffer(pointer, getFillTarget()));
+            // seekable streams stay open, so that one can seek back after reaching the end
+            if (!nativeBuffer.hasRemaining() && !seekable) {
                 close();
             }
         }
     }
 
     /**
-     * Is called by native code to fill the {@link #readBuffer} with data from the stream.
+     * Is called by native code to read data from the stream into FFmpeg's IO buffer.
      *
+     * @param target direct buffer wrapping FFmpeg's IO buffer, only valid during this call
+     * @return number of bytes read or <code>-1</code> at the end of the stream
      * @throws IOException if an IO error occurs
      */
-    private int fillReadBuffer() throws IOException {
-        readBuffer.clear();
-        final int justRead = channel.read(readBuffer);
-        readBuffer.flip();
+    private int fillReadBuffer(final ByteBuffer target) throws IOException {
+        int justRead;
+        do {
+            justRead = channel.read(target);
+        } while (justRead == 0 && target.hasRemaining());
         return justRead;
     }
 
     /**
-     * Synchronizes calls to {@link #open(int)}.
+     * Is called by native code to reposition the {@link SeekableByteChannel}
+     * or to query its size.
      *
-     * @return pointer to native peer
-     * @throws IOException if an IO error occurs
+     * @param offset offset
+     * @param whence {@link #SEEK_SET}, {@link #SEEK_CUR}, {@link #SEEK_END} or {@link #AVSEEK_SIZE}
+     * @return new position, size or <code>-1</code>, if the operation failed
      */
-    private long lockedOpen(final int streamIndex) throws IOException {
-        LOCK.lock();
+    private long seekChannel(final long offset, final int whence) {
+        final SeekableByteChannel seekableChannel = (SeekableByteChannel) channel;
         try {
-            return open(streamIndex);
-        } finally {
-            LOCK.unlock();
+            switch (whence) {
+                case AVSEEK_SIZE:
+                    return seekableChannel.size();
+                case SEEK_SET:
+                    seekableChannel.position(offset);
+                    break;
+                case SEEK_CUR:
+                    seekableChannel.position(seekableChannel.position() + offset);
+                    break;
+                case SEEK_END:
+                    seekableChannel.position(seekableChannel.size() + offset);
+                    break;
+                default:
+                    return -1;
+            }
+            return seekableChannel.position();
+        } catch (IOException | IllegalArgumentException e) {
+            LOG.log(Level.FINE, "Failed to seek " + channel + " (offset=" + offset + ", whence=" + whence + ")", e);
+            return -1;
         }
     }
 
+    /**
+     * Probes the stream via {@link #open(int, int, boolean, String, int, long)} and then opens the decoder.
+     * Only the latter is synchronized via {@link FFGlobalLock}, i.e. reading from the source
+     * never happens while holding the global lock.
+     *
+     * @param streamIndex index of the desired audio stream (if there are multiple ones)
+     * @param decoderThreads number of decoder threads
+     * @param readBufferSize size of FFmpeg's IO buffer
+     * @param seekable true, if the channel is a {@link SeekableByteChannel}
+     * @param formatName demuxer name or <code>null</code>
+     * @param probeSize max number of bytes to probe or <code>0</code>
+     * @param analyzeDuration max duration to analyze in microseconds or <code>0</code>
+     * @return pointer to native peer
+     * @throws IOException if an IO error occurs
+     */
+    private long openPeer(final int streamIndex, final int decoderThreads, final int readBufferSize, final boolean seekable,
+                          final String formatName, final int probeSize, final long analyzeDuration) throws IOException, UnsupportedAudioFileException {
+        return lockedOpenDecoder(open(streamIndex, readBufferSize, seekable, formatName, probeSize, analyzeDuration), decoderThreads, OPEN_LOCK_STATISTICS);
+    }
+
     /**
      * Tells native code to fill the {@link #nativeBuffer} with decoded audio.
-     * It does so by first calling {@link #fillReadBuffer()} to read encoded audio, decodes it,
+     * It does so by first calling {@link #fillReadBuffer(ByteBuffer)} to read encoded audio, decodes it,
      * and then places the decoded data into {@link #nativeBuffer}.
      *
      * @param pointer pointer to native peer
+     * @param target desired number of bytes, see {@link #getFillTarget()}
+     * @return number of bytes written to {@link #nativeBuffer}
      * @throws IOException if an IO error occurs
      */
-    private native void fillNativeBuffer(final long pointer) throws IOException;
+    private native int fillNativeBuffer(final long pointer, final int target) throws IOException;
 
     /**
-     * Allocates native peer.
+     * Allocates and probes native peer, but does not open the decoder.
      *
      * @param streamIndex index of the desired audio stream (if there are multiple ones)
+     * @param readBufferSize size of FFmpeg's IO buffer
+     * @param seekable true, if the channel is a {@link SeekableByteChannel}
+     * @param formatName demuxer name or <code>null</code>
+     * @param probeSize max number of bytes to probe or <code>0</code>
+     * @param analyzeDuration max duration to analyze in microseconds or <code>0</code>
      * @return pointer to native peer
      * @throws IOException if an IO error occurs
      */
-    private native long open(final int streamIndex) throws IOException;
+    private native long open(final int streamIndex, final int readBufferSize, final boolean seekable,
+                             final String formatName, final int probeSize, final long analyzeDuration) throws IOException;
+
+    /**
+     * Creates {@link AudioFileFormat}s for the audio streams of the native peer.
+     *
+     * @param pointer pointer to native peer
+     * @return one {@link AudioFileFormat} per audio stream
+     * @throws IOException if an IO error occurs
+     */
+    private native AudioFileFormat[] getAudioFileFormats(final long pointer) throws IOException, UnsupportedAudioFileException;
+
+    /**
+     * Seeks to the given timestamp.
+     *
+     * @param pointer pointer to native peer
+     * @param microseconds timestamp
+     * @throws IOException if an IO error occurs
+     */
+    private native void seek(final long pointer, final long microseconds) throws IOException;
+
+    /**
+     * Closes the native peer and, if this stream reads from an {@link FFReadAheadChannel},
+     * stops reading ahead.
+     *
+     * @throws IOException if an IO error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            // read-ahead channels never close their source, so this is always safe
+            if (channel instanceof FFReadAheadChannel) channel.close();
+        }
+    }
 
     @Override
     protected native void close(final long pointer) throws IOException;
@@ -20,14 +20,12 @@
  */
 package com.tagtraum.ffsampledsp;
 
+import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.IOException;
 import java.net.URL;
-import java.nio.Buffer;
 import java.util.concurrent.TimeUnit;
 
-import static com.tagtraum.ffsampledsp.FFGlobalLock.LOCK;
-
 /**
  * Audio stream capable of decoding resources via FFmpeg.
  *
@@ -35,6 +33,8 @@ import static com.tagtraum.ffsampledsp.FFGlobalLock.LOCK;
  */
 public class FFURLInputStream extends FFNativePeerInputStream {
 
+    private static final FFLockStatistics OPEN_LOCK_STATISTICS = FFLockStatistics.forCallSite("FFURLInputStream.open");
+
     private final boolean seekable;
     private final URL url;
 
@@ -43,19 +43,64 @@ public class FFURLInputStream extends FFNativePeerInputStream {
     }
 
     public FFURLInputStream(final URL url, final int streamIndex) throws IOException, UnsupportedAudioFileException {
+        this(url, streamIndex, DEFAULT_DECODER_THREADS);
+    }
+
+    /**
+     * Opens the given URL.
+     *
+     * @param url url
+     * @param streamIndex index of the audio stream in the file, typically 0, but may differ for STEMS
+     * @param decoderThreads number of decoder threads, <code>0</code> lets FFmpeg choose
+     * @throws IOException if something IO-related goes wrong
+     * @throws UnsupportedAudioFileException if the file is not supported
+     * @throws IllegalArgumentException if <code>decoderThreads</code> is negative
+     */
+    public FFURLInputStream(final URL url, final int streamIndex, final int decoderThreads) throws IOException, UnsupportedAudioFileException {
+        this(url, streamIndex, decoderThreads, null, 0, 0);
+    }
+
+    /**
+     * Opens the given URL with custom probing options.
+     *
+     * @param url url
+     * @param streamIndex index of the audio stream in the file, typically 0, but may differ for STEMS
+     * @param decoderThreads number of decoder threads, <code>0</code> lets FFmpeg choose
+     * @param formatName short name of the FFmpeg demuxer to use (e.g. <code>mp3</code>) or <code>null</code> to probe
+     * @param probeSize max number of bytes to probe, <code>0</code> for FFmpeg's default
+     * @param analyzeDuration max duration to analyze in microseconds, <code>0</code> for FFmpeg's default
+     * @throws IOException if something IO-related goes wrong
+     * @throws UnsupportedAudioFileException if the file is not supported
+     * @throws IllegalArgumentException if <code>decoderThreads</code>, <code>probeSize</code> or <code>analyzeDuration</code> is negative
+     */
+    public FFURLInputStream(final URL url, final int streamIndex, final int decoderThreads,
+                            final String formatName, final int probeSize, final long analyzeDuration) throws IOException, UnsupportedAudioFileException {
+        checkDecoderThreads(decoderThreads);
+        checkProbeSize(probeSize);
+        checkAnalyzeDuration(analyzeDuration);
         // FFmpeg did not use to recognize DRM-crippled files.
         // Therefore we avoid decoding altogether.
         if (url.toString().toLowerCase().endsWith(".m4p")) {
             throw new UnsupportedAudioFileException("DRM encrypted file is unsupported: " + url);
         }
         this.url = url;
-        // workaround covariant return type introduced in Java 9
-        // ensure limit(int) is called on Buffer, not ByteBuffer
-        ((Buffer)this.nativeBuffer).limit(0);
-        this.pointer = lockedOpen(FFAudioFileReader.urlToString(url), streamIndex);
+        this.pointer = openPeer(FFAudioFileReader.urlToString(url), streamIndex, decoderThreads, formatName, probeSize, analyzeDuration);
         this.seekable = isSeekable(pointer);
     }
 
+    /**
+     * Describes all audio streams of the opened URL, using the already opened native peer,
+     * i.e. without opening and probing the URL a second time.
+     *
+     * @return one {@link AudioFileFormat} per audio stream
+     * @throws IOException if the stream is already closed
+     * @throws UnsupportedAudioFileException if no audio stream is found
+     */
+    synchronized AudioFileFormat[] getAudioFileFormats() throws IOException, UnsupportedAudioFileException {
+        if (!isOpen()) throw new IOException("Stream is already closed: " + url);
+        return getAudioFileFormats(pointer, FFAudioFileReader.urlToString(url));
+    }
+
     @Override
     public boolean isSeekable() {
         return seekable;
@@ -67,16 +112,15 @@ public class FFURLInputStream extends FFNativePeerInputStream {
         if (!isSeekable()) throw new UnsupportedOperationException("Seeking is not supported for " + url);
         final long microseconds = timeUnit.toMicros(time);
         seek(pointer, microseconds);
-        // workaround covariant return type introduced in Java 9
-        // ensure limit(int) is called on Buffer, not ByteBuffer
-        ((Buffer)this.nativeBuffer).limit(0);
+        discardDecodedAudio();
     }
 
 
     @Override
     protected void fillNativeBuffer() throws IOException {
         if (isOpen()) {
-            fillNativeBuffer(pointer);
+            registerNativeBuffer();
+            setNativeBufferLength(fillNativeBuffer(pointer, getFillTarget()));
         }
     }
 
@@ -89,28 +133,31 @@ public class FFURLInputStream extends FFNativePeerInputStream {
     }
 
     /**
-     * Synchronizes calls to {@link #open(String, int)}.
+     * Probes the URL via {@link #open(String, int, String, int, long)} and then opens the decoder.
+     * Only the latter is synchronized via {@link FFGlobalLock}.
      *
      * @param url url
      * @param streamIndex index of the stream in the file, typically 0, but may differ for STEMS
+     * @param decoderThreads number of decoder threads
+     * @param formatName demuxer name or <code>null</code>
+     * @param probeSize max number of bytes to probe or <code>0</code>
+     * @param analyzeDuration max duration to analyze in microseconds or <code>0</code>
      * @return pointer to native peer
      * @throws IOException if something IO-related goes wrong
      * @throws UnsupportedAudioFileException if the file is not supported
      * @throws IndexOutOfBoundsException if the stream index is not valid
      */
-    private long lockedOpen(final String url, final int streamIndex) throws IOException, UnsupportedAudioFileException {
-        LOCK.lock();
-        try {
-            return open(url, streamIndex);
-        } finally {
-            LOCK.unlock();
-        }
+    private long openPeer(final String url, final int streamIndex, final int decoderThreads,
+                          final String formatName, final int probeSize, final long analyzeDuration) throws IOException, UnsupportedAudioFileException {
+        return lockedOpenDecoder(open(url, streamIndex, formatName, probeSize, analyzeDuration), decoderThreads, OPEN_LOCK_STATISTICS);
     }
 
     private native boolean isSeekable(final long pointer);
+    private native AudioFileFormat[] getAudioFileFormats(final long pointer, final String url) throws IOException, UnsupportedAudioFileException;
     private native void seek(final long pointer, final long microseconds) throws IOException;
-    private native void fillNativeBuffer(final long pointer) throws IOException;
-    private native long open(final String url, final int streamIndex) throws IOException, UnsupportedAudioFileException;
+    private native int fillNativeBuffer(final long pointer, final int target) throws IOException;
+    private native long open(final String url, final int streamIndex,
+                             final String formatName, final int probeSize, final long analyzeDuration) throws IOException, UnsupportedAudioFileException;
     protected native void close(final long pointer) throws IOException;
 
 }
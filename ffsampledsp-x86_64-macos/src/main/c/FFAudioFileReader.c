@@ -39,7 +39,7 @@ static void init_ids(JNIEnv *env) {
     fprintf(stderr, "FFAudioFileReader.c init_ids(env)\n");
 #endif
 
-    if (!limit_MID) {
+    if (!limit_MID || !ffAudioFileFormat_MID) {
         jclass bufferClass = NULL;
         jclass ffAudioFileFormat_class = NULL;
 
@@ -94,6 +94,7 @@ static int read_callback(void *opaque, uint8_t *buf, int size) {
     }
     // get available data, i.e. the limit of the java buffer
     availableData = (*callback->env)->CallIntMethod(callback->env, callback->byte_buffer, limit_MID);
+    availableData = FFMIN(availableData, size);
     // copy to c buf
     memcpy(buf, (const uint8_t *)java_buffer, availableData);
 
@@ -162,6 +163,15 @@ static jlong duration(AVFormatContext *format_context, AVStream *stream) {
 #endif
     }
 
+    // without avformat_find_stream_info, only the stream duration may be known
+    if (stream->duration != AV_NOPTS_VALUE && stream->duration > 0 && duration_in_microseconds <= 0) {
+        duration_in_microseconds = (jlong)av_rescale_q(stream->duration, stream->time_base, AV_TIME_BASE_Q);
+#ifdef DEBUG
+        fprintf(stderr, "stream->duration: %lli\n", stream->duration);
+        fprintf(stderr, "duration_in_microseconds 1: %li\n", duration_in_microseconds);
+#endif
+    }
+
     if (stream->nb_frames != 0 && duration_in_microseconds <=0 && stream->codecpar->sample_rate > 0) {
         duration_in_microseconds = stream->nb_frames * 1000000L / stream->codecpar->sample_rate;
 #ifdef DEBUG
@@ -215,6 +225,38 @@ static jfloat get_frame_rate(AVStream *stream, jlong duration) {
     return frame_rate;
 }
 
+/**
+ * Determines, whether the codec parameters the demuxer read from the header are sufficient
+ * to create the same FFAudioFileFormats as with full stream info, i.e. whether we can skip
+ * <code>avformat_find_stream_info</code>, which reads packets and may decode frames.
+ *
+ * @param   format_context AVFormatContext opened with ff_open_input
+ * @return  1, if all audio streams are completely described by their header
+ */
+static int has_complete_header(AVFormatContext *format_context) {
+    int audio_stream_count = 0;
+    int i;
+    for (i=0; i<format_context->nb_streams; i++) {
+        AVStream* stream = format_context->streams[i];
+        AVCodecParameters *codecpar = stream->codecpar;
+        if (codecpar->codec_type != AVMEDIA_TYPE_AUDIO) continue;
+        audio_stream_count++;
+        if (codecpar->codec_id == AV_CODEC_ID_NONE
+            || codecpar->sample_rate <= 0
+            || codecpar->channels <= 0
+            || duration(format_context, stream) <= 0) {
+            return 0;
+        }
+        if (is_pcm(codecpar->codec_id)) {
+            if (codecpar->bits_per_coded_sample <= 0) return 0;
+        } else if (stream->nb_frames <= 0 && codecpar->frame_size <= 0) {
+            // frame rate and length would be unknown
+            return 0;
+        }
+    }
+    return audio_stream_count > 0;
+}
+
 /**
  * Creates an FFAudioFileFormat object.
  *
@@ -233,7 +275,17 @@ static jobject create_ffaudiofileformat(JNIEnv *env, jstring url, jint codecId,
                 channels, frame_size, frame_rate, frame_length, big_endian, duration, bitRate, vbr, encrypted);
 }
 
-static int create_ffaudiofileformats(JNIEnv *env, AVFormatContext *format_context, jobjectArray *array, jstring url) {
+/**
+ * Creates an FFAudioFileFormat object for each audio stream of an opened AVFormatContext.
+ * Also used by FFURLInputStream to describe the streams of its native peer.
+ *
+ * @param env JNIEnv
+ * @param format_context AVFormatContext
+ * @param array pointer to the array that will hold the created objects
+ * @param url URL (as jstring) or NULL, if unknown
+ * @return negative value, if something went wrong
+ */
+int ff_create_audiofileformats(JNIEnv *env, AVFormatContext *format_context, jobjectArray *array, jstring url) {
     int res = 0;
     int pcm = 0;
     jlong duration_in_microseconds = -1;
@@ -248,6 +300,8 @@ static int create_ffaudiofileformats(JNIEnv *env, AVFormatContext *format_contex
     jboolean big_endian = 1;
     jobject audio_format = NULL;
 
+    init_ids(env);
+
     // count possible audio streams
     int i;
     for (i=0; i<format_context->nb_streams; i++) {
@@ -374,15 +428,39 @@ bail:
     return res;
 }
 
+/**
+ * Completes the stream info of an AVFormatContext opened with ff_open_input,
+ * unless header information is sufficient and we were asked to only use the header.
+ *
+ * @param env JNIEnv
+ * @param format_context AVFormatContext
+ * @param header_only if true, only read stream info if the header is incomplete
+ * @return negative value, if something went wrong
+ */
+static int find_stream_info(JNIEnv *env, AVFormatContext *format_context, jboolean header_only) {
+    if (header_only && has_complete_header(format_context)) {
+#ifdef DEBUG
+        fprintf(stderr, "Header is complete, skipping avformat_find_stream_info.\n");
+#endif
+        return 0;
+    }
+    return ff_find_stream_info(env, format_context);
+}
+
 /**
  * Opens the given URL to determine its AudioFileFormat.
  *
  * @param env JNIEnv
  * @param instance calling FFAudioFileReader instance
  * @param url URL (as jstring)
+ * @param header_only if true, try to avoid avformat_find_stream_info
+ * @param format_name short name of the demuxer to use or NULL to probe
+ * @param probesize max number of bytes to probe or 0 for the default
+ * @param analyzeduration max duration to analyze in microseconds or 0 for the default
  * @return AudioFileFormat objects
  */
- JNIEXPORT jobjectArray JNICALL Java_com_tagtraum_ffsampledsp_FFAudioFileReader_getAudioFileFormatsFromURL(JNIEnv *env, jobject instance, jstring url) {
+ JNIEXPORT jobjectArray JNICALL Java_com_tagtraum_ffsampledsp_FFAudioFileReader_getAudioFileFormatsFromURL(JNIEnv *env, jobject instance, jstring url, jboolean header_only,
+                                                                                                          jstring format_name, jint probesize, jlong analyzeduration) {
 
 #ifdef DEBUG
     fprintf(stderr, "openFromUrl_1\n");
@@ -393,16 +471,23 @@ bail:
     jobjectArray array = NULL;
     //AVStream *stream = NULL;
     //int stream_index = 0;
+    FFProbeOptions probe_options;
 
     init_ids(env);
+    ff_init_probe_options(env, &probe_options, format_name, probesize, analyzeduration);
 
     const char *input_url = (*env)->GetStringUTFChars(env, url, NULL);
-    res = ff_open_format_context(env, &format_context, input_url);
+    res = ff_open_input(env, &format_context, input_url, &probe_options);
+    if (res) {
+        goto bail;
+    }
+
+    res = find_stream_info(env, format_context, header_only);
     if (res) {
         goto bail;
     }
 
-    res = create_ffaudiofileformats(env, format_context, &array, url);
+    res = ff_create_audiofileformats(env, format_context, &array, url);
     if (res) {
         goto bail;
     }
@@ -412,6 +497,7 @@ bail:
         avformat_close_input(&format_context);
     }
     (*env)->ReleaseStringUTFChars(env, url, input_url);
+    ff_release_probe_options(env, &probe_options);
 
     return array;
 }
@@ -422,19 +508,27 @@ bail:
  * @param env JNIEnv
  * @param instance calling FFAudioFileReader instance
  * @param byte_buffer audio data
+ * @param header_only if true, try to avoid avformat_find_stream_info
+ * @param format_name short name of the demuxer to use or NULL to probe
+ * @param probesize max number of bytes to probe or 0 for the default
+ * @param analyzeduration max duration to analyze in microseconds or 0 for the default
  * @return AudioFileFormat objects
  */
- JNIEXPORT jobjectArray JNICALL Java_com_tagtraum_ffsampledsp_FFAudioFileReader_getAudioFileFormatsFromBuffer(JNIEnv *env, jobject instance, jobject byte_buffer) {
+ JNIEXPORT jobjectArray JNICALL Java_com_tagtraum_ffsampledsp_FFAudioFileReader_getAudioFileFormatsFromBuffer(JNIEnv *env, jobject instance, jobject byte_buffer, jboolean header_only,
+                                                                                                             jstring format_name, jint probesize, jlong analyzeduration) {
     int res = 0;
     AVFormatContext *format_context = NULL;
     //AVStream *stream = NULL;
     jobjectArray array = NULL;
 
     unsigned char* callbackBuffer = NULL;
+    int callback_buffer_size = CALLBACK_BUFFERSIZE;
     FFCallback *callback = NULL;
     AVIOContext *io_context;
+    FFProbeOptions probe_options;
 
     init_ids(env);
+    ff_init_probe_options(env, &probe_options, format_name, probesize, analyzeduration);
 
     callback = calloc(1, sizeof(FFCallback));
     if (!callback) {
@@ -457,7 +551,9 @@ bail:
     format_context->probesize = 8*1024; // this corresponds to the Java code!
     format_context->max_analyze_duration = 5*AV_TIME_BASE;
 
-    callbackBuffer = (unsigned char*)av_malloc(CALLBACK_BUFFERSIZE * sizeof(uint8_t));
+    // the buffer is passed to FFmpeg in a single read, so it must fit into the IO buffer
+    callback_buffer_size = FFMAX(CALLBACK_BUFFERSIZE, (*env)->CallIntMethod(env, byte_buffer, limit_MID));
+    callbackBuffer = (unsigned char*)av_malloc(callback_buffer_size * sizeof(uint8_t));
     if (!callbackBuffer) {
         res = AVERROR(ENOMEM);
         throwIOExceptionIfError(env, res, "Could not allocate callback buffer.");
@@ -466,7 +562,7 @@ bail:
 
     io_context = avio_alloc_context(
         callbackBuffer,      // IOBuffer
-        CALLBACK_BUFFERSIZE, // Buffer Size (32kb corresponds to Java code)
+        callback_buffer_size, // Buffer Size (at least 32kb, corresponds to Java code)
         0,                   // Write flag, only reading, so 0
         callback,            // FFCallback pointer (opaque)
         read_callback,       // Read callback
@@ -483,12 +579,17 @@ bail:
 
     format_context->pb = io_context;
 
-    res = ff_open_format_context(env, &format_context, "MemoryAVIOContext");
+    res = ff_open_input(env, &format_context, "MemoryAVIOContext", &probe_options);
     if (res) {
         goto bail;
     }
 
-    res = create_ffaudiofileformats(env, format_context, &array, NULL);
+    res = find_stream_info(env, format_context, header_only);
+    if (res) {
+        goto bail;
+    }
+
+    res = ff_create_audiofileformats(env, format_context, &array, NULL);
     if (res) {
         goto bail;
     }
@@ -515,8 +616,90 @@ bail:
     if (callback) {
         free(callback);
     }
+    ff_release_probe_options(env, &probe_options);
 
     return array;
 }
 
+/**
+ * Probes a complete file held in a direct buffer or, if the buffer is NULL, in the given
+ * region of a byte array to determine its AudioFileFormats.
+ * Unlike FFMemoryInputStream, this does not open a decoder, i.e. the global lock is not needed.
+ *
+ * @param env JNIEnv
+ * @param instance calling FFAudioFileReader instance
+ * @param byte_buffer direct buffer containing the complete file or NULL
+ * @param array byte array containing the complete file, only used if byte_buffer is NULL
+ * @param offset offset of the file in array
+ * @param length length of the file in array
+ * @param header_only if true, try to avoid avformat_find_stream_info
+ * @param format_name short name of the demuxer to use or NULL to probe
+ * @param probesize max number of bytes to probe or 0 for the default
+ * @param analyzeduration max duration to analyze in microseconds or 0 for the default
+ * @return AudioFileFormat objects
+ */
+ JNIEXPORT jobjectArray JNICALL Java_com_tagtraum_ffsampledsp_FFAudioFileReader_getAudioFileFormatsFromMemory(JNIEnv *env, jobject instance, jobject byte_buffer,
+                                                                                                             jbyteArray array, jint offset, jint length, jboolean header_only,
+                                                                                                             jstring format_name, jint probesize, jlong analyzeduration) {
+    int res = 0;
+    AVFormatContext *format_context = NULL;
+    jobjectArray audio_file_formats = NULL;
+    FFMemorySource source = {0};
+    FFProbeOptions probe_options;
+
+    init_ids(env);
+    ff_init_probe_options(env, &probe_options, format_name, probesize, analyzeduration);
+
+    res = ff_init_memory_source(env, &source, byte_buffer, array, offset, length);
+    if (res) {
+        goto bail;
+    }
+    // we only read during this call
+    source.env = &env;
+
+    format_context = avformat_alloc_context();
+    if (!format_context) {
+        res = AVERROR(ENOMEM);
+        throwIOExceptionIfError(env, res, "Could not allocate format context.");
+        goto bail;
+    }
+
+    res = ff_open_memory_io(env, format_context, &source);
+    if (res) {
+        goto bail;
+    }
+
+    res = ff_open_input(env, &format_context, "MemoryAVIOContext", &probe_options);
+    if (res) {
+        goto bail;
+    }
+
+    res = find_stream_info(env, format_context, header_only);
+    if (res) {
+        goto bail;
+    }
+
+    res = ff_create_audiofileformats(env, format_context, &audio_file_formats, NULL);
+    if (res) {
+        goto bail;
+    }
+
+bail:
 
+    if (format_context) {
+        AVFormatContext *s = format_context;
+        if ((s->iformat && s->iformat->flags & AVFMT_NOFILE) || (s->flags & AVFMT_FLAG_CUSTOM_IO)) {
+            if (s->pb) {
+                avio_flush(s->pb);
+                av_free(s->pb->buffer);
+                av_free(s->pb);
+            }
+        }
+
+        avformat_close_input(&format_context);
+    }
+    ff_release_memory_source(env, &source);
+    ff_release_probe_options(env, &probe_options);
+
+    return audio_file_formats;
+}
@@ -139,32 +139,47 @@ JNIEXPORT jlong JNICALL Java_com_tagtraum_ffsampledsp_FFCodecInputStream_open(JN
     if (aio->swr_context) {
         swr_free(&aio->swr_context);
     }
-    // allocate new
-    aio->swr_context = swr_alloc();
-    if (!aio->swr_context) {
-        res = AVERROR(ENOMEM);
-        throwIOExceptionIfError(env, res, "Could not allocate swr context.");
-        goto bail;
-    }
 
-    // standard stuff from input
-    av_opt_set_sample_fmt(aio->swr_context, "in_sample_fmt",  aio->stream->codecpar->format, 0);
-    av_opt_set_int(aio->swr_context, "in_channel_count",  aio->stream->codecpar->channels, 0);
-    av_opt_set_int(aio->swr_context, "in_channel_layout",  aio->stream->codecpar->channel_layout, 0);
-    av_opt_set_int(aio->swr_context, "in_sample_rate",     aio->stream->codecpar->sample_rate, 0);
-    // custom stuff
-    av_opt_set_int(aio->swr_context, "out_channel_layout", out_channel_layout, 0);
-    av_opt_set_int(aio->swr_context, "out_channel_count", channels, 0);
-    av_opt_set_int(aio->swr_context, "out_sample_rate", (int)round(sample_rate), 0);
-    av_opt_set_sample_fmt(aio->swr_context, "out_sample_fmt", out_sample_fmt, 0);
-    av_opt_set_int(aio->swr_context, "dither_method", dither_method, 0);
-    av_opt_set_int(aio->swr_context, "output_sample_bits", output_sample_bits, 0);
-
-    res = swr_init(aio->swr_context);
-    if (res < 0) {
-        res = AVERROR(ENOMEM);
-        throwIOExceptionIfError(env, res, "Could not re-initialize swr context.");
-        goto bail;
+    // remember output parameters, so we don't have to look them up for every packet
+    aio->out_sample_fmt = out_sample_fmt;
+    aio->out_channel_count = channels;
+    aio->out_channel_layout = out_channel_layout;
+    aio->out_sample_rate = (int)round(sample_rate);
+
+    // if the decoder already delivers what we want, we don't need a SwrContext at all
+    aio->passthrough = dither_method == SWR_DITHER_NONE && ff_can_passthrough(aio);
+    if (aio->passthrough) {
+#ifdef DEBUG
+        fprintf(stderr, "open codec: using passthrough mode\n");
+#endif
+    } else {
+        // allocate new
+        aio->swr_context = swr_alloc();
+        if (!aio->swr_context) {
+            res = AVERROR(ENOMEM);
+            throwIOExceptionIfError(env, res, "Could not allocate swr context.");
+            goto bail;
+        }
+
+        // standard stuff from input
+        av_opt_set_sample_fmt(aio->swr_context, "in_sample_fmt",  aio->stream->codecpar->format, 0);
+        av_opt_set_int(aio->swr_context, "in_channel_count",  aio->stream->codecpar->channels, 0);
+        av_opt_set_int(aio->swr_context, "in_channel_layout",  aio->stream->codecpar->channel_layout, 0);
+        av_opt_set_int(aio->swr_context, "in_sample_rate",     aio->stream->codecpar->sample_rate, 0);
+        // custom stuff
+        av_opt_set_int(aio->swr_context, "out_channel_layout", out_channel_layout, 0);
+        av_opt_set_int(aio->swr_context, "out_channel_count", channels, 0);
+        av_opt_set_int(aio->swr_context, "out_sample_rate", (int)round(sample_rate), 0);
+        av_opt_set_sample_fmt(aio->swr_context, "out_sample_fmt", out_sample_fmt, 0);
+        av_opt_set_int(aio->swr_context, "dither_method", dither_method, 0);
+        av_opt_set_int(aio->swr_context, "output_sample_bits", output_sample_bits, 0);
+
+        res = swr_init(aio->swr_context);
+        if (res < 0) {
+            res = AVERROR(ENOMEM);
+            throwIOExceptionIfError(env, res, "Could not re-initialize swr context.");
+            goto bail;
+        }
     }
 
 #ifdef DEBUG
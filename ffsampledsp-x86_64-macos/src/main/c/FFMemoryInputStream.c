@@ -0,0 +1,200 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+
+#include "com_tagtraum_ffsampledsp_FFMemoryInputStream.h"
+#include "FFUtils.h"
+
+/**
+ * Frees the given FFAudioIO along with the FFMemorySource its AVIOContext reads from.
+ *
+ * @param env JNIEnv
+ * @param aio FFAudioIO
+ * @param source FFMemorySource
+ */
+static void memory_audioio_free(JNIEnv *env, FFAudioIO *aio, FFMemorySource *source) {
+    ff_audioio_free(aio);
+    if (source) {
+        ff_release_memory_source(env, source);
+        free(source);
+    }
+}
+
+/**
+ * Fills the java-side buffer (allocated via Java code) with fresh audio data.
+ *
+ * @param env JNIEnv
+ * @param stream FFMemoryInputStream instance
+ * @param aio_pointer pointer to the FFAudioIO created when opening the buffer
+ * @param target desired number of bytes to decode
+ * @return number of bytes written to the java-side buffer
+ */
+JNIEXPORT jint JNICALL Java_com_tagtraum_ffsampledsp_FFMemoryInputStream_fillNativeBuffer(JNIEnv *env, jobject stream, jlong aio_pointer, jint target) {
+
+    int res = 0;
+    FFAudioIO *aio = (FFAudioIO*)(intptr_t)aio_pointer;
+    aio->env = env;
+    aio->java_instance = stream;
+
+    res = ff_fill_buffer(aio, (int)target);
+    // in the case of an error, ff_fill_buffer
+    // already threw a suitable Java exception
+    return res < 0 ? 0 : res;
+}
+
+/**
+ * Creates the FFAudioIO and a custom, seekable AVIOContext reading from the given direct buffer
+ * or, if the buffer is NULL, from the given region of a byte array.
+ * A direct buffer must not be garbage collected before the FFAudioIO is closed.
+ * Probes the input, but does not open a decoder (see FFNativePeerInputStream.openDecoder).
+ *
+ * @param env JNIEnv
+ * @param stream calling FFMemoryInputStream instance
+ * @param byte_buffer direct buffer containing the complete file or NULL
+ * @param array byte array containing the complete file, only used if byte_buffer is NULL
+ * @param offset offset of the file in array
+ * @param length length of the file in array
+ * @param streamIndex index of the audio stream to open
+ * @param formatName short name of the demuxer to use or NULL to probe
+ * @param probeSize max number of bytes to probe or 0 for the default
+ * @param analyzeDuration max duration to analyze in microseconds or 0 for the default
+ * @return pointer to new FFAudioIO
+ */
+JNIEXPORT jlong JNICALL Java_com_tagtraum_ffsampledsp_FFMemoryInputStream_open(JNIEnv *env, jobject stream, jobject byte_buffer,
+                                                                               jbyteArray array, jint offset, jint length, jint streamIndex,
+                                                                               jstring formatName, jint probeSize, jlong analyzeDuration) {
+
+    int res = 0;
+    FFAudioIO *aio = NULL;
+    FFMemorySource *source = NULL;
+    FFProbeOptions probe_options;
+
+    ff_init_probe_options(env, &probe_options, formatName, probeSize, analyzeDuration);
+
+    source = calloc(1, sizeof(FFMemorySource));
+    if (!source) {
+        res = AVERROR(ENOMEM);
+        throwIOExceptionIfError(env, res, "Could not allocate memory source.");
+        goto bail;
+    }
+    res = ff_init_memory_source(env, source, byte_buffer, array, offset, length);
+    if (res) {
+        // exception is already thrown
+        goto bail;
+    }
+
+    aio = calloc(1, sizeof(FFAudioIO));
+    if (!aio) {
+        res = AVERROR(ENOMEM);
+        throwIOExceptionIfError(env, res, "Could not allocate audio IO.");
+        goto bail;
+    }
+    aio->env = env;
+    aio->java_instance = stream;
+    // array access uses the JNIEnv of whatever call is currently reading
+    source->env = &aio->env;
+
+    aio->format_context = avformat_alloc_context();
+    if (!aio->format_context) {
+        res = AVERROR(ENOMEM);
+        throwIOExceptionIfError(env, res, "Could not allocate format context.");
+        goto bail;
+    }
+
+    res = ff_open_memory_io(env, aio->format_context, source);
+    if (res) {
+        // exception is already thrown
+        goto bail;
+    }
+
+    aio->stream_index = (int)streamIndex;
+
+    res = ff_open_file(env, &aio->format_context, &aio->stream, &aio->stream_index, "MemoryAVIOContext", &probe_options);
+    if (res) {
+        // exception is already thrown
+        goto bail;
+    }
+
+    res = ff_init_audioio(env, aio);
+    if (res) {
+        // exception is already thrown
+        goto bail;
+    }
+
+bail:
+
+    if (res) {
+        memory_audioio_free(env, aio, source);
+        aio = NULL;
+    }
+    ff_release_probe_options(env, &probe_options);
+    return (jlong)(intptr_t)aio;
+}
+
+/**
+ * Creates AudioFileFormats for the audio streams of an already opened FFAudioIO context.
+ *
+ * @param env JNIEnv
+ * @param stream calling FFMemoryInputStream instance
+ * @param aio_pointer pointer to FFAudioIO context
+ * @param url URL (as jstring) used to determine the file type or NULL
+ * @return AudioFileFormat objects
+ */
+JNIEXPORT jobjectArray JNICALL Java_com_tagtraum_ffsampledsp_FFMemoryInputStream_getAudioFileFormats(JNIEnv *env, jobject stream, jlong aio_pointer, jstring url) {
+    FFAudioIO *aio = (FFAudioIO*)(intptr_t)aio_pointer;
+    jobjectArray array = NULL;
+
+    ff_create_audiofileformats(env, aio->format_context, &array, url);
+    return array;
+}
+
+/**
+ * Seeks to a point in time.
+ *
+ * @param env JNIEnv
+ * @param stream calling FFMemoryInputStream instance
+ * @param aio_pointer pointer to FFAudioIO context
+ * @param microseconds timestamp to seek to
+ */
+JNIEXPORT void JNICALL Java_com_tagtraum_ffsampledsp_FFMemoryInputStream_seek(JNIEnv *env, jobject stream, jlong aio_pointer, jlong microseconds) {
+    FFAudioIO *aio = (FFAudioIO*)(intptr_t)aio_pointer;
+    // seeking may read from a byte array
+    aio->env = env;
+    aio->java_instance = stream;
+    ff_seek(env, aio, (int64_t)microseconds);
+}
+
+/**
+ * Free all resources associated with a given FFAudioIO, including its FFMemorySource.
+ *
+ * @param env JNIEnv
+ * @param stream calling FFMemoryInputStream instance
+ * @param aio_pointer pointer to FFAudioIO
+ */
+JNIEXPORT void JNICALL Java_com_tagtraum_ffsampledsp_FFMemoryInputStream_close(JNIEnv *env, jobject stream, jlong aio_pointer) {
+    FFAudioIO *aio = (FFAudioIO*)(intptr_t)aio_pointer;
+    FFMemorySource *source = NULL;
+    if (aio && aio->format_context && aio->format_context->pb) {
+        source = (FFMemorySource*)aio->format_context->pb->opaque;
+    }
+    memory_audioio_free(env, aio, source);
+}
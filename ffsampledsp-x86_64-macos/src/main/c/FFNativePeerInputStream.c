@@ -0,0 +1,67 @@
+/*
+ * =================================================
+ * Copyright 2013 tagtraum industries incorporated
+ * This file is part of FFSampledSP.
+ *
+ * FFSampledSP is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * FFSampledSP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with FFSampledSP; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ * =================================================
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+
+#include "com_tagtraum_ffsampledsp_FFNativePeerInputStream.h"
+#include "FFUtils.h"
+
+
+/**
+ * Registers the java-side buffer decoded audio is written to.
+ * Its address and capacity are cached in the FFAudioIO, so that filling
+ * the buffer does not require any JNI calls.
+ *
+ * @param env JNIEnv
+ * @param stream FFNativePeerInputStream instance
+ * @param aio_pointer pointer to the FFAudioIO created when opening the file
+ * @param byte_buffer direct buffer
+ */
+JNIEXPORT void JNICALL Java_com_tagtraum_ffsampledsp_FFNativePeerInputStream_setNativeBuffer(JNIEnv *env, jobject stream, jlong aio_pointer, jobject byte_buffer) {
+
+    FFAudioIO *aio = (FFAudioIO*)(intptr_t)aio_pointer;
+    ff_set_java_buffer(env, aio, byte_buffer);
+    // we can ignore the return value,
+    // because ff_set_java_buffer already
+    // throws a suitable Java exception
+    // in the case of an error
+}
+
+/**
+ * Opens the decoder of an FFAudioIO that was created by a subclass' <code>open</code> method.
+ * Must be called while holding the global lock.
+ *
+ * @param env JNIEnv
+ * @param stream FFNativePeerInputStream instance
+ * @param aio_pointer pointer to the FFAudioIO created when opening the file
+ * @param threadCount number of decoder threads (0 means auto)
+ */
+JNIEXPORT void JNICALL Java_com_tagtraum_ffsampledsp_FFNativePeerInputStream_openDecoder(JNIEnv *env, jobject stream, jlong aio_pointer, jint threadCount) {
+
+    FFAudioIO *aio = (FFAudioIO*)(intptr_t)aio_pointer;
+    aio->env = env;
+    aio->java_instance = stream;
+    ff_open_decoder(env, aio, (int)threadCount);
+    // we can ignore the return value,
+    // because ff_open_decoder already
+    // throws a suitable Java exception
+    // in the case of an error
+}
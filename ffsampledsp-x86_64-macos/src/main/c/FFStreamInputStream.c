@@ -25,9 +25,7 @@
 #include "FFUtils.h"
 
 static jmethodID fillReadBuffer_MID = NULL;
-static jfieldID readBuffer_FID = NULL;
-
-static int CALLBACK_BUFFERSIZE = 32*1024;
+static jmethodID seekChannel_MID = NULL;
 
 /**
  * Init static method and field ids for Java methods/fields, if we don't have them already.
@@ -36,16 +34,18 @@ static int CALLBACK_BUFFERSIZE = 32*1024;
  * @param stream FFFileInputStream instance
  */
 static void init_ids(JNIEnv *env, jobject stream) {
-    if (!fillReadBuffer_MID || !readBuffer_FID) {
+    if (!fillReadBuffer_MID || !seekChannel_MID) {
         jclass streamClass = NULL;
         streamClass = (*env)->GetObjectClass(env, stream);
-        readBuffer_FID = (*env)->GetFieldID(env, streamClass, "readBuffer", "Ljava/nio/ByteBuffer;");
-        fillReadBuffer_MID = (*env)->GetMethodID(env, streamClass, "fillReadBuffer", "()I");
+        fillReadBuffer_MID = (*env)->GetMethodID(env, streamClass, "fillReadBuffer", "(Ljava/nio/ByteBuffer;)I");
+        seekChannel_MID = (*env)->GetMethodID(env, streamClass, "seekChannel", "(JI)J");
     }
 }
 
 /**
  * Callback read function used by our custom AVIOContext.
+ * Wraps FFmpeg's buffer in a direct ByteBuffer, so that Java can read the stream's data
+ * right into it, without any intermediate copies.
  *
  * @param opaque    pointer to the current FFAudioIO
  * @param buf       buffer to write freshly read data to
@@ -56,52 +56,56 @@ static int read_callback(void *opaque, uint8_t *buf, int size) {
     int res = 0;
     int available_data;
     jobject read_buffer = NULL;
-    uint8_t *java_buffer = NULL;
     FFAudioIO *aio = (FFAudioIO*)opaque;
 
-    // tell java to fill buffer
-    available_data = (int) (*aio->env)->CallIntMethod(aio->env, aio->java_instance, fillReadBuffer_MID);
-    if (available_data > size) {
-        res = -1;
-        throwIOExceptionIfError(aio->env, 1, "Available data must not be larger than callback buffer.");
-        goto bail;
-    }
-    if ((*aio->env)->ExceptionCheck(aio->env)) {
-        // needed?
-        //(*aio->env)->ExceptionDescribe(aio->env);
+    read_buffer = (*aio->env)->NewDirectByteBuffer(aio->env, buf, size);
+    if (!read_buffer) {
         res = -1;
+        throwIOExceptionIfError(aio->env, 1, "Failed to wrap read buffer.");
         goto bail;
     }
 
-    if (available_data <= 0) {
-        res = 0;
-        goto bail;
-    }
-
-    read_buffer = (*aio->env)->GetObjectField(aio->env, aio->java_instance, readBuffer_FID);
-    if (!read_buffer) {
+    // tell java to fill buffer
+    available_data = (int) (*aio->env)->CallIntMethod(aio->env, aio->java_instance, fillReadBuffer_MID, read_buffer);
+    if ((*aio->env)->ExceptionCheck(aio->env)) {
         res = -1;
-        throwIOExceptionIfError(aio->env, 1, "Failed to get read buffer.");
         goto bail;
     }
-
-    java_buffer = (uint8_t *)(*aio->env)->GetDirectBufferAddress(aio->env, read_buffer);
-    if (!java_buffer) {
+    if (available_data > size) {
         res = -1;
-        throwIOExceptionIfError(aio->env, 1, "Failed to get address for read buffer.");
+        throwIOExceptionIfError(aio->env, 1, "Available data must not be larger than callback buffer.");
         goto bail;
     }
 
-    // copy to c buffer
-    memcpy(buf, (const uint8_t *)java_buffer, available_data);
-    // return size of buffer
-    res = available_data;
+    res = available_data <= 0 ? 0 : available_data;
 
 bail:
 
+    if (read_buffer) (*aio->env)->DeleteLocalRef(aio->env, read_buffer);
     return res;
 }
 
+/**
+ * Callback seek function used by our custom AVIOContext, if the Java side
+ * reads from a SeekableByteChannel.
+ *
+ * @param opaque    pointer to the current FFAudioIO
+ * @param offset    offset
+ * @param whence    SEEK_SET, SEEK_CUR, SEEK_END or AVSEEK_SIZE, possibly combined with AVSEEK_FORCE
+ * @return          new position, size (for AVSEEK_SIZE) or a negative number in case of an error
+ */
+static int64_t seek_callback(void *opaque, int64_t offset, int whence) {
+    jlong res = 0;
+    FFAudioIO *aio = (FFAudioIO*)opaque;
+
+    // Java returns -1 instead of throwing, as FFmpeg may simply try something else
+    res = (*aio->env)->CallLongMethod(aio->env, aio->java_instance, seekChannel_MID, (jlong)offset, (jint)(whence & ~AVSEEK_FORCE));
+    if ((*aio->env)->ExceptionCheck(aio->env)) {
+        return AVERROR(EIO);
+    }
+    return res < 0 ? AVERROR(EIO) : (int64_t)res;
+}
+
 
 /**
  * Fills the java-side buffer (allocated via Java code) with fresh audio data.
@@ -109,34 +113,46 @@ bail:
  * @param env JNIEnv
  * @param stream FFStreamInputStream instance
  * @param aio_pointer pointer to the FFAudioIO created when opening the file
+ * @param target desired number of bytes to decode
+ * @return number of bytes written to the java-side buffer
  */
-JNIEXPORT void JNICALL Java_com_tagtraum_ffsampledsp_FFStreamInputStream_fillNativeBuffer(JNIEnv *env, jobject stream, jlong aio_pointer) {
+JNIEXPORT jint JNICALL Java_com_tagtraum_ffsampledsp_FFStreamInputStream_fillNativeBuffer(JNIEnv *env, jobject stream, jlong aio_pointer, jint target) {
 
+    int res = 0;
     FFAudioIO *aio = (FFAudioIO*)(intptr_t)aio_pointer;
     aio->env = env;
     aio->java_instance = stream;
-    ff_fill_buffer(aio);
-    // we can ignore the return value,
-    // because all ff_fill_buffer already
-    // throws a suitable Java exception
-    // in the case of an error
+    res = ff_fill_buffer(aio, (int)target);
+    // in the case of an error, ff_fill_buffer
+    // already threw a suitable Java exception
+    return res < 0 ? 0 : res;
 }
 
 /**
  * Creates the FFAudioIO, custom AVIOContext etc for reading data from the stream.
+ * Probes the input, but does not open a decoder (see FFNativePeerInputStream.openDecoder).
  *
  * @param env       JNIEnv
  * @param stream    calling FFStreamInputStream instance
+ * @param streamIndex index of the audio stream to open
+ * @param bufferSize size of the AVIO buffer, i.e. max number of bytes read from the stream at once
+ * @param seekable true, if the Java side reads from a SeekableByteChannel
+ * @param formatName short name of the demuxer to use or NULL to probe
+ * @param probeSize max number of bytes to probe or 0 for the default
+ * @param analyzeDuration max duration to analyze in microseconds or 0 for the default
  * @return          pointer to the created FFAudioIO
  */
-JNIEXPORT jlong JNICALL Java_com_tagtraum_ffsampledsp_FFStreamInputStream_open(JNIEnv *env, jobject stream, jint streamIndex) {
+JNIEXPORT jlong JNICALL Java_com_tagtraum_ffsampledsp_FFStreamInputStream_open(JNIEnv *env, jobject stream, jint streamIndex,
+                                                                               jint bufferSize, jboolean seekable, jstring formatName, jint probeSize, jlong analyzeDuration) {
 
     int res = 0;
     FFAudioIO *aio;
     AVIOContext *io_context;
     unsigned char* callback_buffer = NULL;
+    FFProbeOptions probe_options;
 
     init_ids(env, stream);
+    ff_init_probe_options(env, &probe_options, formatName, probeSize, analyzeDuration);
 
     aio = calloc(1, sizeof(FFAudioIO));
     if (!aio) {
@@ -154,11 +170,12 @@ JNIEXPORT jlong JNICALL Java_com_tagtraum_ffsampledsp_FFStreamInputStream_open(J
         goto bail;
     }
 
-    // limit probe to less than what we read in one chunk...
+    // keep the default probe small, as all probed data has to be read from the stream
+    // before decoding can start, probe options may override this
     aio->format_context->probesize = 8*1024;
     aio->format_context->max_analyze_duration = 5*AV_TIME_BASE;
 
-    callback_buffer = (unsigned char*)av_malloc(CALLBACK_BUFFERSIZE * sizeof(uint8_t));
+    callback_buffer = (unsigned char*)av_malloc(bufferSize * sizeof(uint8_t));
     if (!callback_buffer) {
         res = AVERROR(ENOMEM);
         throwIOExceptionIfError(env, res, "Could not allocate callback buffer.");
@@ -167,26 +184,26 @@ JNIEXPORT jlong JNICALL Java_com_tagtraum_ffsampledsp_FFStreamInputStream_open(J
 
     io_context = avio_alloc_context(
         callback_buffer,      // IOBuffer
-        CALLBACK_BUFFERSIZE, // Buffer Size (32kb corresponds to Java code)
+        bufferSize,          // Buffer Size
         0,                   // Write flag, only reading, so 0
         aio,                 // FFAudioIO pointer (opaque)
         read_callback,       // Read callback
         NULL,                // Write callback
-        NULL                 // Seek callback
+        seekable ? seek_callback : NULL // Seek callback
     );
     if (!io_context) {
         res = AVERROR(ENOMEM);
         throwIOExceptionIfError(env, res, "Could not allocate custom IO context.");
         goto bail;
     }
-    // we didn't supply a seek function in avio_alloc_context,
-    // so we need to make sure we don't seek...
-    io_context->seekable = 0;
+    // without a seek function in avio_alloc_context,
+    // we need to make sure we don't seek...
+    io_context->seekable = seekable ? AVIO_SEEKABLE_NORMAL : 0;
 
     aio->format_context->pb = io_context;
     aio->stream_index = (int)streamIndex;
 
-    res = ff_open_file(env, &aio->format_context, &aio->stream, &aio->decode_context, &aio->stream_index, "MemoryAVIOContext");
+    res = ff_open_file(env, &aio->format_context, &aio->stream, &aio->stream_index, "MemoryAVIOContext", &probe_options);
     if (res) {
         // exception is already thrown
         goto bail;
@@ -212,9 +229,44 @@ JNIEXPORT jlong JNICALL Java_com_tagtraum_ffsampledsp_FFStreamInputStream_open(J
 bail:
 
     if (res) ff_audioio_free(aio);
+    ff_release_probe_options(env, &probe_options);
     return (jlong)(intptr_t)aio;
 }
 
+/**
+ * Creates AudioFileFormats for the audio streams of an already opened FFAudioIO context.
+ * This lets FFAudioFileReader describe a stream with the data that was read to open it,
+ * instead of probing the same data a second time.
+ *
+ * @param env           JNIEnv
+ * @param stream        FFStreamInputStream instance
+ * @param aio_pointer   pointer to FFAudioIO
+ * @return AudioFileFormat objects
+ */
+JNIEXPORT jobjectArray JNICALL Java_com_tagtraum_ffsampledsp_FFStreamInputStream_getAudioFileFormats(JNIEnv *env, jobject stream, jlong aio_pointer) {
+    FFAudioIO *aio = (FFAudioIO*)(intptr_t)aio_pointer;
+    jobjectArray array = NULL;
+
+    ff_create_audiofileformats(env, aio->format_context, &array, NULL);
+    return array;
+}
+
+/**
+ * Seeks to a point in time. Only supported, if the stream was opened as seekable.
+ *
+ * @param env           JNIEnv
+ * @param stream        FFStreamInputStream instance
+ * @param aio_pointer   pointer to FFAudioIO
+ * @param microseconds  timestamp to seek to
+ */
+JNIEXPORT void JNICALL Java_com_tagtraum_ffsampledsp_FFStreamInputStream_seek(JNIEnv *env, jobject stream, jlong aio_pointer, jlong microseconds) {
+    FFAudioIO *aio = (FFAudioIO*)(intptr_t)aio_pointer;
+    // the AVIO callbacks call back into this instance
+    aio->env = env;
+    aio->java_instance = stream;
+    ff_seek(env, aio, (int64_t)microseconds);
+}
+
 /**
  * Frees all resources associated with the given FFAudioIO.
  *
@@ -31,32 +31,43 @@
  * @param env JNIEnv
  * @param stream FFURLInputStream instance
  * @param aio_pointer pointer to the FFAudioIO created when opening the file
+ * @param target desired number of bytes to decode
+ * @return number of bytes written to the java-side buffer
  */
-JNIEXPORT void JNICALL Java_com_tagtraum_ffsampledsp_FFURLInputStream_fillNativeBuffer(JNIEnv *env, jobject stream, jlong aio_pointer) {
+JNIEXPORT jint JNICALL Java_com_tagtraum_ffsampledsp_FFURLInputStream_fillNativeBuffer(JNIEnv *env, jobject stream, jlong aio_pointer, jint target) {
 
+    int res = 0;
     FFAudioIO *aio = (FFAudioIO*)(intptr_t)aio_pointer;
     aio->env = env;
     aio->java_instance = stream;
 
-    ff_fill_buffer(aio);
-    // we can ignore the return value,
-    // because all ff_fill_buffer already
-    // throws a suitable Java exception
-    // in the case of an error
+    res = ff_fill_buffer(aio, (int)target);
+    // in the case of an error, ff_fill_buffer
+    // already threw a suitable Java exception
+    return res < 0 ? 0 : res;
 }
 
 /**
  * Open a file/URL and create a corresponding FFAudioIO.
+ * Probes the input, but does not open a decoder (see FFNativePeerInputStream.openDecoder).
  *
  * @param env JNIEnv
  * @param stream calling FFURLInputStream instance
  * @param url URL
+ * @param streamIndex index of the audio stream to open
+ * @param formatName short name of the demuxer to use or NULL to probe
+ * @param probeSize max number of bytes to probe or 0 for the default
+ * @param analyzeDuration max duration to analyze in microseconds or 0 for the default
  * @return pointer to new FFAudioIO
  */
-JNIEXPORT jlong JNICALL Java_com_tagtraum_ffsampledsp_FFURLInputStream_open(JNIEnv *env, jobject stream, jstring url, jint streamIndex) {
+JNIEXPORT jlong JNICALL Java_com_tagtraum_ffsampledsp_FFURLInputStream_open(JNIEnv *env, jobject stream, jstring url, jint streamIndex,
+                                                                            jstring formatName, jint probeSize, jlong analyzeDuration) {
 
     int res = 0;
     FFAudioIO *aio = NULL;
+    FFProbeOptions probe_options;
+
+    ff_init_probe_options(env, &probe_options, formatName, probeSize, analyzeDuration);
 
     // copy URL to local char*
     const char *input_url = (*env)->GetStringUTFChars(env, url, NULL);
@@ -72,9 +83,11 @@ JNIEXPORT jlong JNICALL Java_com_tagtraum_ffsampledsp_FFURLInputStream_open(JNIE
         throwIOExceptionIfError(env, res, "Could not allocate audio io");
         goto bail;
     }
+    aio->env = env;
+    aio->java_instance = stream;
     aio->stream_index = (int)streamIndex;
 
-    res = ff_open_file(env, &(aio->format_context), &(aio->stream), &(aio->decode_context), &(aio->stream_index), input_url);
+    res = ff_open_file(env, &(aio->format_context), &(aio->stream), &(aio->stream_index), input_url, &probe_options);
     if (res) {
         goto bail;
     }
@@ -98,10 +111,29 @@ bail:
 
     if (res) ff_audioio_free(aio);
     (*env)->ReleaseStringUTFChars(env, url, input_url);
-    
+    ff_release_probe_options(env, &probe_options);
+
     return (jlong)(intptr_t)aio;
 }
 
+/**
+ * Creates AudioFileFormats for the audio streams of an already opened FFAudioIO context,
+ * so that the URL does not have to be opened and probed a second time.
+ *
+ * @param env JNIEnv
+ * @param stream calling FFURLInputStream instance
+ * @param aio_pointer pointer to FFAudioIO context
+ * @param url URL (as jstring)
+ * @return AudioFileFormat objects
+ */
+JNIEXPORT jobjectArray JNICALL Java_com_tagtraum_ffsampledsp_FFURLInputStream_getAudioFileFormats(JNIEnv *env, jobject stream, jlong aio_pointer, jstring url) {
+    FFAudioIO *aio = (FFAudioIO*)(intptr_t)aio_pointer;
+    jobjectArray array = NULL;
+
+    ff_create_audiofileformats(env, aio->format_context, &array, url);
+    return array;
+}
+
 /**
  * Indicates whether an FFAudioIO context is seekable.
  *
@@ -126,34 +158,7 @@ JNIEXPORT jboolean JNICALL Java_com_tagtraum_ffsampledsp_FFURLInputStream_isSeek
  * @param microseconds timestamp to seek to
  */
 JNIEXPORT void JNICALL Java_com_tagtraum_ffsampledsp_FFURLInputStream_seek(JNIEnv *env, jobject stream, jlong aio_pointer, jlong microseconds) {
-    FFAudioIO *aio = (FFAudioIO*)(intptr_t)aio_pointer;
-    int res = 0;
-    int64_t seek_target = microseconds;
-    int64_t current_timestamp = 0;
-
-    current_timestamp = aio->timestamp;
-    seek_target = av_rescale_q(seek_target, AV_TIME_BASE_Q, aio->stream->time_base);
-#ifdef DEBUG
-    fprintf(stderr, "Current Timestamp = %" PRId64 ", seek_target = %" PRId64 "\n", current_timestamp, seek_target);
-#endif
-    res = av_seek_frame(aio->format_context, aio->stream_index, seek_target, current_timestamp > seek_target ? AVSEEK_FLAG_BACKWARD : 0);
-    if (res < 0) {
-        throwIOExceptionIfError(env, res, "Failed to seek.");
-        goto bail;
-    }
-
-    // make sure everything is flushed.
-    av_init_packet(&(aio->decode_packet));
-    aio->decode_packet.data = NULL;
-    aio->decode_packet.size = 0;
-    // flush codec
-    avcodec_flush_buffers(aio->decode_context);
-    // set timestamp to seek_target, since that's hopefully now our current timestamp..
-    aio->timestamp = seek_target;
-
-    bail:
-
-    return;
+    ff_seek(env, (FFAudioIO*)(intptr_t)aio_pointer, (int64_t)microseconds);
 }
 
 /**
@@ -25,14 +25,11 @@
 
 const uint32_t CODEC_TAG_DRMS = 'smrd'; // 'drms'
 
-static jfieldID nativeBuffer_FID = NULL;
-static jmethodID rewind_MID = NULL;
-static jmethodID limit_MID = NULL;
-static jmethodID capacity_MID = NULL;
 static jmethodID setNativeBufferCapacity_MID = NULL;
 static jmethodID logFine_MID = NULL;
 static jmethodID logWarning_MID = NULL;
 static int MIN_PROBE_SCORE = 5; // this is fairly arbitrary, but we need to give other javax.sound.sampled impls a chance
+static int MEMORY_CALLBACK_BUFFERSIZE = 32*1024;
 
 /**
  * Init static method and field ids for Java methods/fields, if we don't have them already.
@@ -41,18 +38,12 @@ static int MIN_PROBE_SCORE = 5; // this is fairly arbitrary, but we need to give
  * @param stream FFNativePeerInputStream instance
  */
 static void init_ids(JNIEnv *env, jobject stream) {
-    if (!nativeBuffer_FID || !rewind_MID || !limit_MID) {
-        jclass bufferClass = NULL;
+    if (!setNativeBufferCapacity_MID || !logFine_MID || !logWarning_MID) {
         jclass streamClass = NULL;
 
-        bufferClass = (*env)->FindClass(env, "java/nio/Buffer");
         streamClass = (*env)->GetObjectClass(env, stream);
 
-        nativeBuffer_FID = (*env)->GetFieldID(env, streamClass, "nativeBuffer", "Ljava/nio/ByteBuffer;");
-        rewind_MID = (*env)->GetMethodID(env, bufferClass, "rewind", "()Ljava/nio/Buffer;");
-        limit_MID = (*env)->GetMethodID(env, bufferClass, "limit", "(I)Ljava/nio/Buffer;");
-        capacity_MID = (*env)->GetMethodID(env, bufferClass, "capacity", "()I");
-        setNativeBufferCapacity_MID = (*env)->GetMethodID(env, streamClass, "setNativeBufferCapacity", "(I)I");
+        setNativeBufferCapacity_MID = (*env)->GetMethodID(env, streamClass, "setNativeBufferCapacity", "(II)Ljava/nio/ByteBuffer;");
         logFine_MID = (*env)->GetMethodID(env, streamClass, "logFine", "(Ljava/lang/String;)V");
         logWarning_MID = (*env)->GetMethodID(env, streamClass, "logWarning", "(Ljava/lang/String;)V");
     }
@@ -63,16 +54,17 @@ static void init_ids(JNIEnv *env, jobject stream) {
  *
  * @param env JNIEnv
  * @param stream AVStream
+ * @param context decoder context to create
+ * @param thread_count number of decoder threads, <code>0</code> lets FFmpeg choose,
+ *        <code>1</code> disables threading. Only used, if the decoder supports frame or slice threading.
  */
-int ff_open_stream(JNIEnv *env, AVStream *stream, AVCodecContext **context) {
+int ff_open_stream(JNIEnv *env, AVStream *stream, AVCodecContext **context, int thread_count) {
 #ifdef DEBUG
     fprintf(stderr, "Opening stream...\n");
 #endif
 
     int res = 0;
     AVCodec *decoder = NULL;
-    AVDictionary *opts = NULL;
-    int refcount = 0; // is this correct?
 
     decoder = avcodec_find_decoder(stream->codecpar->codec_id);
     if (!decoder) {
@@ -96,9 +88,17 @@ int ff_open_stream(JNIEnv *env, AVStream *stream, AVCodecContext **context) {
         goto bail;
     }
 
-    /* Init the decoders, with or without reference counting */
-    av_dict_set(&opts, "refcounted_frames", refcount ? "1" : "0", 0);
-    if ((res = avcodec_open2(*context, decoder, &opts)) < 0) {
+    /* Use multiple threads, if desired and supported by the decoder */
+    if (thread_count != 1 && (decoder->capabilities & (AV_CODEC_CAP_FRAME_THREADS | AV_CODEC_CAP_SLICE_THREADS))) {
+        (*context)->thread_count = thread_count;
+        (*context)->thread_type = FF_THREAD_FRAME | FF_THREAD_SLICE;
+#ifdef DEBUG
+        fprintf(stderr, "Requested %i decoder threads.\n", thread_count);
+#endif
+    }
+
+    /* Init the decoder */
+    if ((res = avcodec_open2(*context, decoder, NULL)) < 0) {
         fprintf(stderr, "Failed to open %s codec\n", av_get_media_type_string(AVMEDIA_TYPE_AUDIO));
         throwUnsupportedAudioFileExceptionIfError(env, res, "Failed to open codec.");
         goto bail;
@@ -113,50 +113,6 @@ bail:
     return res;
 }
 
-/**
- * Find a decoder and open it for the given AVFormatContext and AVMediaType.
- *
- * @param[out]  stream_index  index of the stream the decoder was opened for
- * @param[in]   format_context     format context
- * @param       type        media type - for this library typically audio
- */
-static int open_codec_context(int *stream_index,
-        AVFormatContext *format_context,
-        AVCodecContext *context,
-        enum AVMediaType type) {
-
-    int res = 0;
-    AVStream *stream;
-    AVCodec *decoder = NULL;
-
-    res = av_find_best_stream(format_context, type, -1, -1, NULL, 0);
-    if (res < 0) {
-        goto bail;
-    }
-    *stream_index = res;
-    stream = format_context->streams[*stream_index];
-
-    // find decoder for the stream
-    decoder = avcodec_find_decoder(stream->codecpar->codec_id);
-    if (!decoder) {
-        goto bail;
-    }
-    context = avcodec_alloc_context3(decoder);
-    if (!context) {
-        goto bail;
-    }
-
-    res = avcodec_open2(context, decoder, NULL);
-    if (res < 0) {
-        goto bail;
-    }
-    return res;
-
-bail:
-    return res;
-}
-
-
 /**
  * Throws an UnsupportedAudioFileException.
  */
@@ -246,19 +202,72 @@ void logFine(FFAudioIO *aio, int err, const char *message) {
 }
 
 /**
- * Opens the input file/url and allocates a AVFormatContext for it, but does not open the audio stream with an
- * appropriate decoder.
+ * Initializes probe options from the arguments of a native Java method.
+ * Must be released with ff_release_probe_options.
+ *
+ * @param env JNIEnv
+ * @param options options to initialize
+ * @param format_name short name of the demuxer to use or NULL to probe
+ * @param probesize max number of bytes to probe or 0 for the default
+ * @param analyzeduration max duration to analyze in microseconds or 0 for the default
+ */
+void ff_init_probe_options(JNIEnv *env, FFProbeOptions *options, jstring format_name, jint probesize, jlong analyzeduration) {
+    options->format_name_string = format_name;
+    options->format_name = format_name ? (*env)->GetStringUTFChars(env, format_name, NULL) : NULL;
+    options->probesize = probesize;
+    options->analyzeduration = analyzeduration;
+}
+
+/**
+ * Releases probe options initialized with ff_init_probe_options.
+ *
+ * @param env JNIEnv
+ * @param options options
+ */
+void ff_release_probe_options(JNIEnv *env, FFProbeOptions *options) {
+    if (options->format_name) {
+        (*env)->ReleaseStringUTFChars(env, options->format_name_string, options->format_name);
+        options->format_name = NULL;
+    }
+}
+
+/**
+ * Opens the input file/url and allocates a AVFormatContext for it, but neither reads stream info
+ * nor opens the audio stream with an appropriate decoder. Codec parameters are only available
+ * as far as the demuxer could read them from the file's header.
+ * <p>
+ * If the options name a known demuxer, that demuxer is used without probing the input.
  *
  * @param env JNIEnv
  * @param format_context AVFormatContext
  * @param url URL to open
+ * @param probe_options probe options or NULL for FFmpeg's defaults
  * @return negative value, if something went wrong
+ * @see ff_find_stream_info
  */
-int ff_open_format_context(JNIEnv *env, AVFormatContext **format_context, const char *url) {
+int ff_open_input(JNIEnv *env, AVFormatContext **format_context, const char *url, const FFProbeOptions *probe_options) {
     int res = 0;
     int probe_score = 0;
+    AVInputFormat *input_format = NULL;
+    AVDictionary *options = NULL;
 
-    res = avformat_open_input(format_context, url, NULL, NULL);
+    if (probe_options) {
+        if (probe_options->format_name) {
+            input_format = av_find_input_format(probe_options->format_name);
+#ifdef DEBUG
+            if (!input_format) fprintf(stderr, "ff_open_input(): unknown format %s\n", probe_options->format_name);
+#endif
+        }
+        if (probe_options->probesize > 0) {
+            av_dict_set_int(&options, "probesize", probe_options->probesize, 0);
+        }
+        if (probe_options->analyzeduration > 0) {
+            av_dict_set_int(&options, "analyzeduration", probe_options->analyzeduration, 0);
+        }
+    }
+
+    res = avformat_open_input(format_context, url, input_format, &options);
+    av_dict_free(&options);
     if (res) {
         if (res == AVERROR(ENOENT) || res == AVERROR_HTTP_NOT_FOUND) {
             throwFileNotFoundExceptionIfError(env, res, url);
@@ -278,41 +287,79 @@ int ff_open_format_context(JNIEnv *env, AVFormatContext **format_context, const
     probe_score = (*format_context)->probe_score;
 
     #ifdef DEBUG
-        fprintf(stderr, "ff_open_format_context(): probe score=%i\n", probe_score);
+        fprintf(stderr, "ff_open_input(): probe score=%i\n", probe_score);
     #endif
 
-    if (probe_score < MIN_PROBE_SCORE) {
+    // a forced input format is not probed, hence has no score
+    if (!input_format && probe_score < MIN_PROBE_SCORE) {
         res = probe_score;
         throwUnsupportedAudioFileExceptionIfError(env, probe_score, "Probe score too low");
         goto bail;
     }
 
-    res = avformat_find_stream_info(*format_context, NULL);
+bail:
+
+    return res;
+}
+
+/**
+ * Reads packets (and possibly decodes frames) to complete the stream info of an
+ * opened AVFormatContext.
+ *
+ * @param env JNIEnv
+ * @param format_context AVFormatContext opened with ff_open_input
+ * @return negative value, if something went wrong
+ */
+int ff_find_stream_info(JNIEnv *env, AVFormatContext *format_context) {
+    int res = avformat_find_stream_info(format_context, NULL);
     if (res < 0) {
         throwUnsupportedAudioFileExceptionIfError(env, res, "Failed to find stream info");
+    }
+    return res;
+}
+
+/**
+ * Opens the input file/url and allocates a AVFormatContext for it, but does not open the audio stream with an
+ * appropriate decoder.
+ *
+ * @param env JNIEnv
+ * @param format_context AVFormatContext
+ * @param url URL to open
+ * @param probe_options probe options or NULL for FFmpeg's defaults
+ * @return negative value, if something went wrong
+ */
+int ff_open_format_context(JNIEnv *env, AVFormatContext **format_context, const char *url, const FFProbeOptions *probe_options) {
+    int res = 0;
+
+    res = ff_open_input(env, format_context, url, probe_options);
+    if (res) {
         goto bail;
     }
 
+    res = ff_find_stream_info(env, *format_context);
+
 bail:
 
     return res;
 }
 
 /**
- * Opens the input file/url, allocates a AVFormatContext for it and opens the audio stream with an
- * appropriate decoder.
+ * Opens the input file/url, allocates a AVFormatContext for it and selects the desired audio stream.
+ * Does not open a decoder (see ff_open_decoder), i.e. does all the IO needed to open
+ * a file, but none of the codec initialization that needs to be serialized.
  *
  * @param env JNIEnv
  * @param format_context AVFormatContext
- * @param openedStream opened audio AVStream
+ * @param openedStream selected audio AVStream
  * @param stream_index[in] index of the desired <em>audio</em> stream
  * @param stream_index[out] index of the selected stream (index of <em>all</em> streams)
  * @param url URL to open
+ * @param probe_options probe options or NULL for FFmpeg's defaults
  * @return negative value, if something went wrong
  */
-int ff_open_file(JNIEnv *env, AVFormatContext **format_context, AVStream **openedStream, AVCodecContext **context, int *stream_index, const char *url) {
+int ff_open_file(JNIEnv *env, AVFormatContext **format_context, AVStream **openedStream, int *stream_index, const char *url, const FFProbeOptions *probe_options) {
     int res = 0;
-    res = ff_open_format_context(env, format_context, url);
+    res = ff_open_format_context(env, format_context, url, probe_options);
     if (res) {
         // exception has already been thrown
         goto bail;
@@ -324,11 +371,13 @@ int ff_open_file(JNIEnv *env, AVFormatContext **format_context, AVStream **opene
 
     if (*stream_index < 0) {
         // use best audio stream
-        res = open_codec_context(stream_index, *format_context, *context, AVMEDIA_TYPE_AUDIO);
-        if (res) {
-            throwUnsupportedAudioFileExceptionIfError(env, res, "Failed to open codec context.");
+        res = av_find_best_stream(*format_context, AVMEDIA_TYPE_AUDIO, -1, -1, NULL, 0);
+        if (res < 0) {
+            throwUnsupportedAudioFileExceptionIfError(env, res, "Failed to find audio stream.");
             goto bail;
         }
+        *stream_index = res;
+        res = 0;
         *openedStream = (*format_context)->streams[*stream_index];
     } else {
         // find xth audio stream
@@ -362,10 +411,6 @@ int ff_open_file(JNIEnv *env, AVFormatContext **format_context, AVStream **opene
             }
             goto bail;
         }
-        res = ff_open_stream(env, stream, context);
-        if (res) {
-            goto bail;
-        }
         *openedStream = stream;
     }
 
@@ -386,8 +431,192 @@ bail:
     return res;
 }
 
+/**
+ * Callback read function used by the custom AVIOContext created in ff_open_memory_io.
+ * Copies data straight from the memory region, without any system calls or calls into Java.
+ *
+ * @param opaque    pointer to the FFMemorySource
+ * @param buf       buffer to write data to
+ * @param size      size of buf
+ * @return          number of bytes read or AVERROR_EOF
+ */
+static int memory_read_callback(void *opaque, uint8_t *buf, int size) {
+    FFMemorySource *source = (FFMemorySource*)opaque;
+    int64_t available_data = source->size - source->position;
+    int len;
+
+    if (available_data <= 0) {
+        return AVERROR_EOF;
+    }
+    len = (int)FFMIN(available_data, size);
+    if (source->data) {
+        memcpy(buf, source->data + source->position, len);
+    } else {
+        JNIEnv *env = *source->env;
+        // copies straight from the Java heap, without pinning the array
+        (*env)->GetByteArrayRegion(env, source->array, source->array_offset + (jint)source->position, len, (jbyte *)buf);
+        if ((*env)->ExceptionCheck(env)) {
+            return AVERROR(EIO);
+        }
+    }
+    source->position += len;
+    return len;
+}
+
+/**
+ * Callback seek function used by the custom AVIOContext created in ff_open_memory_io.
+ *
+ * @param opaque    pointer to the FFMemorySource
+ * @param offset    offset
+ * @param whence    SEEK_SET, SEEK_CUR, SEEK_END or AVSEEK_SIZE, possibly combined with AVSEEK_FORCE
+ * @return          new position, size (for AVSEEK_SIZE) or a negative number in case of an error
+ */
+static int64_t memory_seek_callback(void *opaque, int64_t offset, int whence) {
+    FFMemorySource *source = (FFMemorySource*)opaque;
+    int64_t position;
+
+    switch (whence & ~AVSEEK_FORCE) {
+        case AVSEEK_SIZE:
+            return source->size;
+        case SEEK_SET:
+            position = offset;
+            break;
+        case SEEK_CUR:
+            position = source->position + offset;
+            break;
+        case SEEK_END:
+            position = source->size + offset;
+            break;
+        default:
+            return AVERROR(EINVAL);
+    }
+    if (position < 0 || position > source->size) {
+        return AVERROR(EINVAL);
+    }
+    source->position = position;
+    return position;
+}
+
+/**
+ * Points the given FFMemorySource to a direct buffer or, if the buffer is NULL,
+ * to the given region of a byte array. The caller still has to set <code>env</code>.
+ * A direct buffer must not be garbage collected before the source is released.
+ *
+ * @param env JNIEnv
+ * @param source zeroed FFMemorySource
+ * @param byte_buffer direct buffer containing the complete file or NULL
+ * @param array byte array containing the complete file, only used if byte_buffer is NULL
+ * @param offset offset of the file in array
+ * @param length length of the file in array
+ * @return negative value, if something went wrong
+ */
+int ff_init_memory_source(JNIEnv *env, FFMemorySource *source, jobject byte_buffer, jbyteArray array, jint offset, jint length) {
+    int res = 0;
+
+    if (byte_buffer) {
+        source->data = (const uint8_t *)(*env)->GetDirectBufferAddress(env, byte_buffer);
+        source->size = (int64_t)(*env)->GetDirectBufferCapacity(env, byte_buffer);
+        if (!source->data || source->size < 0) {
+            res = AVERROR(EINVAL);
+            throwIOExceptionIfError(env, res, "Failed to get address for byte buffer.");
+            goto bail;
+        }
+    } else {
+        source->array = (jbyteArray)(*env)->NewGlobalRef(env, array);
+        if (!source->array) {
+            res = AVERROR(ENOMEM);
+            throwIOExceptionIfError(env, res, "Failed to reference byte array.");
+            goto bail;
+        }
+        source->array_offset = offset;
+        source->size = (int64_t)length;
+    }
+
+bail:
+
+    return res;
+}
+
+/**
+ * Releases the Java references held by the given FFMemorySource, but does not free it.
+ *
+ * @param env JNIEnv
+ * @param source FFMemorySource
+ */
+void ff_release_memory_source(JNIEnv *env, FFMemorySource *source) {
+    if (source->array) {
+        (*env)->DeleteGlobalRef(env, source->array);
+        source->array = NULL;
+    }
+}
+
+/**
+ * Attaches a custom, seekable AVIOContext reading from the given memory region to an
+ * allocated, but not yet opened AVFormatContext. Open the context with the URL "MemoryAVIOContext".
+ * The AVIOContext and its buffer must be freed along with the format context.
+ *
+ * @param env JNIEnv
+ * @param format_context AVFormatContext allocated with avformat_alloc_context
+ * @param source FFMemorySource, must outlive the format context
+ * @return negative value, if something went wrong
+ */
+int ff_open_memory_io(JNIEnv *env, AVFormatContext *format_context, FFMemorySource *source) {
+    int res = 0;
+    AVIOContext *io_context;
+    unsigned char* callback_buffer = NULL;
+
+    callback_buffer = (unsigned char*)av_malloc(MEMORY_CALLBACK_BUFFERSIZE * sizeof(uint8_t));
+    if (!callback_buffer) {
+        res = AVERROR(ENOMEM);
+        throwIOExceptionIfError(env, res, "Could not allocate callback buffer.");
+        goto bail;
+    }
+
+    io_context = avio_alloc_context(
+        callback_buffer,            // IOBuffer
+        MEMORY_CALLBACK_BUFFERSIZE, // Buffer Size
+        0,                          // Write flag, only reading, so 0
+        source,                     // FFMemorySource pointer (opaque)
+        memory_read_callback,       // Read callback
+        NULL,                       // Write callback
+        memory_seek_callback        // Seek callback
+    );
+    if (!io_context) {
+        av_free(callback_buffer);
+        res = AVERROR(ENOMEM);
+        throwIOExceptionIfError(env, res, "Could not allocate custom IO context.");
+        goto bail;
+    }
+    io_context->seekable = AVIO_SEEKABLE_NORMAL;
+
+    format_context->pb = io_context;
+
+bail:
+
+    return res;
+}
+
+/**
+ * Indicates whether the stream's decoder delivers samples that already match the cached
+ * output parameters in FFAudioIO, i.e. whether we can skip the SwrContext altogether and write
+ * decoded frames straight to the Java buffer.
+ * This is only possible for packed (interleaved) sample formats.
+ *
+ * @param aio FFAudioIO with set output parameters
+ * @return true or false
+ */
+int ff_can_passthrough(FFAudioIO *aio) {
+    AVCodecParameters *codecpar = aio->stream->codecpar;
+    return !av_sample_fmt_is_planar(codecpar->format)
+        && codecpar->format == aio->out_sample_fmt
+        && codecpar->channels == aio->out_channel_count
+        && codecpar->channel_layout == aio->out_channel_layout
+        && codecpar->sample_rate == aio->out_sample_rate;
+}
+
 /**
  * Allocates and initializes the SwrContext so that we don't have to deal with planar sample formats.
+ * If the decoder already delivers packed samples, no SwrContext is needed and we use passthrough mode.
  *
  * @param env JNIEnv
  * @param aio FFAudioIO
@@ -396,6 +625,20 @@ bail:
 static int init_swr(JNIEnv *env, FFAudioIO *aio) {
     int res = 0;
 
+    // remember output parameters, so we don't have to look them up for every packet
+    aio->out_sample_fmt = av_get_packed_sample_fmt(aio->stream->codecpar->format);
+    aio->out_channel_count = aio->stream->codecpar->channels;
+    aio->out_channel_layout = aio->stream->codecpar->channel_layout;
+    aio->out_sample_rate = aio->stream->codecpar->sample_rate;
+
+    aio->passthrough = ff_can_passthrough(aio);
+    if (aio->passthrough) {
+#ifdef DEBUG
+        fprintf(stderr, "init_swr: using passthrough mode\n");
+#endif
+        goto bail;
+    }
+
     aio->swr_context = swr_alloc();
     if (!aio->swr_context) {
         res = AVERROR(ENOMEM);
@@ -405,15 +648,15 @@ static int init_swr(JNIEnv *env, FFAudioIO *aio) {
 
     av_opt_set_sample_fmt(aio->swr_context, "in_sample_fmt",  aio->stream->codecpar->format, 0);
     // make sure we get interleaved/packed output
-    av_opt_set_sample_fmt(aio->swr_context, "out_sample_fmt", av_get_packed_sample_fmt(aio->stream->codecpar->format), 0);
+    av_opt_set_sample_fmt(aio->swr_context, "out_sample_fmt", aio->out_sample_fmt, 0);
 
     // keep everything else the way it was...
     av_opt_set_int(aio->swr_context, "in_channel_count",  aio->stream->codecpar->channels, 0);
-    av_opt_set_int(aio->swr_context, "out_channel_count",  aio->stream->codecpar->channels, 0);
+    av_opt_set_int(aio->swr_context, "out_channel_count",  aio->out_channel_count, 0);
     av_opt_set_int(aio->swr_context, "in_channel_layout",  aio->stream->codecpar->channel_layout, 0);
-    av_opt_set_int(aio->swr_context, "out_channel_layout", aio->stream->codecpar->channel_layout, 0);
+    av_opt_set_int(aio->swr_context, "out_channel_layout", aio->out_channel_layout, 0);
     av_opt_set_int(aio->swr_context, "in_sample_rate",     aio->stream->codecpar->sample_rate, 0);
-    av_opt_set_int(aio->swr_context, "out_sample_rate",    aio->stream->codecpar->sample_rate, 0);
+    av_opt_set_int(aio->swr_context, "out_sample_rate",    aio->out_sample_rate, 0);
 
     res = swr_init(aio->swr_context);
     if (res < 0) {
@@ -430,6 +673,45 @@ static int init_swr(JNIEnv *env, FFAudioIO *aio) {
     return res;
 }
 
+/**
+ * Leaves passthrough mode, because the decoder delivered a frame that does not match
+ * the output parameters, after all. Sets up a SwrContext converting from the frame's
+ * parameters to the cached output parameters.
+ *
+ * @param aio FFAudioIO
+ * @return a negative value should an error occur
+ */
+static int init_fallback_swr(FFAudioIO *aio) {
+    int res = 0;
+    AVFrame *frame = aio->decode_frame;
+
+    logFine(aio, 0, "Decoded frame does not match output format. Leaving passthrough mode.");
+
+    aio->swr_context = swr_alloc_set_opts(NULL,
+            aio->out_channel_layout ? aio->out_channel_layout : av_get_default_channel_layout(aio->out_channel_count),
+            aio->out_sample_fmt,
+            aio->out_sample_rate,
+            frame->channel_layout ? frame->channel_layout : av_get_default_channel_layout(frame->channels),
+            (enum AVSampleFormat)frame->format,
+            frame->sample_rate,
+            0, NULL);
+    if (!aio->swr_context) {
+        res = AVERROR(ENOMEM);
+        throwIOExceptionIfError(aio->env, res, "Could not allocate swr context.");
+        goto bail;
+    }
+    res = swr_init(aio->swr_context);
+    if (res < 0) {
+        throwIOExceptionIfError(aio->env, res, "Could not initialize swr context");
+        goto bail;
+    }
+    aio->passthrough = 0;
+
+    bail:
+
+    return res;
+}
+
 /**
  * Finds an AVCodec encoder for the given sample format, bits per sample, byte order and signed/unsigned encoding.
  * This method never returns a planar, but always a packed codec.
@@ -485,7 +767,7 @@ AVCodec* ff_find_encoder(enum AVSampleFormat sampleFormat, int bits, int big_end
 
 /**
  * Allocates and initializes the encoder context and frame in FFAudioIO.
- * As parameters serve the output parameters of the SwrContext from FFAudioIO.
+ * As parameters serve the cached output parameters of the SwrContext from FFAudioIO.
  * Therefore the SwrContext must be setup first for this to be successful.
  *
  * @param env JNIEnv
@@ -495,10 +777,6 @@ AVCodec* ff_find_encoder(enum AVSampleFormat sampleFormat, int bits, int big_end
  */
 int ff_init_encoder(JNIEnv *env, FFAudioIO *aio, AVCodec *encoder) {
     int res = 0;
-    int64_t out_sample_rate;
-    int64_t out_channel_count;
-    int64_t out_channel_layout;
-    enum AVSampleFormat out_sample_fmt;
 
     // make sure we clean up before resetting this
     // in case this is called twice
@@ -518,15 +796,10 @@ int ff_init_encoder(JNIEnv *env, FFAudioIO *aio, AVCodec *encoder) {
     }
 
     // init to whatever we have in SwrContext
-    av_opt_get_int(aio->swr_context, "out_channel_count", 0, &out_channel_count);
-    av_opt_get_int(aio->swr_context, "out_channel_layout", 0, &out_channel_layout);
-    av_opt_get_int(aio->swr_context, "out_sample_rate", 0, &out_sample_rate);
-    av_opt_get_sample_fmt(aio->swr_context, "out_sample_fmt", 0, &out_sample_fmt);
-
-    aio->encode_context->sample_fmt = out_sample_fmt;
-    aio->encode_context->sample_rate = out_sample_rate;
-    aio->encode_context->channel_layout = out_channel_layout;
-    aio->encode_context->channels = out_channel_count;
+    aio->encode_context->sample_fmt = aio->out_sample_fmt;
+    aio->encode_context->sample_rate = aio->out_sample_rate;
+    aio->encode_context->channel_layout = aio->out_channel_layout;
+    aio->encode_context->channels = aio->out_channel_count;
 
     res = avcodec_open2(aio->encode_context, encoder, NULL);
     if (res < 0) {
@@ -551,28 +824,22 @@ int ff_init_encoder(JNIEnv *env, FFAudioIO *aio, AVCodec *encoder) {
 }
 
 /**
- * Initialize our main context FFAudioIO, so that SwrContext, decode buffers and the encoder are set
- * to reasonable values.
+ * Opens the decoder for the stream selected by ff_open_file and, if the decoder delivers 24bit,
+ * an encoder that converts its output to little endian.
+ * As this ends up in avcodec_open2, the Java side calls it while holding the global lock.
+ * It does not do any IO.
  *
- * @param JNIEnv    env
- * @param aio       our context, FFAudioIO
+ * @param env           JNIEnv
+ * @param aio           FFAudioIO initialized with ff_init_audioio
+ * @param thread_count  number of decoder threads, see ff_open_stream
  * @return a negative value, if something went wrong
  */
-int ff_init_audioio(JNIEnv *env, FFAudioIO *aio) {
+int ff_open_decoder(JNIEnv *env, FFAudioIO *aio, int thread_count) {
     int res = 0;
-    int nb_planes;
     AVCodec *codec = NULL;
 
-    aio->timestamp = 0;
-
-    // allocate pointer to the audio buffers, i.e. the multiple planes/channels.
-    nb_planes = av_sample_fmt_is_planar(aio->stream->codecpar->format)
-        ? aio->stream->codecpar->channels
-        : 1;
-
-    // always init SWR to keep code simpler
-    res = init_swr(env, aio);
-    if (res < 0) {
+    res = ff_open_stream(env, aio->stream, &aio->decode_context, thread_count);
+    if (res) {
         // exception is already thrown
         goto bail;
     }
@@ -591,14 +858,33 @@ int ff_init_audioio(JNIEnv *env, FFAudioIO *aio) {
         }
     }
 
-    // allocate the buffer the codec decodes to
-    aio->audio_data = av_mallocz(sizeof(uint8_t *) * nb_planes);
-    if (!aio->audio_data) {
-        res = AVERROR(ENOMEM);
-        throwIOExceptionIfError(env, res, "Could not allocate audio data buffers.");
+bail:
+
+    return res;
+}
+
+/**
+ * Initialize our main context FFAudioIO, so that SwrContext and decode buffers are set
+ * to reasonable values. Needs neither an open decoder nor encoder (see ff_open_decoder).
+ *
+ * @param JNIEnv    env
+ * @param aio       our context, FFAudioIO
+ * @return a negative value, if something went wrong
+ */
+int ff_init_audioio(JNIEnv *env, FFAudioIO *aio) {
+    int res = 0;
+
+    aio->timestamp = 0;
+
+    // look up Java callbacks once, instead of for every packet
+    init_ids(env, aio->java_instance);
+
+    // init SWR, unless the decoder already delivers packed samples
+    res = init_swr(env, aio);
+    if (res < 0) {
+        // exception is already thrown
         goto bail;
     }
-
     aio->decode_frame = av_frame_alloc();
     if (!aio->decode_frame) {
         res = AVERROR(ENOMEM);
@@ -617,6 +903,66 @@ bail:
 }
 
 
+/**
+ * Caches address and capacity of the given direct buffer, so that decoded
+ * audio can be written to it without any further JNI calls.
+ *
+ * @param env           JNIEnv
+ * @param aio           FFAudioIO context
+ * @param byte_buffer   direct Java buffer
+ * @return a negative value, if something went wrong
+ */
+int ff_set_java_buffer(JNIEnv *env, FFAudioIO *aio, jobject byte_buffer) {
+    int res = 0;
+    jlong capacity = 0;
+
+    if (!byte_buffer) {
+        res = AVERROR(EINVAL);
+        throwIOExceptionIfError(env, res, "Native buffer must not be null.");
+        goto bail;
+    }
+    capacity = (*env)->GetDirectBufferCapacity(env, byte_buffer);
+    aio->java_buffer = (uint8_t *)(*env)->GetDirectBufferAddress(env, byte_buffer);
+    if (capacity < 0 || (!aio->java_buffer && capacity > 0)) {
+        res = AVERROR(EINVAL);
+        throwIOExceptionIfError(env, res, "Failed to get address for native buffer.");
+        aio->java_buffer = NULL;
+        aio->java_buffer_capacity = 0;
+        goto bail;
+    }
+    aio->java_buffer_capacity = (jint)capacity;
+
+bail:
+
+    return res;
+}
+
+/**
+ * Asks the Java side for a larger buffer, which already contains all bytes we wrote
+ * to the current buffer during this fill, and caches the new buffer's address and capacity.
+ *
+ * @param aio               FFAudioIO context
+ * @param minimum_capacity  minimum capacity
+ * @return a negative value, if something went wrong
+ */
+static int grow_java_buffer(FFAudioIO *aio, uint32_t minimum_capacity) {
+    int res = 0;
+    jobject byte_buffer = NULL;
+
+    byte_buffer = (*aio->env)->CallObjectMethod(aio->env, aio->java_instance, setNativeBufferCapacity_MID,
+                                                (jint)minimum_capacity, aio->java_buffer_length);
+    if ((*aio->env)->ExceptionCheck(aio->env)) {
+        res = -1;
+        goto bail;
+    }
+    res = ff_set_java_buffer(aio->env, aio, byte_buffer);
+    (*aio->env)->DeleteLocalRef(aio->env, byte_buffer);
+
+bail:
+
+    return res;
+}
+
 /**
  * Encodes a buffer to the final format using its FFAudioIO encode_context.
  *
@@ -670,40 +1016,40 @@ static int encode_buffer(FFAudioIO *aio, const uint8_t *in_buf, int in_size, con
 
 /**
  * Resample a buffer using FFAudioUI->swr_context.
- * The returned out buffer needs to be freed by the caller.
+ * The result is written to the scratch buffer <code>aio->resample_buf</code>,
+ * which is re-used for all packets and only grows, if necessary.
  *
  * @param aio           FFAudioIO context
- * @param out_buf       out buffer
  * @param out_samples   out samples
  * @param in_buf        in buffer
  * @param in_samples    in samples
  * @return number of samples copied/converted or a negative value, should things go wrong
  */
-static int resample(FFAudioIO *aio,  uint8_t **out_buf, int out_samples, const uint8_t **in_buf, const int in_samples) {
+static int resample(FFAudioIO *aio, int out_samples, const uint8_t **in_buf, const int in_samples) {
     int res = 0;
-    int64_t out_channel_count;
-    enum AVSampleFormat out_sample_format;
 
     if (out_samples == 0) goto bail; // nothing to do.
 
-    av_opt_get_int(aio->swr_context, "out_channel_count", 0, &out_channel_count);
-    av_opt_get_sample_fmt(aio->swr_context, "out_sample_fmt", 0, &out_sample_format);
-
     #ifdef DEBUG
         fprintf(stderr, "resample: out_samples=%d in_samples=%d, channels=%d sample_format=%d\n",
-            out_samples, in_samples, (int)out_channel_count, out_sample_format);
+            out_samples, in_samples, aio->out_channel_count, aio->out_sample_fmt);
     #endif
 
-    // allocate temp buffer for resampled data
-    res = av_samples_alloc(out_buf, NULL, out_channel_count, out_samples, out_sample_format, 1);
+    // make sure the scratch buffer for resampled data is large enough
+    res = av_samples_get_buffer_size(NULL, aio->out_channel_count, out_samples, aio->out_sample_fmt, 1);
     if (res < 0) {
+        throwIOExceptionIfError(aio->env, res, "Could not determine resample buffer size.");
+        goto bail;
+    }
+    av_fast_malloc(&aio->resample_buf, &aio->resample_buf_size, res);
+    if (!aio->resample_buf) {
         res = AVERROR(ENOMEM);
         throwIOExceptionIfError(aio->env, res, "Could not allocate resample buffer.");
         goto bail;
     }
 
     // run the SWR conversion (even if it is not strictly necessary)
-    res = swr_convert(aio->swr_context, out_buf, out_samples, in_buf, in_samples);
+    res = swr_convert(aio->swr_context, &aio->resample_buf, out_samples, in_buf, in_samples);
     if (res < 0) {
         throwIOExceptionIfError(aio->env, res, "Failed to convert audio data.");
         goto bail;
@@ -714,64 +1060,40 @@ static int resample(FFAudioIO *aio,  uint8_t **out_buf, int out_samples, const u
     return res;
 }
 
-static int copy_to_java_buffer(FFAudioIO *aio, uint32_t offset, int samples, uint8_t **resample_buf) {
+static int copy_to_java_buffer(FFAudioIO *aio, int samples, const uint8_t *buf) {
     int res = 0;
     uint32_t buffer_size = 0;
-    jobject byte_buffer = NULL;
     uint8_t *java_buffer = NULL;
-    int64_t channel_count;
-    enum AVSampleFormat format;
-
-    av_opt_get_sample_fmt(aio->swr_context, "out_sample_fmt", 0, &format);
-    av_opt_get_int(aio->swr_context, "out_channel_count", 0, &channel_count);
 
-    res = av_samples_get_buffer_size(NULL, (int)channel_count, samples, format, 1);
+    res = av_samples_get_buffer_size(NULL, aio->out_channel_count, samples, aio->out_sample_fmt, 1);
     if (res < 0) goto bail;
     else buffer_size = res;
 
-    // ensure native buffer capacity
-    if (aio->java_buffer_capacity < buffer_size + offset) {
-        jint new_capacity = (*aio->env)->CallIntMethod(aio->env, aio->java_instance, setNativeBufferCapacity_MID, (jint)(buffer_size + offset));
-        if ((*aio->env)->ExceptionCheck(aio->env)) {
-            logWarning(aio, -1, "Failed to resize native Java buffer.");
-            (*aio->env)->CallObjectMethod(aio->env, byte_buffer, rewind_MID);
-            res = -1;
-            goto bail;
-        }
-        aio->java_buffer_capacity = new_capacity;
-    }
-    // get java-managed byte buffer reference
-    byte_buffer = (*aio->env)->GetObjectField(aio->env, aio->java_instance, nativeBuffer_FID);
-    if (!byte_buffer) {
-        res = -1;
-        throwIOExceptionIfError(aio->env, 1, "Failed to get native buffer.");
-        goto bail;
+    // ensure native buffer capacity, using the cached capacity.
+    // only if it is too small, we have to ask the Java side for a larger buffer.
+    // note that encoding never produces more bytes than it consumes.
+    if (aio->java_buffer_capacity < aio->java_buffer_length + buffer_size) {
+        res = grow_java_buffer(aio, aio->java_buffer_length + buffer_size);
+        if (res < 0) goto bail;
     }
 
-    // we have some samples, let's copy them to the java buffer, using the desired encoding at the desired offset
-    java_buffer = (uint8_t *)(*aio->env)->GetDirectBufferAddress(aio->env, byte_buffer) + offset;
-    if (!java_buffer) {
-        throwIOExceptionIfError(aio->env, 1, "Failed to get address for native buffer.");
-        goto bail;
-    }
+    // we have some samples, let's copy them to the java buffer, using the desired encoding,
+    // right after what we have already written during this fill
+    java_buffer = aio->java_buffer + aio->java_buffer_length;
     if (aio->encode_context) {
         aio->encode_frame->nb_samples = samples;
-        res = encode_buffer(aio, resample_buf[0], buffer_size, java_buffer);
+        res = encode_buffer(aio, buf, buffer_size, java_buffer);
         if (res < 0) {
             buffer_size = 0;
             goto bail;
         }
         buffer_size = res;
     } else {
-        memcpy(java_buffer, resample_buf[0], buffer_size);
+        memcpy(java_buffer, buf, buffer_size);
     }
-    // we already wrote to the buffer, now we still need to
-    // set new bytebuffer limit and position to 0.
-    if (offset == 0) {
-        // only rewind, if this is the first call for this packet
-        (*aio->env)->CallObjectMethod(aio->env, byte_buffer, rewind_MID);
-    }
-    (*aio->env)->CallObjectMethod(aio->env, byte_buffer, limit_MID, offset + buffer_size);
+    // Java sets position and limit, once we return from the fill call
+    aio->java_buffer_length += buffer_size;
+    res = buffer_size;
 
     aio->resampled_samples += buffer_size;
 
@@ -781,158 +1103,178 @@ static int copy_to_java_buffer(FFAudioIO *aio, uint32_t offset, int samples, uin
 }
 
 /**
- * Decode a frame to a packet, run the result through SwrContext, if desired, encode it via an appropriate
- * encoder, and write the results to the Java-side native buffer.
+ * Runs a decoded frame through SwrContext (unless we are in passthrough mode), encodes it via an appropriate
+ * encoder, if desired, and writes the results to the Java-side native buffer.
  *
  * @param aio       FFAudio context
- * @param cached    true or false
  * @return number of bytes placed into java buffer or a negative value, if something went wrong
  */
-static int decode_packet(FFAudioIO *aio, int cached) {
+static int write_frame(FFAudioIO *aio) {
     int res = 0;
-    uint8_t **resample_buf = NULL;
-    uint32_t java_buffer_offset = 0;
-    uint32_t out_buf_size = 0;
-    int out_buf_samples = 0;
-    int64_t out_sample_rate;
-    int flush = aio->got_frame
-        && aio->decode_packet.size == 0
-        && swr_get_delay(aio->swr_context, aio->stream->codecpar->sample_rate);
-    int bytesConsumed = 0;
-
-    init_ids(aio->env, aio->java_instance);
+    int out_buf_samples = aio->decode_frame->nb_samples;
+    const uint8_t *out_buf = NULL;
 
-    av_opt_get_int(aio->swr_context, "out_sample_rate", 0, &out_sample_rate);
-
-    resample_buf = av_mallocz(sizeof(uint8_t *) * 1); // one plane!
+    if (aio->stream->codecpar->channels != aio->decode_frame->channels) {
+        logWarning(aio, 0, "Skipping frame. Expected channels and decoded channels do not match.");
+        goto bail;
+    }
 
-    // decode packet, as long as there is still something in there
-    while ((aio->decode_packet.size > 0 && aio->decode_packet.stream_index == aio->stream_index) || flush) {
-        if (flush) {
+    aio->decoded_samples += aio->decode_frame->nb_samples;
 #ifdef DEBUG
-            fprintf(stderr, "Flushing.\n");
+    fprintf(stderr, "samples n:%" PRIu64 " nb_samples:%d pts:%s\n",
+           aio->decoded_samples, aio->decode_frame->nb_samples,
+           av_ts2timestr(aio->decode_frame->pts, &aio->decode_context->time_base));
 #endif
-            res = resample(aio, resample_buf, swr_get_delay(aio->swr_context, aio->stream->codecpar->sample_rate), NULL, 0);
-            if (res < 0) goto bail;
-            else out_buf_samples = res;
-            flush = 0; // break while loop
-        } else {
 
-#ifdef DEBUG
-            fprintf(stderr, "aio->decode_packet.size: %i\n", aio->decode_packet.size);
-#endif
-            // decode frame
-            // got_frame indicates whether we got a frame
-            bytesConsumed = avcodec_decode_audio4(aio->decode_context, aio->decode_frame, &aio->got_frame, &aio->decode_packet);
-            if (bytesConsumed == AVERROR(EINVAL)) {
-                throwUnsupportedAudioFileExceptionIfError(aio->env, bytesConsumed, "Invalid argument for decoder (avcodec_decode_audio4).");
-                res = 0;
-                goto bail;
-            }
-            else if (bytesConsumed < 0) {
-                logWarning(aio, bytesConsumed, "Skipping packet. avcodec_decode_audio4 failed:");
-                aio->decode_packet.size = 0;
-                aio->decode_packet.data = NULL;
-                // pretend we didn't read anything, so we can try our luck with the next packet
-                res = 0;
-                goto bail;
-            }
-#ifdef DEBUG
-            fprintf(stderr, "bytesConsumed: %i\n", bytesConsumed);
-#endif
-            // adjust packet size and offset for next avcodec_decode_audio4 call
-            aio->decode_packet.size -= bytesConsumed;
-            aio->decode_packet.data += bytesConsumed;
-
-            if (aio->got_frame) {
-                if (aio->stream->codecpar->channels != aio->decode_frame->channels) {
-                    logWarning(aio, bytesConsumed, "Skipping packet. Expected channels and decoded channels do not match:");
-                    aio->decode_packet.size = 0;
-                    aio->decode_packet.data = NULL;
-                    // pretend we didn't read anything, so we can try our luck with the next packet
-                    res = 0;
-                    goto bail;
-                }
+    if (aio->passthrough
+            && (aio->decode_frame->format != aio->out_sample_fmt
+                || aio->decode_frame->sample_rate != aio->out_sample_rate)) {
+        res = init_fallback_swr(aio);
+        if (res < 0) goto bail;
+    }
+
+    if (aio->passthrough) {
+        // the frame already is in the desired packed format, no need to convert
+        out_buf = aio->decode_frame->extended_data[0];
+    } else {
+        // adjust out sample number for a different sample rate
+        // this is an estimate!!
+        out_buf_samples = av_rescale_rnd(
+                swr_get_delay(aio->swr_context, aio->stream->codecpar->sample_rate) + aio->decode_frame->nb_samples,
+                aio->out_sample_rate,
+                aio->stream->codecpar->sample_rate,
+                AV_ROUND_UP
+        );
+
+        // convert straight from the decoder's planes (extended_data also covers more than 8 channels).
+        // the frame stays valid until the next receive call, and swr_convert does not keep references to it.
+        res = resample(aio, out_buf_samples, (const uint8_t **)aio->decode_frame->extended_data, aio->decode_frame->nb_samples);
+        if (res < 0) goto bail;
+        else out_buf_samples = res;
+        out_buf = aio->resample_buf;
+    }
+
+    if (out_buf_samples > 0) {
+        // copy what we have decoded to the java buffer
+        res = copy_to_java_buffer(aio, out_buf_samples, out_buf);
+    }
+
+bail:
+
+    return res;
+}
+
+/**
+ * Receives all frames the decoder has ready for us and writes them to the Java-side native buffer.
+ *
+ * @param aio       FFAudio context
+ * @return a negative value, if something went wrong
+ */
+static int receive_frames(FFAudioIO *aio) {
+    int res = 0;
+
+    while (res >= 0) {
+        res = avcodec_receive_frame(aio->decode_context, aio->decode_frame);
+        if (res == AVERROR(EAGAIN) || res == AVERROR_EOF) {
+            // decoder needs more input or is completely drained
+            res = 0;
+            break;
+        } else if (res < 0) {
+            logWarning(aio, res, "Skipping frame. avcodec_receive_frame failed:");
+            // try our luck with the next packet
+            res = 0;
+            break;
+        }
+        res = write_frame(aio);
+    }
+
+    return res;
+}
+
+/**
+ * Sends a packet to the decoder, and writes all frames we receive to the Java-side native buffer.
+ * At the end of the stream, the decoder is drained and remaining samples are flushed from the SwrContext.
+ *
+ * @param aio       FFAudio context
+ * @param cached    true, if we reached the end of the stream and only want decoder-cached frames
+ * @return number of bytes placed into java buffer or a negative value, if something went wrong
+ */
+static int decode_packet(FFAudioIO *aio, int cached) {
+    int res = 0;
+    AVPacket *packet = cached ? NULL : &aio->decode_packet;
+
+    if (!cached && aio->decode_packet.stream_index != aio->stream_index) goto bail;
+    if (cached && aio->draining) goto flush_swr;
 
-                aio->decoded_samples += aio->decode_frame->nb_samples;
-                out_buf_samples = aio->decode_frame->nb_samples;
 #ifdef DEBUG
-                fprintf(stderr, "samples%s n:%" PRIu64 " nb_samples:%d pts:%s\n",
-                       cached ? "(cached)" : "",
-                       aio->decoded_samples, aio->decode_frame->nb_samples,
-                       av_ts2timestr(aio->decode_frame->pts, &aio->decode_context->time_base));
+    fprintf(stderr, "%s\n", cached ? "Draining decoder." : "Sending packet.");
 #endif
+    res = avcodec_send_packet(aio->decode_context, packet);
+    if (res == AVERROR(EAGAIN)) {
+        // the decoder wants us to pick up frames first (may happen with frame threading)
+        res = receive_frames(aio);
+        if (res < 0) goto bail;
+        res = avcodec_send_packet(aio->decode_context, packet);
+    }
+    if (cached) aio->draining = 1;
+    if (res == AVERROR(EINVAL)) {
+        throwUnsupportedAudioFileExceptionIfError(aio->env, res, "Invalid argument for decoder (avcodec_send_packet).");
+        goto bail;
+    } else if (res < 0 && res != AVERROR_EOF) {
+        logWarning(aio, res, "Skipping packet. avcodec_send_packet failed:");
+        // pretend we didn't read anything, so we can try our luck with the next packet
+        res = 0;
+        goto bail;
+    }
 
-                // adjust out sample number for a different sample rate
-                // this is an estimate!!
-                out_buf_samples = av_rescale_rnd(
-                        swr_get_delay(aio->swr_context, aio->stream->codecpar->sample_rate) + aio->decode_frame->nb_samples,
-                        out_sample_rate,
-                        aio->stream->codecpar->sample_rate,
-                        AV_ROUND_UP
-                );
-
-                // allocate new aio->audio_data buffers
-                res = av_samples_alloc(aio->audio_data, NULL, aio->decode_frame->channels,
-                                       aio->decode_frame->nb_samples, aio->decode_frame->format, 1);
-                if (res < 0) {
-                    throwIOExceptionIfError(aio->env, res, "Could not allocate audio buffer.");
-                    return AVERROR(ENOMEM);
-                }
-                // copy audio data to aio->audio_data
-                av_samples_copy(aio->audio_data, aio->decode_frame->data, 0, 0,
-                                aio->decode_frame->nb_samples, aio->decode_frame->channels, aio->decode_frame->format);
+    res = receive_frames(aio);
+    if (res < 0 || !cached) goto bail;
 
-                res = resample(aio, resample_buf, out_buf_samples, (const uint8_t **)aio->audio_data, aio->decode_frame->nb_samples);
-                if (res < 0) goto bail;
-                else out_buf_samples = res;
+flush_swr:
 
-            } else {
+    // at the very end, get whatever is still buffered in the SwrContext
+    if (aio->swr_context && swr_get_delay(aio->swr_context, aio->stream->codecpar->sample_rate) > 0) {
 #ifdef DEBUG
-                fprintf(stderr, "Got no frame.\n");
+        fprintf(stderr, "Flushing.\n");
 #endif
-            }
-        }
-
-        if (out_buf_samples > 0 && resample_buf[0]) {
-            // copy what we have decoded to the java buffer
-            java_buffer_offset += out_buf_size;
-            res = copy_to_java_buffer(aio, java_buffer_offset, out_buf_samples, resample_buf);
-            if (res < 0) goto bail;
-            out_buf_size = res;
+        res = resample(aio, swr_get_delay(aio->swr_context, aio->stream->codecpar->sample_rate), NULL, 0);
+        if (res > 0) {
+            res = copy_to_java_buffer(aio, res, aio->resample_buf);
         }
-        if (resample_buf[0]) av_freep(&resample_buf[0]);
-        if (aio->audio_data[0]) av_freep(&aio->audio_data[0]);
     }
 
-
 bail:
 
-    if (resample_buf) {
-        if (resample_buf[0]) av_freep(&resample_buf[0]);
-        av_free(resample_buf);
-    }
-    if (aio->audio_data[0]) av_freep(&aio->audio_data[0]);
-
     return res;
 }
 
 
 /**
- * Reads a frame via <code>av_read_frame(AVFormatContext, AVPacket)</code>,
- * decodes it to a AVPacket, and writes the result to the
- * Java-side <code>nativeBuffer</code>.
+ * Reads frames via <code>av_read_frame(AVFormatContext, AVPacket)</code>,
+ * decodes them, and writes the result to the
+ * Java-side <code>nativeBuffer</code>, starting at index <code>0</code>.
+ * Reading continues until at least <code>target</code> bytes were written, the buffer is full,
+ * or the end of the stream is reached. In any case, at least one packet that produces audio is decoded,
+ * if available. Because we only stop between packets, the last packet may exceed the target and even
+ * cause the buffer to grow.
+ * The buffer's address and capacity must have been set via <code>ff_set_java_buffer</code> before.
+ * Position and limit of the Java-side buffer are not touched, that's up to the caller.
  *
- * @param aio   current FFAudioIO
- * @return  a negative number, if something went wrong
+ * @param aio       current FFAudioIO
+ * @param target    desired number of bytes
+ * @return  number of bytes written to the Java-side buffer (<code>0</code> at the end of the stream),
+ *          or a negative number, if something went wrong
  */
-int ff_fill_buffer(FFAudioIO *aio) {
+int ff_fill_buffer(FFAudioIO *aio, int target) {
     int res = 0;
     int read_frame = 0;
 
     aio->timestamp += aio->decode_packet.duration;
+    aio->java_buffer_length = 0;
 
-    while (res == 0 && read_frame >= 0) {
+    while (res >= 0 && read_frame >= 0
+            && (aio->java_buffer_length == 0
+                || (aio->java_buffer_length < target && aio->java_buffer_length < aio->java_buffer_capacity))) {
         read_frame = av_read_frame(aio->format_context, &aio->decode_packet);
         if (read_frame >= 0) {
             res = decode_packet(aio, 0);
@@ -947,7 +1289,7 @@ int ff_fill_buffer(FFAudioIO *aio) {
             av_packet_unref(&(aio->decode_packet));
         } else {
     #ifdef DEBUG
-            fprintf(stderr, "Reading cached frames: %i\n", aio->got_frame);
+            fprintf(stderr, "Reading cached frames, draining: %i\n", aio->draining);
     #endif
             // flush cached frames
             av_packet_unref(&(aio->decode_packet));
@@ -955,10 +1297,50 @@ int ff_fill_buffer(FFAudioIO *aio) {
         }
     }
 
-    return res;
+    return res < 0 ? res : aio->java_buffer_length;
 }
 
 
+/**
+ * Seeks to a point in time and resets the decoder, so that the next decoded
+ * samples are from (about) that point.
+ *
+ * @param env JNIEnv
+ * @param aio FFAudioIO context
+ * @param microseconds timestamp to seek to
+ * @return negative value, if something went wrong
+ */
+int ff_seek(JNIEnv *env, FFAudioIO *aio, int64_t microseconds) {
+    int res = 0;
+    int64_t seek_target = microseconds;
+    int64_t current_timestamp = 0;
+
+    current_timestamp = aio->timestamp;
+    seek_target = av_rescale_q(seek_target, AV_TIME_BASE_Q, aio->stream->time_base);
+#ifdef DEBUG
+    fprintf(stderr, "Current Timestamp = %" PRId64 ", seek_target = %" PRId64 "\n", current_timestamp, seek_target);
+#endif
+    res = av_seek_frame(aio->format_context, aio->stream_index, seek_target, current_timestamp > seek_target ? AVSEEK_FLAG_BACKWARD : 0);
+    if (res < 0) {
+        throwIOExceptionIfError(env, res, "Failed to seek.");
+        goto bail;
+    }
+
+    // make sure everything is flushed.
+    av_init_packet(&(aio->decode_packet));
+    aio->decode_packet.data = NULL;
+    aio->decode_packet.size = 0;
+    // flush codec
+    avcodec_flush_buffers(aio->decode_context);
+    aio->draining = 0;
+    // set timestamp to seek_target, since that's hopefully now our current timestamp..
+    aio->timestamp = seek_target;
+
+bail:
+
+    return res;
+}
+
 /**
  * Free all resources held by aio and then itself.
  */
@@ -997,9 +1379,7 @@ void ff_audioio_free(FFAudioIO *aio) {
         if (aio->decode_frame) {
             av_free(aio->decode_frame);
         }
-        if (aio->audio_data) {
-            av_free(aio->audio_data);
-        }
+        av_freep(&aio->resample_buf);
         free(aio);
     }
 }
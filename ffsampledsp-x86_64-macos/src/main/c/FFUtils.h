@@ -57,7 +57,9 @@ typedef struct {
     // general stuff
     JNIEnv          *env;                   ///< JNI environment
     jobject         java_instance;          ///< Calling Java instance
-    jint            java_buffer_capacity;   ///< Current capacity of the Java nativeBuffer
+    uint8_t         *java_buffer;           ///< Address of the Java-side native buffer
+    jint            java_buffer_capacity;   ///< Capacity of the Java-side native buffer
+    jint            java_buffer_length;     ///< Bytes written to the Java-side native buffer during the current fill
 
     // decoding
     AVFormatContext *format_context;        ///< Current AVFormatContext
@@ -66,14 +68,20 @@ typedef struct {
     AVCodecContext  *decode_context;        ///< Codec context for decoding
     AVPacket        decode_packet;          ///< AVPacket for decoding
     AVFrame         *decode_frame;          ///< AVFrame for decoding
-    uint8_t         **audio_data;           ///< Audio data (accommodates multiple planes)
-	int             got_frame;              ///< Indicates whether we got a frame in the last call to avcodec_decode_audio4
+    int             draining;               ///< Indicates whether we already signaled the end of the stream to the decoder
     uint64_t        decoded_samples;        ///< Running count of decoded samples
     uint64_t        timestamp;              ///< Current timestamp (in samples, not seconds)
 
     // resampling
-    SwrContext      *swr_context;           ///< Resampling context
+    SwrContext      *swr_context;           ///< Resampling context, NULL in passthrough mode
+    int             passthrough;            ///< Decoded frames already match the output format and are written as they are
     uint64_t        resampled_samples;      ///< Count of resampled samples
+    uint8_t         *resample_buf;          ///< Reusable scratch buffer for resampled (packed) audio
+    unsigned int    resample_buf_size;      ///< Allocated size of resample_buf
+    int             out_channel_count;      ///< Output channel count of swr_context
+    int64_t         out_channel_layout;     ///< Output channel layout of swr_context
+    int             out_sample_rate;        ///< Output sample rate of swr_context
+    enum AVSampleFormat out_sample_fmt;     ///< Output sample format of swr_context
 
     // encoding
     AVCodecContext  *encode_context;        ///< Codec context for encoding
@@ -82,6 +90,29 @@ typedef struct {
 
 } FFAudioIO;
 
+/**
+ * Options for opening an input, passed in from Java.
+ */
+typedef struct {
+    jstring         format_name_string;     ///< Java string backing format_name
+    const char      *format_name;           ///< Short name of the demuxer to use or NULL to probe
+    int64_t         probesize;              ///< Max number of bytes to probe or 0 for the default
+    int64_t         analyzeduration;        ///< Max duration to analyze in microseconds or 0 for the default
+} FFProbeOptions;
+
+/**
+ * Memory region (e.g. a memory mapped file or a Java byte array) read by a custom AVIOContext
+ * (see ff_open_memory_io).
+ */
+typedef struct {
+    const uint8_t   *data;          ///< Start of the region, owned by a Java direct buffer, or NULL for arrays
+    jbyteArray      array;          ///< Global reference to the Java array holding the region, or NULL
+    jint            array_offset;   ///< Offset of the region in array
+    JNIEnv          **env;          ///< Location of the current JNIEnv, used for array access
+    int64_t         size;           ///< Size of the region
+    int64_t         position;       ///< Current read position
+} FFMemorySource;
+
 extern const uint32_t CODEC_TAG_DRMS;
 
 void logWarning(FFAudioIO*, int, const char*);
@@ -98,17 +129,39 @@ void throwFileNotFoundExceptionIfError(JNIEnv*, int, const char*);
 
 void dumpCodecIds();
 
-int ff_open_stream(JNIEnv*, AVStream*, AVCodecContext**);
+int ff_open_stream(JNIEnv*, AVStream*, AVCodecContext**, int);
+
+void ff_init_probe_options(JNIEnv*, FFProbeOptions*, jstring, jint, jlong);
+
+void ff_release_probe_options(JNIEnv*, FFProbeOptions*);
 
-int ff_open_format_context(JNIEnv*, AVFormatContext**, const char*);
+int ff_open_input(JNIEnv*, AVFormatContext**, const char*, const FFProbeOptions*);
 
-int ff_open_file(JNIEnv*, AVFormatContext**, AVStream**, AVCodecContext**, int*, const char*);
+int ff_find_stream_info(JNIEnv*, AVFormatContext*);
+
+int ff_open_format_context(JNIEnv*, AVFormatContext**, const char*, const FFProbeOptions*);
+
+int ff_open_file(JNIEnv*, AVFormatContext**, AVStream**, int*, const char*, const FFProbeOptions*);
+
+int ff_init_memory_source(JNIEnv*, FFMemorySource*, jobject, jbyteArray, jint, jint);
+
+void ff_release_memory_source(JNIEnv*, FFMemorySource*);
+
+int ff_open_memory_io(JNIEnv*, AVFormatContext*, FFMemorySource*);
+
+int ff_create_audiofileformats(JNIEnv*, AVFormatContext*, jobjectArray*, jstring);
 
 int ff_init_audioio(JNIEnv*, FFAudioIO*);
 
+int ff_open_decoder(JNIEnv*, FFAudioIO*, int);
+
 void ff_audioio_free(FFAudioIO*);
 
-int ff_fill_buffer(FFAudioIO*);
+int ff_fill_buffer(FFAudioIO*, int);
+
+int ff_seek(JNIEnv*, FFAudioIO*, int64_t);
+
+int ff_set_java_buffer(JNIEnv*, FFAudioIO*, jobject);
 
 AVCodec* ff_find_encoder(enum AVSampleFormat, int, int, int);
 
@@ -116,4 +169,6 @@ int ff_init_encoder(JNIEnv*, FFAudioIO*, AVCodec*);
 
 int ff_big_endian(enum AVCodecID);
 
+int ff_can_passthrough(FFAudioIO*);
+
 